@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.DataChunkColumns;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 过长的文本内容分块压缩保存在 data_chunk 表中，避免整段内容超出 CursorWindow。
+ * data 表的 content 列只保留开头的一段，用于预览和全文索引，
+ * {@link DataColumns#CHUNK_COUNT} 大于 0 时完整内容需要通过本类读取
+ */
+public class ContentChunks {
+    private static final String TAG = "ContentChunks";
+
+    /**
+     * 超过该长度（字符数）的内容分块保存
+     */
+    public static final int CHUNK_THRESHOLD = 64 * 1024;
+
+    // 每块压缩前的字符数
+    private static final int CHUNK_LENGTH = 32 * 1024;
+
+    // 分块保存时 data 表中保留的开头字符数
+    private static final int INLINE_HEAD_LENGTH = 4 * 1024;
+
+    // 每次查询读取的分块数，CursorWindow 中同时只有这么多块压缩后的内容
+    private static final int CHUNKS_PER_QUERY = 4;
+
+    private static final String CHUNK_PATH_SEGMENT = "chunk";
+
+    private static final String CHUNK_RANGE_SELECTION = DataChunkColumns.SEQUENCE + ">=? AND "
+            + DataChunkColumns.SEQUENCE + "<?";
+
+    // 只检查内容能否解压时丢弃解压出的文本
+    private static final String[] CHUNK_PROJECTION = new String[] {
+        DataChunkColumns.SEQUENCE, DataChunkColumns.CONTENT
+    };
+
+    private static final int CHUNK_SEQUENCE_COLUMN = 0;
+
+    private static final int CHUNK_CONTENT_COLUMN = 1;
+
+    private static final String INSERT_CHUNK_SQL = "INSERT INTO " + TABLE.DATA_CHUNK + "("
+            + DataChunkColumns.DATA_ID + "," + DataChunkColumns.SEQUENCE + ","
+            + DataChunkColumns.CONTENT + ") VALUES(?,?,?)";
+
+    private static final String UPDATE_NOTE_LENGTH_SQL = "UPDATE " + TABLE.NOTE
+            + " SET " + NoteColumns.CONTENT_LENGTH + "=?"
+            + " WHERE " + NoteColumns.ID + "=(SELECT " + DataColumns.NOTE_ID
+            + " FROM " + TABLE.DATA + " WHERE " + DataColumns.ID + "=? AND "
+            + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "')";
+
+    /**
+     * 查询一条数据的分块内容的 Uri，按顺序返回每一块压缩后的内容
+     */
+    public static Uri getChunksUri(long dataId) {
+        return ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId).buildUpon()
+                .appendPath(CHUNK_PATH_SEGMENT).build();
+    }
+
+    /**
+     * 读取分块保存的完整内容，失败时返回 null
+     *
+     * @param chunkCount 数据的 {@link DataColumns#CHUNK_COUNT}，缺少分块时读取失败
+     */
+    public static String readContent(ContentResolver resolver, long dataId, int chunkCount) {
+        StringBuilder sb = new StringBuilder(Math.max(chunkCount, 1) * CHUNK_LENGTH);
+        try {
+            return writeContent(resolver, dataId, chunkCount, sb) ? sb.toString() : null;
+        } catch (IOException e) {
+            // 分块内容无法解压
+            Log.e(TAG, "Read chunks of data " + dataId + " failed: " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * 把分块保存的内容逐块解压写入 out。每次只查询 {@link #CHUNKS_PER_QUERY} 块，解压时边读边写，
+     * 内存中只有这几块压缩后的内容和一小段缓冲。分块的序号不连续或总数不是 chunkCount 时读取失败，
+     * 此时 out 中已经写入了缺块之前的内容
+     *
+     * @param chunkCount 数据的 {@link DataColumns#CHUNK_COUNT}
+     * @return 按顺序读到全部 chunkCount 个分块时返回 true
+     */
+    public static boolean writeContent(ContentResolver resolver, long dataId, int chunkCount,
+            Appendable out) throws IOException {
+        if (chunkCount <= 0) {
+            return false;
+        }
+        char[] buffer = new char[8192];
+        int sequence = 0;
+        while (true) {
+            Cursor cursor = resolver.query(getChunksUri(dataId), CHUNK_PROJECTION,
+                    CHUNK_RANGE_SELECTION, new String[] {
+                            String.valueOf(sequence), String.valueOf(sequence + CHUNKS_PER_QUERY)
+                    }, DataChunkColumns.SEQUENCE + " ASC");
+            if (cursor == null) {
+                Log.e(TAG, "Query chunks of data " + dataId + " failed");
+                return false;
+            }
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    if (cursor.getInt(CHUNK_SEQUENCE_COLUMN) != sequence) {
+                        Log.e(TAG, "Chunk " + sequence + " of data " + dataId + " is missing");
+                        return false;
+                    }
+                    decompress(cursor.getBlob(CHUNK_CONTENT_COLUMN), out, buffer);
+                    sequence++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (count < CHUNKS_PER_QUERY || sequence >= chunkCount) {
+                if (sequence != chunkCount) {
+                    Log.e(TAG, "Read " + sequence + " of " + chunkCount + " chunks of data "
+                            + dataId);
+                    return false;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 在写入 data 表之前调用。内容需要分块时把 values 中的内容替换为开头的一段并返回完整内容，
+     * 否则返回 null。values 中有内容时会同时设置 {@link DataColumns#CHUNK_COUNT}
+     */
+    static String prepareContent(ContentValues values) {
+        if (!values.containsKey(DataColumns.CONTENT)) {
+            return null;
+        }
+        String content = values.getAsString(DataColumns.CONTENT);
+        if (content == null || content.length() <= CHUNK_THRESHOLD) {
+            values.put(DataColumns.CHUNK_COUNT, 0);
+            return null;
+        }
+        int count = 0;
+        for (int start = 0; start < content.length(); start = nextChunkEnd(content, start)) {
+            count++;
+        }
+        values.put(DataColumns.CONTENT, content.substring(0,
+                nextChunkEnd(content, 0, INLINE_HEAD_LENGTH)));
+        values.put(DataColumns.CHUNK_COUNT, count);
+        return content;
+    }
+
+    /**
+     * 替换一条数据的所有分块，并记录所属笔记的完整内容长度，需要在事务中调用
+     */
+    static void writeChunks(SQLiteDatabase db, long dataId, String content) {
+        deleteChunks(db, dataId);
+        SQLiteStatement insert = db.compileStatement(INSERT_CHUNK_SQL);
+        try {
+            int sequence = 0;
+            for (int start = 0, end; start < content.length(); start = end) {
+                end = nextChunkEnd(content, start);
+                insert.bindLong(1, dataId);
+                insert.bindLong(2, sequence++);
+                insert.bindBlob(3, compress(content, start, end));
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+
+        SQLiteStatement update = db.compileStatement(UPDATE_NOTE_LENGTH_SQL);
+        try {
+            update.bindLong(1, content.length());
+            update.bindLong(2, dataId);
+            update.execute();
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * 删除一条数据的所有分块
+     */
+    static void deleteChunks(SQLiteDatabase db, long dataId) {
+        db.delete(TABLE.DATA_CHUNK, DataChunkColumns.DATA_ID + "=?", new String[] {
+            String.valueOf(dataId)
+        });
+    }
+
+    private static int nextChunkEnd(String content, int start) {
+        return nextChunkEnd(content, start, CHUNK_LENGTH);
+    }
+
+    // 不在代理对中间切分，每一块都能单独按 UTF-8 编码
+    private static int nextChunkEnd(String content, int start, int length) {
+        int end = Math.min(start + length, content.length());
+        if (end < content.length() && Character.isHighSurrogate(content.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    static byte[] compress(String text) {
+        return compress(text, 0, text.length());
+    }
+
+    // 直接编码压缩 text 中的一段，不复制出子串和它的 UTF-8 字节
+    private static byte[] compress(String text, int start, int end) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((end - start) / 2);
+        try {
+            Writer out = new OutputStreamWriter(new DeflaterOutputStream(bytes), "UTF-8");
+            out.write(text, start, end - start);
+            out.close();
+        } catch (IOException e) {
+            // ByteArrayOutputStream 不会抛出 IOException
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // 边解压边解码写入 out，每一块都是完整的 UTF-8 文本
+    private static void decompress(byte[] data, Appendable out, char[] buffer)
+            throws IOException {
+        Reader in = new InputStreamReader(new InflaterInputStream(
+                new ByteArrayInputStream(data)), "UTF-8");
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.append(CharBuffer.wrap(buffer, 0, read));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static String decompress(byte[] data) throws IOException {
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        try {
+            return bytes.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.RevisionColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.io.IOException;
+
+/**
+ * 笔记文本内容的历史版本。每次保存文本内容时记录一个版本，每隔若干版本保存一份压缩的完整快照，
+ * 其余版本只保存相对上一版本的差异：保留的开头长度、结尾长度和中间插入的文本。
+ * 重建某个版本时只读取它之前最近的一个快照和其后的差异，不需要读出整个历史
+ */
+public class NoteRevisions {
+    private static final String TAG = "NoteRevisions";
+
+    /**
+     * 每个笔记最多保留的版本数，超出时以快照为界删除最早的一段版本
+     */
+    public static final int MAX_REVISIONS = 64;
+
+    // 两个快照之间最多的版本数
+    private static final int SNAPSHOT_INTERVAL = 16;
+
+    // 上一个差异版本保存后这段时间内的保存合并到该版本中，避免自动保存产生大量相近的版本
+    private static final long MERGE_INTERVAL = 60 * 1000;
+
+    // 超过该长度（字符数）的内容不记录历史版本
+    private static final int MAX_CONTENT_LENGTH = 512 * 1024;
+
+    // 缓存的最近版本文本的总长度上限（字符数），至少能放下一个笔记的最新版本和它之前的版本
+    private static final int MAX_CACHED_CHARS = 2 * MAX_CONTENT_LENGTH;
+
+    /**
+     * 最近记录过的笔记的最新版本和它之前一个版本的文本，连续保存同一笔记时不需要每次从快照重建。
+     * 只有数据库中最新的两个版本仍是缓存中的这两行时才使用
+     */
+    private static class Latest {
+        long id;
+        long createdDate;
+        String text;
+        long baseId;
+        String baseText;
+    }
+
+    private static final LruCache<Long, Latest> sLatest =
+            new LruCache<Long, Latest>(MAX_CACHED_CHARS) {
+                @Override
+                protected int sizeOf(Long key, Latest value) {
+                    return 1 + value.text.length()
+                            + (value.baseText == null ? 0 : value.baseText.length());
+                }
+            };
+
+    /**
+     * 查询 revision/<id> 时默认返回的列，{@link RevisionColumns#CONTENT} 为重建后的完整文本
+     */
+    public static final String[] REVISION_PROJECTION = new String[] {
+        RevisionColumns.ID,
+        RevisionColumns.NOTE_ID,
+        RevisionColumns.VERSION,
+        RevisionColumns.CREATED_DATE,
+        RevisionColumns.CONTENT
+    };
+
+    private static final String[] LATEST_PROJECTION = new String[] {
+        RevisionColumns.ID,
+        RevisionColumns.KIND,
+        RevisionColumns.CREATED_DATE
+    };
+
+    private static final int LATEST_ID_COLUMN = 0;
+    private static final int LATEST_KIND_COLUMN = 1;
+    private static final int LATEST_CREATED_DATE_COLUMN = 2;
+
+    // 从最近的快照开始，按顺序读出重建一个版本需要的所有行
+    private static final String REBUILD_QUERY = "SELECT " + RevisionColumns.KIND + ","
+            + RevisionColumns.PREFIX_LENGTH + "," + RevisionColumns.SUFFIX_LENGTH + ","
+            + RevisionColumns.CONTENT
+            + " FROM " + TABLE.NOTE_REVISION
+            + " WHERE " + RevisionColumns.NOTE_ID + "=?1 AND " + RevisionColumns.ID + "<=?2"
+            + " AND " + RevisionColumns.ID + ">=(SELECT MAX(" + RevisionColumns.ID + ")"
+            + " FROM " + TABLE.NOTE_REVISION
+            + " WHERE " + RevisionColumns.NOTE_ID + "=?1 AND " + RevisionColumns.ID + "<=?2"
+            + " AND " + RevisionColumns.KIND + "=" + RevisionColumns.KIND_SNAPSHOT + ")"
+            + " ORDER BY " + RevisionColumns.ID + " ASC";
+
+    private static final int REBUILD_KIND_COLUMN = 0;
+    private static final int REBUILD_PREFIX_LENGTH_COLUMN = 1;
+    private static final int REBUILD_SUFFIX_LENGTH_COLUMN = 2;
+    private static final int REBUILD_CONTENT_COLUMN = 3;
+
+    // 删除第 MAX_REVISIONS 新的版本之后第一个快照之前的所有版本，保留的差异总能找到自己的快照
+    private static final String PRUNE_SQL = "DELETE FROM " + TABLE.NOTE_REVISION
+            + " WHERE " + RevisionColumns.NOTE_ID + "=?1 AND " + RevisionColumns.ID
+            + "<(SELECT MIN(" + RevisionColumns.ID + ") FROM " + TABLE.NOTE_REVISION
+            + " WHERE " + RevisionColumns.NOTE_ID + "=?1"
+            + " AND " + RevisionColumns.KIND + "=" + RevisionColumns.KIND_SNAPSHOT
+            + " AND " + RevisionColumns.ID + ">=(SELECT " + RevisionColumns.ID
+            + " FROM " + TABLE.NOTE_REVISION + " WHERE " + RevisionColumns.NOTE_ID + "=?1"
+            + " ORDER BY " + RevisionColumns.ID + " DESC LIMIT 1 OFFSET " + (MAX_REVISIONS - 1)
+            + "))";
+
+    /**
+     * 查询一个版本的 Uri，返回的行中带有重建后的完整文本
+     */
+    public static Uri getRevisionUri(long revisionId) {
+        return ContentUris.withAppendedId(Notes.CONTENT_REVISION_URI, revisionId);
+    }
+
+    /**
+     * 重建一个版本的完整文本，失败时返回 null
+     */
+    public static String getContent(ContentResolver resolver, long revisionId) {
+        Cursor cursor = resolver.query(getRevisionUri(revisionId), new String[] {
+            RevisionColumns.CONTENT
+        }, null, null, null);
+        if (cursor == null) {
+            Log.e(TAG, "Query revision " + revisionId + " failed");
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 记录笔记文本内容的一个新版本，需要在保存内容的同一个事务中调用。
+     * 内容与上一版本相同时不记录
+     */
+    static void record(SQLiteDatabase db, long noteId, String content) {
+        if (content == null || content.length() > MAX_CONTENT_LENGTH) {
+            return;
+        }
+        long version = queryNoteVersion(db, noteId);
+        if (version < 0) {
+            return;
+        }
+
+        // 最近的几个版本，用于决定写入快照、差异，还是合并到上一个差异中
+        long latestId = 0, baseId = 0, latestCreatedDate = 0;
+        int latestKind = RevisionColumns.KIND_SNAPSHOT;
+        int deltaCount = 0;
+        boolean hasSnapshot = false;
+        Cursor cursor = db.query(TABLE.NOTE_REVISION, LATEST_PROJECTION,
+                RevisionColumns.NOTE_ID + "=?", new String[] {
+                    String.valueOf(noteId)
+                }, null, null, RevisionColumns.ID + " DESC", String.valueOf(SNAPSHOT_INTERVAL));
+        try {
+            while (cursor.moveToNext()) {
+                if (latestId == 0) {
+                    latestId = cursor.getLong(LATEST_ID_COLUMN);
+                    latestKind = cursor.getInt(LATEST_KIND_COLUMN);
+                    latestCreatedDate = cursor.getLong(LATEST_CREATED_DATE_COLUMN);
+                } else if (baseId == 0) {
+                    baseId = cursor.getLong(LATEST_ID_COLUMN);
+                }
+                if (cursor.getInt(LATEST_KIND_COLUMN) == RevisionColumns.KIND_SNAPSHOT) {
+                    hasSnapshot = true;
+                    break;
+                }
+                deltaCount++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Latest cached = sLatest.get(noteId);
+        if (cached != null && (cached.id != latestId || cached.createdDate != latestCreatedDate)) {
+            cached = null;
+        }
+        String previous = cached != null ? cached.text
+                : latestId > 0 ? rebuild(db, latestId) : null;
+        if (previous != null && previous.equals(content)) {
+            return;
+        }
+        String latest = previous;
+
+        long now = System.currentTimeMillis();
+        long replacedId = 0;
+        String base = null;
+        if (previous != null && latestKind == RevisionColumns.KIND_DELTA && baseId > 0
+                && now - latestCreatedDate < MERGE_INTERVAL) {
+            // 替换上一个差异，新的差异相对于它之前的版本计算
+            base = cached != null && cached.baseId == baseId && cached.baseText != null
+                    ? cached.baseText : rebuild(db, baseId);
+            if (base != null) {
+                replacedId = latestId;
+                previous = base;
+                deltaCount--;
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(RevisionColumns.VERSION, version);
+        if (previous == null || !hasSnapshot || deltaCount + 1 >= SNAPSHOT_INTERVAL
+                || !putDelta(values, previous, content)) {
+            values.put(RevisionColumns.KIND, RevisionColumns.KIND_SNAPSHOT);
+            values.put(RevisionColumns.PREFIX_LENGTH, 0);
+            values.put(RevisionColumns.SUFFIX_LENGTH, 0);
+            values.put(RevisionColumns.CONTENT, ContentChunks.compress(content));
+        }
+
+        Latest recorded = new Latest();
+        recorded.text = content;
+        if (replacedId > 0) {
+            db.update(TABLE.NOTE_REVISION, values, RevisionColumns.ID + "=?", new String[] {
+                String.valueOf(replacedId)
+            });
+            recorded.id = replacedId;
+            recorded.createdDate = latestCreatedDate;
+            recorded.baseId = baseId;
+            recorded.baseText = base;
+        } else {
+            values.put(RevisionColumns.NOTE_ID, noteId);
+            values.put(RevisionColumns.CREATED_DATE, now);
+            recorded.id = db.insert(TABLE.NOTE_REVISION, null, values);
+            recorded.createdDate = now;
+            recorded.baseId = latestId;
+            recorded.baseText = latest;
+            db.execSQL(PRUNE_SQL, new Object[] {
+                noteId
+            });
+        }
+        if (recorded.id > 0) {
+            sLatest.put(noteId, recorded);
+        } else {
+            sLatest.remove(noteId);
+        }
+    }
+
+    /**
+     * 记录版本的事务没有提交时调用，缓存中可能有已回滚的版本
+     */
+    static void discardCache() {
+        sLatest.evictAll();
+    }
+
+    /**
+     * 查询一个版本，返回的 {@link RevisionColumns#CONTENT} 为重建后的完整文本
+     */
+    static Cursor queryRevision(SQLiteDatabase db, long revisionId, String[] projection) {
+        if (projection == null) {
+            projection = REVISION_PROJECTION;
+        }
+        MatrixCursor result = new MatrixCursor(projection);
+        Cursor cursor = db.query(TABLE.NOTE_REVISION, new String[] {
+            RevisionColumns.ID, RevisionColumns.NOTE_ID, RevisionColumns.VERSION,
+            RevisionColumns.CREATED_DATE
+        }, RevisionColumns.ID + "=?", new String[] {
+            String.valueOf(revisionId)
+        }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return result;
+            }
+            String content = null;
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                if (RevisionColumns.CONTENT.equals(projection[i])) {
+                    if (content == null) {
+                        content = rebuild(db, revisionId);
+                    }
+                    row[i] = content;
+                } else {
+                    row[i] = cursor.getLong(cursor.getColumnIndexOrThrow(projection[i]));
+                }
+            }
+            result.addRow(row);
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 从最近的快照开始依次应用差异，重建一个版本的完整文本，失败时返回 null
+     */
+    static String rebuild(SQLiteDatabase db, long revisionId) {
+        long noteId = 0;
+        Cursor cursor = db.query(TABLE.NOTE_REVISION, new String[] {
+            RevisionColumns.NOTE_ID
+        }, RevisionColumns.ID + "=?", new String[] {
+            String.valueOf(revisionId)
+        }, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                noteId = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (noteId == 0) {
+            return null;
+        }
+
+        String text = null;
+        cursor = db.rawQuery(REBUILD_QUERY, new String[] {
+            String.valueOf(noteId), String.valueOf(revisionId)
+        });
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(REBUILD_KIND_COLUMN) == RevisionColumns.KIND_SNAPSHOT) {
+                    text = ContentChunks.decompress(cursor.getBlob(REBUILD_CONTENT_COLUMN));
+                } else if (text != null) {
+                    int prefixLength = cursor.getInt(REBUILD_PREFIX_LENGTH_COLUMN);
+                    int suffixLength = cursor.getInt(REBUILD_SUFFIX_LENGTH_COLUMN);
+                    if (prefixLength + suffixLength > text.length()) {
+                        Log.e(TAG, "Wrong delta in revisions of note " + noteId);
+                        return null;
+                    }
+                    text = text.substring(0, prefixLength)
+                            + cursor.getString(REBUILD_CONTENT_COLUMN)
+                            + text.substring(text.length() - suffixLength);
+                }
+            }
+        } catch (IOException e) {
+            // 快照无法解压
+            Log.e(TAG, "Rebuild revision " + revisionId + " failed: " + e.toString());
+            return null;
+        } finally {
+            cursor.close();
+        }
+        return text;
+    }
+
+    /**
+     * 把 previous 到 content 的差异写入 values，差异不比完整内容小很多时返回 false
+     */
+    private static boolean putDelta(ContentValues values, String previous, String content) {
+        int maxLength = Math.min(previous.length(), content.length());
+        int prefixLength = 0;
+        while (prefixLength < maxLength
+                && previous.charAt(prefixLength) == content.charAt(prefixLength)) {
+            prefixLength++;
+        }
+        int suffixLength = 0;
+        while (suffixLength < maxLength - prefixLength
+                && previous.charAt(previous.length() - 1 - suffixLength)
+                    == content.charAt(content.length() - 1 - suffixLength)) {
+            suffixLength++;
+        }
+        String inserted = content.substring(prefixLength, content.length() - suffixLength);
+        if (inserted.length() > content.length() / 2) {
+            return false;
+        }
+        values.put(RevisionColumns.KIND, RevisionColumns.KIND_DELTA);
+        values.put(RevisionColumns.PREFIX_LENGTH, prefixLength);
+        values.put(RevisionColumns.SUFFIX_LENGTH, suffixLength);
+        values.put(RevisionColumns.CONTENT, inserted);
+        return true;
+    }
+
+    private static long queryNoteVersion(SQLiteDatabase db, long noteId) {
+        Cursor cursor = db.query(TABLE.NOTE, new String[] {
+            NoteColumns.VERSION
+        }, NoteColumns.ID + "=?", new String[] {
+            String.valueOf(noteId)
+        }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -56,11 +56,46 @@ public class Notes {
      */
     public static final Uri CONTENT_NOTE_URI = Uri.parse("content://" + AUTHORITY + "/note");
 
+    /**
+     * Uri to query notes and folders under one folder, append the folder id to use it.
+     * Changes are notified on this uri only when the folder's own content changed
+     */
+    public static final Uri CONTENT_NOTE_FOLDER_URI = Uri.parse("content://" + AUTHORITY + "/note/folder");
+
+    /**
+     * Uri to query the rows shown in notes list, append the folder id to query one folder.
+     * Rows have the columns of {@link NoteListColumns}, and the non-empty call record folder
+     * is listed in the root folder. Changes are notified as on {@link #CONTENT_NOTE_FOLDER_URI}
+     */
+    public static final Uri CONTENT_NOTE_LIST_URI = Uri.parse("content://" + AUTHORITY + "/note/list");
+
+    /**
+     * Query parameters to read {@link #CONTENT_NOTE_URI}, {@link #CONTENT_NOTE_FOLDER_URI} or
+     * {@link #CONTENT_NOTE_LIST_URI} page by page. Rows of a page are ordered by type, modified date and id, all descending,
+     * and the next page starts after the type, modified date and id of the previous page's
+     * last row. The sort order argument of the query is ignored in this mode
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String QUERY_PARAMETER_AFTER_TYPE = "after_type";
+    public static final String QUERY_PARAMETER_AFTER_MODIFIED_DATE = "after_modified_date";
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
     /**
      * Uri to query data
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Uri to query revisions of notes, query revision/<id> to rebuild the content of one
+     * revision
+     */
+    public static final Uri CONTENT_REVISION_URI = Uri.parse("content://" + AUTHORITY + "/revision");
+
+    /**
+     * Uri to query the journal of the gtask sync, only used by the sync itself
+     */
+    public static final Uri CONTENT_SYNC_JOURNAL_URI = Uri.parse("content://" + AUTHORITY + "/sync_journal");
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -94,11 +129,18 @@ public class Notes {
         public static final String ALERTED_DATE = "alert_date";
 
         /**
-         * Folder's name or text content of note
+         * Folder's name or the leading part of note's text content, the whole
+         * text is stored in {@link DataColumns#CONTENT}
          * <P> Type: TEXT </P>
          */
         public static final String SNIPPET = "snippet";
 
+        /**
+         * Length of note's whole text content
+         * <P> Type: INTEGER </P>
+         */
+        public static final String CONTENT_LENGTH = "content_length";
+
         /**
          * Note's widget id
          * <P> Type: INTEGER (long) </P>
@@ -167,6 +209,27 @@ public class Notes {
         public static final String VERSION = "version";
     }
 
+    public interface NoteListColumns extends NoteColumns {
+        /**
+         * The folder in which the row is listed, it's the parent's id except for the call
+         * record folder, which is listed in the root folder when it's not empty
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String LIST_FOLDER_ID = "list_folder_id";
+
+        /**
+         * Whether the note has an alert
+         * <P> Type: INTEGER </P>
+         */
+        public static final String HAS_ALERT = "has_alert";
+
+        /**
+         * Whether the note is bound to a widget
+         * <P> Type: INTEGER </P>
+         */
+        public static final String HAS_WIDGET = "has_widget";
+    }
+
     public interface DataColumns {
         /**
          * The unique ID for a row
@@ -239,6 +302,158 @@ public class Notes {
          * <P> Type: TEXT </P>
          */
         public static final String DATA5 = "data5";
+
+        /**
+         * Number of compressed chunks holding the whole content, 0 if {@link #CONTENT} holds
+         * it all. Otherwise {@link #CONTENT} only holds the beginning, read the whole content
+         * with {@link ContentChunks}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String CHUNK_COUNT = "chunk_count";
+    }
+
+    public interface DataChunkColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The data's id to which this chunk belongs
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String DATA_ID = "data_id";
+
+        /**
+         * Position of the chunk in the content, starting from 0
+         * <P> Type: INTEGER </P>
+         */
+        public static final String SEQUENCE = "seq";
+
+        /**
+         * Deflated UTF-8 text of the chunk
+         * <P> Type: BLOB </P>
+         */
+        public static final String CONTENT = "content";
+    }
+
+    public interface RevisionColumns {
+        /**
+         * The unique ID for a row, later revisions of a note have larger ids
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The note's id to which this revision belongs
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * The {@link NoteColumns#VERSION} of the note when the revision is saved
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String VERSION = "version";
+
+        /**
+         * Created date of the revision
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CREATED_DATE = "created_date";
+
+        /**
+         * {@link #KIND_SNAPSHOT} or {@link #KIND_DELTA}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String KIND = "kind";
+
+        /**
+         * For a delta, the length of the text kept from the start of the previous revision
+         * <P> Type: INTEGER </P>
+         */
+        public static final String PREFIX_LENGTH = "prefix_length";
+
+        /**
+         * For a delta, the length of the text kept from the end of the previous revision
+         * <P> Type: INTEGER </P>
+         */
+        public static final String SUFFIX_LENGTH = "suffix_length";
+
+        /**
+         * Deflated UTF-8 text of a snapshot, or the text inserted by a delta. Querying
+         * revision/<id> returns the rebuilt text of the revision in this column instead
+         * <P> Type: BLOB for snapshot, TEXT for delta and rebuilt text </P>
+         */
+        public static final String CONTENT = "content";
+
+        public static final int KIND_SNAPSHOT = 0;
+
+        public static final int KIND_DELTA = 1;
+    }
+
+    public interface SyncJournalColumns {
+        /**
+         * The unique ID for a row
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * The name of the sync account the entry belongs to
+         * <P> Type: TEXT </P>
+         */
+        public static final String ACCOUNT = "account";
+
+        /**
+         * {@link #KIND_PHASE}, {@link #KIND_LIST} or {@link #KIND_CREATE}
+         * <P> Type: INTEGER </P>
+         */
+        public static final String KIND = "kind";
+
+        /**
+         * For a phase entry, the latest phase the sync has finished
+         * <P> Type: INTEGER </P>
+         */
+        public static final String PHASE = "phase";
+
+        /**
+         * For a create entry, the id of the note whose task is being created
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * For a list entry, the gid of the task list synced. For a create entry, the gid of
+         * the task list the task is created in
+         * <P> Type: TEXT </P>
+         */
+        public static final String LIST_GID = "list_gid";
+
+        /**
+         * For a create entry, the name of the task being created
+         * <P> Type: TEXT </P>
+         */
+        public static final String NAME = "name";
+
+        /**
+         * For a create entry, the gid assigned to the task, empty until the server answers
+         * <P> Type: TEXT </P>
+         */
+        public static final String GID = "gid";
+
+        /**
+         * Created date of the entry
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String CREATED_DATE = "created_date";
+
+        public static final int KIND_PHASE = 0;
+
+        public static final int KIND_LIST = 1;
+
+        public static final int KIND_CREATE = 2;
     }
 
     public static final class TextNote implements DataColumns {
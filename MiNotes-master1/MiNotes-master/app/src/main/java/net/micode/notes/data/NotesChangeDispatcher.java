@@ -0,0 +1,169 @@
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.HashSet;
+
+/**
+ * 收集一次写操作（或一整个批量操作）中变化的笔记和文件夹，结束时统一发送带范围的变更通知。
+ * 列表只监听自己文件夹的 {@link Notes#CONTENT_NOTE_FOLDER_URI}，其它文件夹的变化不会让它重新查询。
+ */
+class NotesChangeDispatcher {
+    // 通知数量超过该值时，合并为对整个笔记表的一次通知
+    private static final int MAX_SCOPED_NOTIFICATIONS = 64;
+
+    // 一次查出笔记的上级文件夹和类型
+    private static final String QUERY_NOTE_SQL = "SELECT " + NoteColumns.PARENT_ID + ","
+            + NoteColumns.TYPE + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=?";
+
+    // 一次查出数据所属的笔记及其上级文件夹和类型
+    private static final String QUERY_DATA_NOTE_SQL = "SELECT " + TABLE.DATA + "."
+            + DataColumns.NOTE_ID + "," + TABLE.NOTE + "." + NoteColumns.PARENT_ID + ","
+            + TABLE.NOTE + "." + NoteColumns.TYPE + " FROM " + TABLE.DATA
+            + " LEFT JOIN " + TABLE.NOTE + " ON " + TABLE.NOTE + "." + NoteColumns.ID + "="
+            + TABLE.DATA + "." + DataColumns.NOTE_ID
+            + " WHERE " + TABLE.DATA + "." + DataColumns.ID + "=?";
+
+    private final HashSet<Long> mNoteIds = new HashSet<Long>(); // 发生变化的笔记或文件夹
+    private final HashSet<Long> mFolderIds = new HashSet<Long>(); // 内容发生变化的文件夹
+    private final HashSet<Long> mResolvedNoteIds = new HashSet<Long>(); // 已查询过上级的笔记或文件夹
+    private final HashSet<Uri> mDataUris = new HashSet<Uri>(); // 发生变化的数据 Uri
+    private boolean mAllNotesChanged; // 无法确定范围的修改，需要通知整个笔记表
+
+    /**
+     * 记录一条笔记或文件夹的变化，需要在修改之前调用以便读到原来所在的文件夹
+     */
+    void noteChanged(SQLiteDatabase db, long noteId) {
+        if (isNoteScopeFull() || mNoteIds.contains(noteId)) {
+            return;
+        }
+        mNoteIds.add(noteId);
+        if (!mResolvedNoteIds.add(noteId)) {
+            return;
+        }
+        long[] row = queryRow(db, QUERY_NOTE_SQL, noteId, 2);
+        if (row != null) {
+            noteResolved(db, noteId, row[0], (int) row[1]);
+        }
+    }
+
+    /**
+     * 记录一个文件夹内容的变化。文件夹的笔记数会随之改变，所以它所在的上级列表也需要刷新
+     */
+    void folderChanged(SQLiteDatabase db, long folderId) {
+        if (isNoteScopeFull()) {
+            return;
+        }
+        mFolderIds.add(folderId);
+        if (!mResolvedNoteIds.add(folderId)) {
+            return;
+        }
+        long[] row = queryRow(db, QUERY_NOTE_SQL, folderId, 2);
+        if (row != null) {
+            mFolderIds.add(row[0]);
+        }
+    }
+
+    /**
+     * 记录一条数据的变化，需要在修改之前调用以便找到它所属的笔记
+     */
+    void dataChanged(SQLiteDatabase db, long dataId) {
+        mDataUris.add(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
+        if (isNoteScopeFull()) {
+            return;
+        }
+        long[] row = queryRow(db, QUERY_DATA_NOTE_SQL, dataId, 3);
+        if (row == null || mNoteIds.contains(row[0])) {
+            return;
+        }
+        mNoteIds.add(row[0]);
+        if (mResolvedNoteIds.add(row[0])) {
+            noteResolved(db, row[0], row[1], (int) row[2]);
+        }
+    }
+
+    /**
+     * 记录一次无法确定范围的修改（例如按任意条件更新），所有监听笔记的观察者都会收到通知
+     */
+    void allNotesChanged() {
+        mAllNotesChanged = true;
+    }
+
+    boolean isEmpty() {
+        return !mAllNotesChanged && mNoteIds.isEmpty() && mFolderIds.isEmpty()
+                && mDataUris.isEmpty();
+    }
+
+    /**
+     * 发送收集到的通知，每个 Uri 只发送一次
+     */
+    void dispatch(ContentResolver resolver) {
+        if (isNoteScopeFull()) {
+            // 笔记表 Uri 的通知会送达所有监听其下 Uri 的观察者
+            resolver.notifyChange(Notes.CONTENT_NOTE_URI, null);
+        } else {
+            for (long noteId : mNoteIds) {
+                resolver.notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            }
+            for (long folderId : mFolderIds) {
+                resolver.notifyChange(
+                        ContentUris.withAppendedId(Notes.CONTENT_NOTE_FOLDER_URI, folderId), null);
+            }
+        }
+
+        if (mDataUris.size() > MAX_SCOPED_NOTIFICATIONS) {
+            resolver.notifyChange(Notes.CONTENT_DATA_URI, null);
+        } else {
+            for (Uri uri : mDataUris) {
+                resolver.notifyChange(uri, null);
+            }
+        }
+    }
+
+    // 上级文件夹的列表随之变化；变化的是文件夹时（例如移入回收站），它自己的列表也会变化
+    private void noteResolved(SQLiteDatabase db, long noteId, long parentId, int type) {
+        if (type != Notes.TYPE_NOTE) {
+            mFolderIds.add(noteId);
+        }
+        folderChanged(db, parentId);
+    }
+
+    // 超过上限后只会通知整个笔记表，不必再查询每一行的上级文件夹
+    private boolean isNoteScopeFull() {
+        if (!mAllNotesChanged
+                && mNoteIds.size() + mFolderIds.size() > MAX_SCOPED_NOTIFICATIONS) {
+            mAllNotesChanged = true;
+        }
+        return mAllNotesChanged;
+    }
+
+    private static long[] queryRow(SQLiteDatabase db, String sql, long id, int columns) {
+        Cursor cursor = db.rawQuery(sql, new String[] { String.valueOf(id) });
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long[] row = new long[columns];
+            for (int i = 0; i < columns; i++) {
+                if (cursor.isNull(i)) {
+                    return null;
+                }
+                row[i] = cursor.getLong(i);
+            }
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+}
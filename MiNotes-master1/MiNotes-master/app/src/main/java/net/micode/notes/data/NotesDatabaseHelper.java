@@ -2,28 +2,62 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.DataChunkColumns;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteListColumns;
+import net.micode.notes.data.Notes.RevisionColumns;
+import net.micode.notes.data.Notes.SyncJournalColumns;
+
+import java.util.Locale;
 
 // 数据库帮助类
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db"; // 数据库名
-    private static final int DB_VERSION = 4; // 数据库版本号
+    private static final int DB_VERSION = 13; // 数据库版本号
 
     // 数据表名称常量
     public interface TABLE {
         public static final String NOTE = "note";
         public static final String DATA = "data";
+        public static final String DATA_FTS = "data_fts";
+        public static final String DATA_CHUNK = "data_chunk";
+        public static final String NOTE_REVISION = "note_revision";
+        public static final String SYNC_JOURNAL = "sync_journal";
+    }
+
+    // 视图名称常量
+    public interface VIEW {
+        public static final String NOTE_LIST = "note_list";
     }
 
+    /**
+     * 笔记表中 snippet 保存的预览文本的最大长度，完整内容只保存在 data 表中
+     */
+    public static final int SNIPPET_MAX_LENGTH = 256;
+
+    /**
+     * 不修改 SQLite 的自动检查点阈值（默认 1000 页）
+     */
+    public static final int WAL_AUTO_CHECKPOINT_DEFAULT = -1;
+
+    // WAL 模式下自动检查点的页数阈值，写入的页数超过该值后由提交线程把 WAL 合并回主库
+    private static volatile int sWalAutoCheckpointPages = WAL_AUTO_CHECKPOINT_DEFAULT;
+
     private static final String TAG = "NotesDatabaseHelper"; // 日志tag
     private static NotesDatabaseHelper mInstance; // 数据库帮助类实例
 
+    // 全文索引表使用的分词器，打开数据库时读出
+    private volatile int mFtsTokenizer = FTS_TOKENIZER_SIMPLE;
+
     // 创建笔记数据表的SQL语句
     private static final String CREATE_NOTE_TABLE_SQL =
             "CREATE TABLE " + TABLE.NOTE + "(" +
@@ -36,6 +70,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     NoteColumns.MODIFIED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
                     NoteColumns.NOTES_COUNT + " INTEGER NOT NULL DEFAULT 0," +
                     NoteColumns.SNIPPET + " TEXT NOT NULL DEFAULT ''," +
+                    NoteColumns.CONTENT_LENGTH + " INTEGER NOT NULL DEFAULT 0," +
                     NoteColumns.TYPE + " INTEGER NOT NULL DEFAULT 0," +
                     NoteColumns.WIDGET_ID + " INTEGER NOT NULL DEFAULT 0," +
                     NoteColumns.WIDGET_TYPE + " INTEGER NOT NULL DEFAULT -1," +
@@ -59,7 +94,61 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     DataColumns.DATA2 + " INTEGER," +
                     DataColumns.DATA3 + " TEXT NOT NULL DEFAULT ''," +
                     DataColumns.DATA4 + " TEXT NOT NULL DEFAULT ''," +
-                    DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
+                    DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''," +
+                    DataColumns.CHUNK_COUNT + " INTEGER NOT NULL DEFAULT 0" +
+                    ")";
+
+    /**
+     * 创建过长文本内容的分块表，见 {@link ContentChunks}
+     */
+    private static final String CREATE_DATA_CHUNK_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + TABLE.DATA_CHUNK + "(" +
+                    DataChunkColumns.ID + " INTEGER PRIMARY KEY," +
+                    DataChunkColumns.DATA_ID + " INTEGER NOT NULL," +
+                    DataChunkColumns.SEQUENCE + " INTEGER NOT NULL," +
+                    DataChunkColumns.CONTENT + " BLOB NOT NULL" +
+                    ")";
+
+    private static final String CREATE_DATA_CHUNK_INDEX_SQL =
+            "CREATE UNIQUE INDEX IF NOT EXISTS data_chunk_index ON " + TABLE.DATA_CHUNK + "(" +
+                    DataChunkColumns.DATA_ID + "," + DataChunkColumns.SEQUENCE +
+                    ")";
+
+    /**
+     * 创建笔记的历史版本表，见 {@link NoteRevisions}
+     */
+    private static final String CREATE_NOTE_REVISION_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + TABLE.NOTE_REVISION + "(" +
+                    RevisionColumns.ID + " INTEGER PRIMARY KEY," +
+                    RevisionColumns.NOTE_ID + " INTEGER NOT NULL," +
+                    RevisionColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +
+                    RevisionColumns.CREATED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
+                    RevisionColumns.KIND + " INTEGER NOT NULL DEFAULT 0," +
+                    RevisionColumns.PREFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0," +
+                    RevisionColumns.SUFFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0," +
+                    RevisionColumns.CONTENT + " BLOB" +
+                    ")";
+
+    // 同一笔记的版本按 _id 顺序排列在索引中
+    private static final String CREATE_NOTE_REVISION_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_revision_index ON " + TABLE.NOTE_REVISION + "(" +
+                    RevisionColumns.NOTE_ID + "," + RevisionColumns.ID +
+                    ")";
+
+    /**
+     * 创建同步日志表，记录中断的同步已完成的阶段和已发出的创建操作
+     */
+    private static final String CREATE_SYNC_JOURNAL_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS " + TABLE.SYNC_JOURNAL + "(" +
+                    SyncJournalColumns.ID + " INTEGER PRIMARY KEY," +
+                    SyncJournalColumns.ACCOUNT + " TEXT NOT NULL DEFAULT ''," +
+                    SyncJournalColumns.KIND + " INTEGER NOT NULL DEFAULT 0," +
+                    SyncJournalColumns.PHASE + " INTEGER NOT NULL DEFAULT 0," +
+                    SyncJournalColumns.NOTE_ID + " INTEGER NOT NULL DEFAULT 0," +
+                    SyncJournalColumns.LIST_GID + " TEXT NOT NULL DEFAULT ''," +
+                    SyncJournalColumns.NAME + " TEXT NOT NULL DEFAULT ''," +
+                    SyncJournalColumns.GID + " TEXT NOT NULL DEFAULT ''," +
+                    SyncJournalColumns.CREATED_DATE + " INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)" +
                     ")";
     /**
      *创建笔记在SQL中的Id
@@ -69,6 +158,106 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             "CREATE INDEX IF NOT EXISTS note_id_index ON " +
                     TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    /**
+     * 全文索引使用的分词器。simple 只按 ASCII 切词，unicode61 能处理各种语言的字母但不切分中日韩文字，
+     * icu 按词典切分中日韩文字
+     */
+    public static final int FTS_TOKENIZER_SIMPLE = 0;
+    public static final int FTS_TOKENIZER_UNICODE61 = 1;
+    public static final int FTS_TOKENIZER_ICU = 2;
+
+    /**
+     * 创建全文索引表时依次尝试的分词器，系统的 SQLite 不支持时换用下一个，null 表示 fts3 默认的 simple
+     */
+    private static final String[] FTS_TOKENIZERS = new String[] {
+            "icu zh_CN", "unicode61", null
+    };
+
+    /**
+     * 创建文本数据的全文索引表，docid 与 data 表的 _id 一致
+     */
+    private static final String CREATE_DATA_FTS_TABLE_SQL =
+            "CREATE VIRTUAL TABLE " + TABLE.DATA_FTS + " USING fts3(" +
+                    DataColumns.CONTENT +
+                    ")";
+
+    private static final String CREATE_DATA_FTS4_TABLE_SQL =
+            "CREATE VIRTUAL TABLE " + TABLE.DATA_FTS + " USING fts4(" +
+                    DataColumns.CONTENT + ", tokenize=%s" +
+                    ")";
+
+    /**
+     * 文件夹列表查询：按 parent_id 过滤、按 type 和 modified_date 排序，_id 作为 rowid 隐含在索引末尾，
+     * 所以分页的排序不需要临时 B 树。它不是覆盖索引，列表还需要 snippet 等列，每页只按 rowid
+     * 回表读取页大小的行，把这些列放进索引只会让每次写入多复制一份笔记内容
+     */
+    private static final String CREATE_NOTE_PARENT_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_parent_type_modified_index ON " + TABLE.NOTE + "(" +
+                    NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," + NoteColumns.MODIFIED_DATE +
+                    ");";
+
+    /**
+     * 同步时按 type 扫描笔记或文件夹，并排除回收站
+     */
+    private static final String CREATE_NOTE_TYPE_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_type_parent_index ON " + TABLE.NOTE + "(" +
+                    NoteColumns.TYPE + "," + NoteColumns.PARENT_ID +
+                    ");";
+
+    /**
+     * 开机时查找尚未提醒的闹钟，只有设置了提醒的笔记才需要进入索引
+     */
+    private static final String CREATE_NOTE_ALERT_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_alert_date_index ON " + TABLE.NOTE + "(" +
+                    NoteColumns.ALERTED_DATE +
+                    ")";
+
+    /**
+     * 小部件按 widget_id 查找笔记，只有绑定了小部件的笔记才需要进入索引
+     */
+    private static final String CREATE_NOTE_WIDGET_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_widget_id_index ON " + TABLE.NOTE + "(" +
+                    NoteColumns.WIDGET_ID +
+                    ")";
+
+    /**
+     * 笔记列表行视图的列，与 note 表中同名的列一一对应，另外给出列表所需的派生列
+     */
+    private static final String NOTE_LIST_VIEW_COLUMNS =
+            NoteColumns.ID + "," +
+                    NoteColumns.ALERTED_DATE + "," +
+                    NoteColumns.BG_COLOR_ID + "," +
+                    NoteColumns.CREATED_DATE + "," +
+                    NoteColumns.HAS_ATTACHMENT + "," +
+                    NoteColumns.MODIFIED_DATE + "," +
+                    NoteColumns.NOTES_COUNT + "," +
+                    NoteColumns.PARENT_ID + "," +
+                    NoteColumns.SNIPPET + "," +
+                    NoteColumns.TYPE + "," +
+                    NoteColumns.WIDGET_ID + "," +
+                    NoteColumns.WIDGET_TYPE + "," +
+                    "(" + NoteColumns.ALERTED_DATE + ">0) AS " + NoteListColumns.HAS_ALERT + "," +
+                    "(" + NoteColumns.WIDGET_ID + ">0 AND " + NoteColumns.WIDGET_TYPE + "<>"
+                    + Notes.TYPE_WIDGET_INVALIDE + ") AS " + NoteListColumns.HAS_WIDGET;
+
+    /**
+     * 笔记列表行视图。第一部分是普通笔记和文件夹，显示在其父文件夹中；第二部分是非空的通话记录
+     * 文件夹，显示在根文件夹中。两部分的条件都能直接使用 note 表上的索引，
+     * 按 list_folder_id 查询时 SQLite 会把条件分别下推到两部分中，不再需要 OR 条件
+     */
+    private static final String CREATE_NOTE_LIST_VIEW_SQL =
+            "CREATE VIEW IF NOT EXISTS " + VIEW.NOTE_LIST + " AS" +
+                    " SELECT " + NOTE_LIST_VIEW_COLUMNS + "," +
+                    NoteColumns.PARENT_ID + " AS " + NoteListColumns.LIST_FOLDER_ID +
+                    " FROM " + TABLE.NOTE +
+                    " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM +
+                    " UNION ALL" +
+                    " SELECT " + NOTE_LIST_VIEW_COLUMNS + "," +
+                    Notes.ID_ROOT_FOLDER + " AS " + NoteListColumns.LIST_FOLDER_ID +
+                    " FROM " + TABLE.NOTE +
+                    " WHERE " + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER +
+                    " AND " + NoteColumns.NOTES_COUNT + ">0";
+
     /**
      * 将笔记移动到文件夹时增加文件夹的笔记计数
      */
@@ -131,20 +320,25 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+                    "   SET " + NoteColumns.SNIPPET + "=substr(new." + DataColumns.CONTENT +
+                    ",1," + SNIPPET_MAX_LENGTH + ")," +
+                    "   " + NoteColumns.CONTENT_LENGTH + "=length(new." + DataColumns.CONTENT + ")" +
                     "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
                     " END";
 
     /**
-     * 在类型为 {@link DataConstants#NOTE} 的数据更新时更新笔记的内容
+     * 在类型为 {@link DataConstants#NOTE} 的数据的内容更新时更新笔记的内容。只更新其他列（如清单模式）时
+     * 不触发，否则分块保存的笔记的内容长度会被改成开头一段的长度
      */
     private static final String DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER =
             "CREATE TRIGGER update_note_content_on_update " +
-                    " AFTER UPDATE ON " + TABLE.DATA +
+                    " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
                     " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+                    "   SET " + NoteColumns.SNIPPET + "=substr(new." + DataColumns.CONTENT +
+                    ",1," + SNIPPET_MAX_LENGTH + ")," +
+                    "   " + NoteColumns.CONTENT_LENGTH + "=length(new." + DataColumns.CONTENT + ")" +
                     "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
                     " END";
 
@@ -157,9 +351,69 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
                     " BEGIN" +
                     "  UPDATE " + TABLE.NOTE +
-                    "   SET " + NoteColumns.SNIPPET + "=''" +
+                    "   SET " + NoteColumns.SNIPPET + "=''," +
+                    "   " + NoteColumns.CONTENT_LENGTH + "=0" +
                     "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
                     " END";
+    /**
+     * 在插入类型为 {@link DataConstants#NOTE} 的数据时写入全文索引
+     */
+    private static final String DATA_INSERT_FTS_ON_INSERT_TRIGGER =
+            "CREATE TRIGGER insert_fts_on_insert " +
+                    " AFTER INSERT ON " + TABLE.DATA +
+                    " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+                    " BEGIN" +
+                    "  INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                    "   VALUES(new." + DataColumns.ID + ",new." + DataColumns.CONTENT + ");" +
+                    " END";
+
+    /**
+     * 在类型为 {@link DataConstants#NOTE} 的数据内容更新时刷新全文索引
+     */
+    private static final String DATA_UPDATE_FTS_ON_UPDATE_TRIGGER =
+            "CREATE TRIGGER update_fts_on_update " +
+                    " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
+                    " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.DATA_FTS + " WHERE docid=old." + DataColumns.ID + ";" +
+                    "  INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                    "   VALUES(new." + DataColumns.ID + ",new." + DataColumns.CONTENT + ");" +
+                    " END";
+
+    /**
+     * 在类型为 {@link DataConstants#NOTE} 的数据删除时移除全文索引
+     */
+    private static final String DATA_DELETE_FTS_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER delete_fts_on_delete " +
+                    " AFTER DELETE ON " + TABLE.DATA +
+                    " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.DATA_FTS + " WHERE docid=old." + DataColumns.ID + ";" +
+                    " END";
+
+    /**
+     * 删除数据时删除它的所有分块
+     */
+    private static final String DATA_DELETE_CHUNKS_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER delete_chunks_on_delete " +
+                    " AFTER DELETE ON " + TABLE.DATA +
+                    " WHEN old." + DataColumns.CHUNK_COUNT + ">0" +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.DATA_CHUNK +
+                    "   WHERE " + DataChunkColumns.DATA_ID + "=old." + DataColumns.ID + ";" +
+                    " END";
+
+    /**
+     * 删除笔记时删除它的所有历史版本
+     */
+    private static final String NOTE_DELETE_REVISIONS_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER delete_revisions_on_delete " +
+                    " AFTER DELETE ON " + TABLE.NOTE +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.NOTE_REVISION +
+                    "   WHERE " + RevisionColumns.NOTE_ID + "=old." + NoteColumns.ID + ";" +
+                    " END";
+
     /**
      * 创建一个触发器，用于删除已删除笔记的数据
      */
@@ -203,9 +457,33 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
         reCreateNoteTableTriggers(db);
         createSystemFolder(db);
+        createNoteIndexes(db);
+        createNoteListView(db);
         Log.d(TAG, "note table has been created");
     }
 
+    /**
+     * 创建笔记表的二级索引。SQLite 3.8.0（API 21）起支持部分索引，
+     * 之前的版本退回到普通索引，查询语句中的条件对两种索引都适用
+     */
+    private void createNoteIndexes(SQLiteDatabase db) {
+        boolean partial = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        db.execSQL(CREATE_NOTE_PARENT_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_TYPE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_ALERT_INDEX_SQL
+                + (partial ? " WHERE " + NoteColumns.ALERTED_DATE + ">0" : ""));
+        db.execSQL(CREATE_NOTE_WIDGET_INDEX_SQL
+                + (partial ? " WHERE " + NoteColumns.WIDGET_ID + ">0" : ""));
+    }
+
+    /**
+     * 创建笔记列表行视图，视图只依赖 note 表，重建时不影响数据
+     */
+    private void createNoteListView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW.NOTE_LIST);
+        db.execSQL(CREATE_NOTE_LIST_VIEW_SQL);
+    }
+
     /**
 
      重新创建笔记表的触发器
@@ -290,17 +568,68 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_DATA_TABLE_SQL); // 创建数据表
         reCreateDataTableTriggers(db); // 重建数据表触发器
         db.execSQL(CREATE_DATA_NOTE_ID_INDEX_SQL); // 在数据表上创建笔记 ID 索引
+        createDataFtsTable(db); // 创建全文索引表
+        createDataChunkTable(db); // 创建内容分块表
         Log.d(TAG, "data table has been created"); // 输出日志，表示数据表已创建
     }
 
+    /**
+     * 创建内容分块表及删除数据时清理分块的触发器
+     */
+    private void createDataChunkTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_DATA_CHUNK_TABLE_SQL);
+        db.execSQL(CREATE_DATA_CHUNK_INDEX_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS delete_chunks_on_delete");
+        db.execSQL(DATA_DELETE_CHUNKS_ON_DELETE_TRIGGER);
+    }
+
+    /**
+     * 创建笔记的历史版本表及删除笔记时清理历史版本的触发器
+     */
+    private void createNoteRevisionTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_REVISION_TABLE_SQL);
+        db.execSQL(CREATE_NOTE_REVISION_INDEX_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS delete_revisions_on_delete");
+        db.execSQL(NOTE_DELETE_REVISIONS_ON_DELETE_TRIGGER);
+    }
+
+    /**
+     * 重建全文索引表，并用 data 表中已有的文本数据回填。使用系统 SQLite 支持的最好的分词器
+     */
+    private void createDataFtsTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.DATA_FTS);
+        for (String tokenizer : FTS_TOKENIZERS) {
+            if (tokenizer == null) {
+                db.execSQL(CREATE_DATA_FTS_TABLE_SQL);
+                break;
+            }
+            try {
+                db.execSQL(String.format(CREATE_DATA_FTS4_TABLE_SQL, tokenizer));
+                break;
+            } catch (SQLException e) {
+                Log.w(TAG, "fts tokenizer " + tokenizer + " is not supported: " + e.getMessage());
+            }
+        }
+        db.execSQL("INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")"
+                + " SELECT " + DataColumns.ID + "," + DataColumns.CONTENT
+                + " FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'");
+    }
+
     private void reCreateDataTableTriggers(SQLiteDatabase db) {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");// 如果存在，删除插入时更新笔记内容的触发器
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update"); // 如果存在，删除更新时更新笔记内容的触发器
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");// 如果存在，删除删除时更新笔记内容的触发器
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_insert"); // 如果存在，删除插入时写入全文索引的触发器
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_update"); // 如果存在，删除更新时刷新全文索引的触发器
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_delete"); // 如果存在，删除删除时移除全文索引的触发器
 
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER); // 创建插入时更新笔记内容的触发器
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER); // 创建更新时更新笔记内容的触发器
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER); // 创建删除时更新笔记内容的触发器
+        db.execSQL(DATA_INSERT_FTS_ON_INSERT_TRIGGER); // 创建插入时写入全文索引的触发器
+        db.execSQL(DATA_UPDATE_FTS_ON_UPDATE_TRIGGER); // 创建更新时刷新全文索引的触发器
+        db.execSQL(DATA_DELETE_FTS_ON_DELETE_TRIGGER); // 创建删除时移除全文索引的触发器
     }
 
     static synchronized NotesDatabaseHelper getInstance(Context context) {
@@ -310,10 +639,111 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         return mInstance; // 返回实例
     }
 
+    /**
+     * 关闭并丢弃当前实例，下次 getInstance 时重新打开。用于测试之间更换数据库文件
+     */
+    static synchronized void closeInstance() {
+        if (mInstance != null) {
+            mInstance.close();
+            mInstance = null;
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db); // 创建笔记表
         createDataTable(db); // 创建数据表
+        createNoteRevisionTable(db); // 创建历史版本表
+        db.execSQL(CREATE_SYNC_JOURNAL_TABLE_SQL); // 创建同步日志表
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // 启用预写日志，系统会为读操作分配独立的连接，同步写入时列表和小部件的查询不再被阻塞
+            if (db.enableWriteAheadLogging()) {
+                int pages = sWalAutoCheckpointPages;
+                if (pages != WAL_AUTO_CHECKPOINT_DEFAULT) {
+                    setWalAutoCheckpoint(db, pages);
+                }
+            } else {
+                Log.w(TAG, "write-ahead logging is not enabled");
+            }
+        }
+        mFtsTokenizer = queryFtsTokenizer(db);
+    }
+
+    /**
+     * @return 全文索引表使用的分词器，{@link #FTS_TOKENIZER_SIMPLE} 等
+     */
+    public int getFtsTokenizer() {
+        return mFtsTokenizer;
+    }
+
+    private static int queryFtsTokenizer(SQLiteDatabase db) {
+        String sql = null;
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE name=?", new String[] {
+                TABLE.DATA_FTS
+        });
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    sql = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (sql == null) {
+            return FTS_TOKENIZER_SIMPLE;
+        }
+        sql = sql.toLowerCase(Locale.US);
+        if (sql.contains("tokenize=icu")) {
+            return FTS_TOKENIZER_ICU;
+        } else if (sql.contains("tokenize=unicode61")) {
+            return FTS_TOKENIZER_UNICODE61;
+        }
+        return FTS_TOKENIZER_SIMPLE;
+    }
+
+    /**
+     * 设置 WAL 自动检查点的页数阈值。较大的值减少检查点次数，写入更快，但 WAL 文件更大、
+     * 读操作需要扫描更多页。已经打开的数据库立即生效，否则在打开时生效
+     *
+     * @param pages 页数，小于等于 0 时关闭自动检查点，{@link #WAL_AUTO_CHECKPOINT_DEFAULT}
+     *            表示使用 SQLite 的默认值
+     */
+    public static void setWalAutoCheckpointPages(int pages) {
+        sWalAutoCheckpointPages = pages;
+        NotesDatabaseHelper helper;
+        synchronized (NotesDatabaseHelper.class) {
+            helper = mInstance;
+        }
+        if (helper != null && pages != WAL_AUTO_CHECKPOINT_DEFAULT) {
+            setWalAutoCheckpoint(helper.getWritableDatabase(), pages);
+        }
+    }
+
+    /**
+     * 在事务中执行 PRAGMA 以确保使用主连接，写操作都经过主连接，检查点也由它触发。
+     * PRAGMA 会返回结果行，必须取出第一行语句才会真正执行
+     */
+    private static void setWalAutoCheckpoint(SQLiteDatabase db, int pages) {
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint=" + Math.max(pages, 0), null);
+            if (cursor != null) {
+                try {
+                    cursor.moveToFirst();
+                } finally {
+                    cursor.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     @Override
@@ -338,6 +768,51 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++; // 版本号加 1
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db, newVersion); // 升级到版本 5
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db); // 升级到版本 6
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db); // 升级到版本 7
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db); // 升级到版本 8
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db); // 升级到版本 9
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db); // 升级到版本 10
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 10) {
+            upgradeToV11(db); // 升级到版本 11
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 11) {
+            upgradeToV12(db); // 升级到版本 12
+            oldVersion++; // 版本号加 1
+        }
+
+        if (oldVersion == 12) {
+            upgradeToV13(db); // 升级到版本 13
+            oldVersion++; // 版本号加 1
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db); // 重新创建笔记表触发器
             reCreateDataTableTriggers(db); // 重新创建数据表触发器
@@ -374,4 +849,62 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    private void upgradeToV5(SQLiteDatabase db, int newVersion) {
+        // add full-text index over text data and keep it in sync by triggers. An upgrade
+        // going on to version 12 builds the index there, no step in between writes data
+        if (newVersion < 12) {
+            createDataFtsTable(db);
+        }
+        reCreateDataTableTriggers(db);
+    }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        // add indexes for folder list, alarm, sync and widget queries
+        createNoteIndexes(db);
+    }
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        // keep only a bounded preview in snippet and record the whole content length
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CONTENT_LENGTH
+                + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE " + TABLE.NOTE
+                + " SET " + NoteColumns.CONTENT_LENGTH + "=length(" + NoteColumns.SNIPPET + "),"
+                + " " + NoteColumns.SNIPPET + "=substr(" + NoteColumns.SNIPPET + ",1,"
+                + SNIPPET_MAX_LENGTH + ")"
+                + " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE);
+        reCreateDataTableTriggers(db);
+    }
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        // add the precomputed row view for notes list
+        createNoteListView(db);
+    }
+
+    private void upgradeToV9(SQLiteDatabase db) {
+        // store oversized text content in compressed chunks, existing rows stay inline
+        db.execSQL("ALTER TABLE " + TABLE.DATA + " ADD COLUMN " + DataColumns.CHUNK_COUNT
+                + " INTEGER NOT NULL DEFAULT 0");
+        createDataChunkTable(db);
+    }
+
+    private void upgradeToV10(SQLiteDatabase db) {
+        // keep revisions of note content, history starts from the next save of each note
+        createNoteRevisionTable(db);
+    }
+
+    private void upgradeToV11(SQLiteDatabase db) {
+        // journal of the gtask sync, an interrupted sync resumes from it
+        db.execSQL(CREATE_SYNC_JOURNAL_TABLE_SQL);
+    }
+
+    private void upgradeToV12(SQLiteDatabase db) {
+        // rebuild the full-text index with a tokenizer that splits chinese text
+        createDataFtsTable(db);
+    }
+
+    private void upgradeToV13(SQLiteDatabase db) {
+        // the note content is updated only when the data content changes
+        reCreateDataTableTriggers(db);
+    }
 }
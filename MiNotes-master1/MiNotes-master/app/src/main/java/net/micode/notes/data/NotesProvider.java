@@ -2,20 +2,32 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.DataChunkColumns;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteListColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.data.NotesDatabaseHelper.VIEW;
+
+import java.util.ArrayList;
+import java.util.Map;
 
 public class NotesProvider extends ContentProvider {
 
@@ -26,6 +38,10 @@ public class NotesProvider extends ContentProvider {
 
     private static final String TAG = "NotesProvider";
 
+    // 当前线程正在执行的批量操作中收集到的变化，为 null 表示不在批量操作中
+    private final ThreadLocal<NotesChangeDispatcher> mBatchChanges =
+            new ThreadLocal<NotesChangeDispatcher>();
+
     // 声明一些常量，用于标识 Uri 匹配的类型
     private static final int URI_NOTE = 1;
     private static final int URI_NOTE_ITEM = 2;
@@ -33,14 +49,28 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_DATA_ITEM = 4;
     private static final int URI_SEARCH = 5;
     private static final int URI_SEARCH_SUGGEST = 6;
+    private static final int URI_NOTE_FOLDER = 7;
+    private static final int URI_NOTE_LIST = 8;
+    private static final int URI_NOTE_LIST_FOLDER = 9;
+    private static final int URI_DATA_CHUNK = 10;
+    private static final int URI_REVISION = 11;
+    private static final int URI_REVISION_ITEM = 12;
+    private static final int URI_SYNC_JOURNAL = 13;
 
     // 初始化 UriMatcher 对象，将 Uri 和对应的类型添加到 UriMatcher 中
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         mMatcher.addURI(Notes.AUTHORITY, "note", URI_NOTE);
         mMatcher.addURI(Notes.AUTHORITY, "note/#", URI_NOTE_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "note/folder/#", URI_NOTE_FOLDER);
+        mMatcher.addURI(Notes.AUTHORITY, "note/list", URI_NOTE_LIST);
+        mMatcher.addURI(Notes.AUTHORITY, "note/list/#", URI_NOTE_LIST_FOLDER);
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "data/#/chunk", URI_DATA_CHUNK);
+        mMatcher.addURI(Notes.AUTHORITY, "revision", URI_REVISION);
+        mMatcher.addURI(Notes.AUTHORITY, "revision/#", URI_REVISION_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "sync_journal", URI_SYNC_JOURNAL);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
@@ -49,10 +79,10 @@ public class NotesProvider extends ContentProvider {
     /**
      * x'0A' 代表 sqlite 中的 '\n' 字符。对于搜索结果中的标题和内容，我们会去掉 '\n' 和空格，以展示更多信息。
      */
-    private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
-            + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
-            + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
-            + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+    private static final String NOTES_SEARCH_PROJECTION = TABLE.NOTE + "." + NoteColumns.ID + " AS " + NoteColumns.ID + ","
+            + TABLE.NOTE + "." + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
+            + "TRIM(REPLACE(" + TABLE.NOTE + "." + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+            + "TRIM(REPLACE(" + TABLE.NOTE + "." + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
             + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
             + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
             + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
@@ -62,10 +92,37 @@ public class NotesProvider extends ContentProvider {
      */
     private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
             + " FROM " + TABLE.NOTE
-            + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
+            + " WHERE " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID
+            + " FROM " + TABLE.DATA
+            + " WHERE " + DataColumns.MIME_TYPE + "='" + Notes.DataConstants.NOTE + "'"
+            + " AND " + DataColumns.CONTENT + " LIKE ?)"
             + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
             + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
+    /**
+     * 基于全文索引的搜索语句：按前缀匹配文本数据，结果按修改时间排序。
+     * 不按命中次数排序，offsets() 等辅助函数要对每个匹配的笔记重新分词，前缀常见时每次输入都很慢
+     */
+    private static final String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+            + " FROM " + TABLE.NOTE
+            + " INNER JOIN " + TABLE.DATA
+            + " ON " + TABLE.DATA + "." + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID
+            + " WHERE " + TABLE.DATA + "." + DataColumns.ID + " IN (SELECT docid"
+            + " FROM " + TABLE.DATA_FTS + " WHERE " + TABLE.DATA_FTS + " MATCH ?)"
+            + " AND " + TABLE.NOTE + "." + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+            + " AND " + TABLE.NOTE + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+            + " ORDER BY " + TABLE.NOTE + "." + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * 分页查询的排序和 keyset 条件，下一页从上一页最后一行的 (type, modified_date, _id) 之后开始
+     */
+    private static final String PAGE_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
+    private static final String PAGE_KEYSET_SELECTION = "(" + NoteColumns.TYPE + "<? OR ("
+            + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + "<? OR ("
+            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<?))))";
+
     @Override
     public boolean onCreate() {
         // 获取数据库帮助类的实例
@@ -82,20 +139,46 @@ public class NotesProvider extends ContentProvider {
         SQLiteDatabase db = mHelper.getReadableDatabase();
         // 初始化 id
         String id = null;
+        // 游标的内容变化通知 Uri
+        Uri notificationUri = uri;
         // 根据 Uri 的不同，执行不同的查询操作
         switch (mMatcher.match(uri)) {
             // 查询所有笔记
             case URI_NOTE:
-                c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
+                c = queryNotes(db, TABLE.NOTE, uri, projection, selection, selectionArgs,
                         sortOrder);
                 break;
             // 根据 id 查询笔记
             case URI_NOTE_ITEM:
                 // 获取 Uri 中的 id
                 id = uri.getPathSegments().get(1);
-                // 根据 id 查询笔记
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                // 根据 id 查询笔记，id 作为参数绑定，相同的查询可以复用已编译的语句
+                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=?"
+                        + parseSelection(selection), appendSelectionArgs(new String[] { id },
+                        selectionArgs), null, null, sortOrder);
+                break;
+            // 查询某个文件夹下的笔记和文件夹
+            case URI_NOTE_FOLDER:
+                id = uri.getPathSegments().get(2);
+                c = queryNotes(db, TABLE.NOTE, uri, projection, NoteColumns.PARENT_ID + "=?"
+                        + parseSelection(selection), appendSelectionArgs(new String[] { id },
+                        selectionArgs), sortOrder);
+                break;
+            // 查询笔记列表的行
+            case URI_NOTE_LIST:
+                c = queryNotes(db, VIEW.NOTE_LIST, uri, projection, selection, selectionArgs,
+                        sortOrder);
+                notificationUri = Notes.CONTENT_NOTE_URI;
+                break;
+            // 查询某个文件夹在笔记列表中显示的行
+            case URI_NOTE_LIST_FOLDER:
+                id = uri.getPathSegments().get(2);
+                c = queryNotes(db, VIEW.NOTE_LIST, uri, projection, NoteListColumns.LIST_FOLDER_ID
+                        + "=?" + parseSelection(selection), appendSelectionArgs(new String[] { id },
+                        selectionArgs), sortOrder);
+                // 视图没有自己的通知，文件夹内容变化时会通知文件夹 Uri
+                notificationUri = ContentUris.withAppendedId(Notes.CONTENT_NOTE_FOLDER_URI,
+                        Long.valueOf(id));
                 break;
             // 查询所有数据
             case URI_DATA:
@@ -107,8 +190,36 @@ public class NotesProvider extends ContentProvider {
                 // 获取 Uri 中的 id
                 id = uri.getPathSegments().get(1);
                 // 根据 id 查询数据
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=?"
+                        + parseSelection(selection), appendSelectionArgs(new String[] { id },
+                        selectionArgs), null, null, sortOrder);
+                break;
+            // 按顺序查询一条数据的内容分块
+            case URI_DATA_CHUNK:
+                id = uri.getPathSegments().get(1);
+                c = db.query(TABLE.DATA_CHUNK, projection, DataChunkColumns.DATA_ID + "=?"
+                        + parseSelection(selection), appendSelectionArgs(new String[] { id },
+                        selectionArgs), null, null, sortOrder);
+                // 分块随数据一起变化
+                notificationUri = ContentUris.withAppendedId(Notes.CONTENT_DATA_URI,
+                        Long.valueOf(id));
+                break;
+            // 查询笔记的历史版本，差异版本的内容列只是插入的文本
+            case URI_REVISION:
+                c = db.query(TABLE.NOTE_REVISION, projection, selection, selectionArgs, null,
+                        null, sortOrder);
+                // 保存笔记时记录新的版本
+                notificationUri = Notes.CONTENT_NOTE_URI;
+                break;
+            // 查询一个版本重建后的完整文本
+            case URI_REVISION_ITEM:
+                id = uri.getPathSegments().get(1);
+                c = NoteRevisions.queryRevision(db, Long.valueOf(id), projection);
+                break;
+            // 查询同步日志
+            case URI_SYNC_JOURNAL:
+                c = db.query(TABLE.SYNC_JOURNAL, projection, selection, selectionArgs, null,
+                        null, sortOrder);
                 break;
             // 查询笔记的搜索结果
             case URI_SEARCH:
@@ -135,11 +246,25 @@ public class NotesProvider extends ContentProvider {
                 }
 
                 try {
-                    // 格式化查询字符串
-                    searchString = String.format("%%%s%%", searchString);
-                    // 执行笔记搜索查询
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[]{searchString});
+                    int tokenizer = mHelper.getFtsTokenizer();
+                    String matchExpression = buildFtsMatchExpression(searchString, tokenizer);
+                    if (matchExpression != null) {
+                        // 使用全文索引进行前缀匹配
+                        c = db.rawQuery(NOTES_FTS_SEARCH_QUERY,
+                                new String[]{matchExpression});
+                        // icu 按词切分中文，输入的是词的中间部分时匹配不到，退回到 LIKE 查询
+                        if (c.getCount() == 0 && hasCjk(searchString)) {
+                            c.close();
+                            c = null;
+                        }
+                    }
+                    if (c == null) {
+                        // 格式化查询字符串
+                        searchString = String.format("%%%s%%", searchString);
+                        // 执行笔记搜索查询
+                        c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
+                                new String[]{searchString});
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
@@ -150,11 +275,47 @@ public class NotesProvider extends ContentProvider {
         }
         // 如果游标不为空，则设置游标的内容变化通知 Uri
         if (c != null) {
-            c.setNotificationUri(getContext().getContentResolver(), uri);
+            c.setNotificationUri(getContext().getContentResolver(), notificationUri);
         }
         return c;
     }
 
+    /**
+     * 查询笔记表或笔记列表视图。Uri 中带有 {@link Notes#QUERY_PARAMETER_LIMIT} 时按 keyset 分页，
+     * 每页的开销只与页大小有关，而与文件夹中的笔记总数无关
+     */
+    private Cursor queryNotes(SQLiteDatabase db, String table, Uri uri, String[] projection,
+                              String selection, String[] selectionArgs, String sortOrder) {
+        String limit = uri.getQueryParameter(Notes.QUERY_PARAMETER_LIMIT);
+        if (TextUtils.isEmpty(limit)) {
+            return db.query(table, projection, selection, selectionArgs, null, null,
+                    sortOrder);
+        }
+        try {
+            limit = String.valueOf(Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong page size " + limit);
+        }
+
+        String afterId = uri.getQueryParameter(Notes.QUERY_PARAMETER_AFTER_ID);
+        if (!TextUtils.isEmpty(afterId)) {
+            String afterType = uri.getQueryParameter(Notes.QUERY_PARAMETER_AFTER_TYPE);
+            String afterModifiedDate = uri.getQueryParameter(
+                    Notes.QUERY_PARAMETER_AFTER_MODIFIED_DATE);
+            if (TextUtils.isEmpty(afterType) || TextUtils.isEmpty(afterModifiedDate)) {
+                throw new IllegalArgumentException("Incomplete page key in " + uri);
+            }
+            selection = (TextUtils.isEmpty(selection) ? "" : "(" + selection + ") AND ")
+                    + PAGE_KEYSET_SELECTION;
+            selectionArgs = appendSelectionArgs(selectionArgs != null ? selectionArgs
+                    : new String[0], new String[] {
+                    afterType, afterType, afterModifiedDate, afterModifiedDate, afterId
+            });
+        }
+        return db.query(table, projection, selection, selectionArgs, null, null,
+                PAGE_SORT_ORDER, limit);
+    }
+
     /***********/
     @Override
     public Uri insert(Uri uri, ContentValues values) {
@@ -162,6 +323,7 @@ public class NotesProvider extends ContentProvider {
         SQLiteDatabase db = mHelper.getWritableDatabase();
         // 定义变量用于存储插入后的数据行 ID
         long dataId = 0, noteId = 0, insertedId = 0;
+        NotesChangeDispatcher changes = newChanges();
         // 根据传入的 Uri 进行不同的插入操作
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
@@ -177,24 +339,26 @@ public class NotesProvider extends ContentProvider {
                     // 如果 ContentValues 中没有 Note ID，记录日志并退出方法
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                // 插入数据行
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);
+                // 插入数据行，过长的内容分块保存
+                insertedId = dataId = insertData(db, values);
+                break;
+            case URI_SYNC_JOURNAL:
+                // 同步日志只由同步过程读写，不需要通知观察者
+                insertedId = db.insert(TABLE.SYNC_JOURNAL, null, values);
                 break;
             default:
                 // 如果传入的 Uri 不合法，抛出 IllegalArgumentException 异常
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         // 如果插入操作成功，通知相关 Uri 的观察者
-        // 通知 Note Uri
-        if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
-        }
-        // 通知 Data Uri
+        // 通知 Data Uri 以及所属的笔记
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            changes.dataChanged(db, dataId);
+        } else if (noteId > 0) {
+            // 通知 Note Uri 以及所在的文件夹
+            changes.noteChanged(db, noteId);
         }
+        publishChanges(changes);
         // 返回新插入数据的 Uri
         return ContentUris.withAppendedId(uri, insertedId);
     }
@@ -206,7 +370,7 @@ public class NotesProvider extends ContentProvider {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean deleteData = false;
+        NotesChangeDispatcher changes = newChanges();
 
         // 使用 switch-case 语句匹配传入的 Uri
         switch (mMatcher.match(uri)) {
@@ -216,6 +380,7 @@ public class NotesProvider extends ContentProvider {
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
                 // 执行删除操作，并返回受影响的行数
                 count = db.delete(TABLE.NOTE, selection, selectionArgs);
+                changes.allNotesChanged();
                 break;
             // 如果是 URI_NOTE_ITEM，表示删除单个笔记
             case URI_NOTE_ITEM:
@@ -226,38 +391,36 @@ public class NotesProvider extends ContentProvider {
                 if (noteId <= 0) {
                     break;
                 }
+                changes.noteChanged(db, noteId);
                 // 执行删除操作，并返回受影响的行数
-                count = db.delete(TABLE.NOTE,
-                        NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                count = deleteById(db, TABLE.NOTE, NoteColumns.ID, id, selection, selectionArgs);
                 break;
             // 如果是 URI_DATA，表示删除数据
             case URI_DATA:
                 // 执行删除操作，并返回受影响的行数
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
-                deleteData = true;
+                changes.allNotesChanged();
                 break;
             // 如果是 URI_DATA_ITEM，表示删除单个数据
             case URI_DATA_ITEM:
                 // 从 Uri 中获取数据的 ID
                 id = uri.getPathSegments().get(1);
+                changes.dataChanged(db, Long.valueOf(id));
                 // 执行删除操作，并返回受影响的行数
-                count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
-                deleteData = true;
+                count = deleteById(db, TABLE.DATA, DataColumns.ID, id, selection, selectionArgs);
+                break;
+            // 如果是 URI_SYNC_JOURNAL，表示删除同步日志
+            case URI_SYNC_JOURNAL:
+                count = db.delete(TABLE.SYNC_JOURNAL, selection, selectionArgs);
                 break;
             // 如果匹配失败，则抛出异常
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        // 如果受影响的行数大于 0
+        // 如果受影响的行数大于 0，通知删除前记录的笔记和文件夹
         if (count > 0) {
-            // 如果删除了数据，则通知数据发生了变化
-            if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
-            }
-            // 通知 Uri 发生了变化
-            getContext().getContentResolver().notifyChange(uri, null);
+            publishChanges(changes);
         }
 
         // 返回受影响的行数
@@ -270,90 +433,349 @@ public class NotesProvider extends ContentProvider {
         int count = 0;
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
-        boolean updateData = false;
+        NotesChangeDispatcher changes = newChanges();
 
         // 根据 Uri 进行分支处理
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                // 更新笔记版本号
-                increaseNoteVersion(-1, selection, selectionArgs);
-                // 更新笔记数据
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                // 更新笔记数据，并在同一条语句中增加版本号
+                count = update(db, TABLE.NOTE, values, selection, selectionArgs, true);
+                changes.allNotesChanged();
                 break;
             case URI_NOTE_ITEM:
                 // 获取 Uri 中的 id
                 id = uri.getPathSegments().get(1);
-                // 更新笔记版本号
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                // 根据 id 更新笔记数据
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                // 记录笔记原来所在的文件夹，移动后新的文件夹也需要通知
+                changes.noteChanged(db, Long.valueOf(id));
+                if (values.containsKey(NoteColumns.PARENT_ID)) {
+                    changes.folderChanged(db, values.getAsLong(NoteColumns.PARENT_ID));
+                }
+                // 根据 id 更新笔记数据，并在同一条语句中增加版本号
+                count = update(db, TABLE.NOTE, values, NoteColumns.ID + "=?"
+                        + parseSelection(selection), appendSelectionArgs(new String[] { id },
+                        selectionArgs), true);
                 break;
             case URI_DATA:
                 // 更新数据表
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
-                updateData = true;
+                count = updateData(db, values, selection, selectionArgs);
+                changes.allNotesChanged();
                 break;
             case URI_DATA_ITEM:
                 // 获取 Uri 中的 id
                 id = uri.getPathSegments().get(1);
+                changes.dataChanged(db, Long.valueOf(id));
                 // 根据 id 更新数据表
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
-                updateData = true;
+                count = updateData(db, values, DataColumns.ID + "=?"
+                        + parseSelection(selection), appendSelectionArgs(new String[] { id },
+                        selectionArgs));
+                break;
+            case URI_SYNC_JOURNAL:
+                // 更新同步日志
+                count = db.update(TABLE.SYNC_JOURNAL, values, selection, selectionArgs);
                 break;
             default:
                 // 如果不匹配任何 Uri，抛出异常
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        // 如果更新成功，发出通知
+        // 如果更新成功，通知受影响的笔记和文件夹
         if (count > 0) {
-            if (updateData) {
-                // 更新数据表时，通知笔记 Uri
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+            publishChanges(changes);
+        }
+        return count;
+    }
+
+    /**
+     * 将用户输入转换为全文索引的 MATCH 表达式，每个词都按前缀匹配，词与词之间为 AND 关系。
+     * 分词器切分不了的文本返回 null，由调用方退回到 LIKE 查询：simple 只认识 ASCII，
+     * unicode61 把连续的中日韩文字当作一个词，只有 icu 能按词切分中文。
+     */
+    private static String buildFtsMatchExpression(String searchString, int tokenizer) {
+        StringBuilder expression = new StringBuilder();
+        for (String term : searchString.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (TextUtils.isEmpty(term)) {
+                continue;
+            }
+            boolean hasToken = false;
+            for (int i = 0; i < term.length(); i++) {
+                char ch = term.charAt(i);
+                if (ch > 0x7F && tokenizer == NotesDatabaseHelper.FTS_TOKENIZER_SIMPLE) {
+                    return null;
+                }
+                if (isCjk(ch) && tokenizer != NotesDatabaseHelper.FTS_TOKENIZER_ICU) {
+                    return null;
+                }
+                hasToken |= Character.isLetterOrDigit(ch);
+            }
+            if (!hasToken) {
+                continue;
             }
-            // 通知当前 Uri
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append('"').append(term).append("*\"");
+        }
+        return expression.length() > 0 ? expression.toString() : null;
+    }
+
+    private static boolean hasCjk(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (isCjk(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 中日韩的部首、假名、表意文字、谚文以及全角字符
+    private static boolean isCjk(char ch) {
+        return (ch >= 0x2E80 && ch <= 0x9FFF) || (ch >= 0xAC00 && ch <= 0xD7AF)
+                || (ch >= 0xF900 && ch <= 0xFAFF) || (ch >= 0xFF00 && ch <= 0xFFEF);
+    }
+
+    /**
+     * 在同一个事务中执行整批操作，只在提交后发送一次合并的变更通知
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean successful = false;
+        mBatchChanges.set(new NotesChangeDispatcher());
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            finishBatch(successful);
+        }
+    }
+
+    /**
+     * 在同一个事务中插入所有行，只在提交后发送一次合并的变更通知
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean successful = false;
+        int count = 0;
+        mBatchChanges.set(new NotesChangeDispatcher());
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                Uri inserted = insert(uri, value);
+                if (inserted != null && ContentUris.parseId(inserted) > 0) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            finishBatch(successful);
         }
         return count;
     }
 
+    /**
+     * 批量操作中所有写操作共用同一个收集器，已查询过的上级文件夹不会重复查询
+     */
+    private NotesChangeDispatcher newChanges() {
+        NotesChangeDispatcher batchChanges = mBatchChanges.get();
+        return batchChanges != null ? batchChanges : new NotesChangeDispatcher();
+    }
+
+    /**
+     * 发送一次写操作的变更通知；批量操作中只记录，等事务提交后统一发送
+     */
+    private void publishChanges(NotesChangeDispatcher changes) {
+        if (changes != mBatchChanges.get()) {
+            changes.dispatch(getContext().getContentResolver());
+        }
+    }
+
+    /**
+     * 结束批量操作。提交成功时发送合并后的通知，事务回滚时丢弃所有通知和缓存的版本文本
+     */
+    private void finishBatch(boolean successful) {
+        NotesChangeDispatcher changes = mBatchChanges.get();
+        mBatchChanges.set(null);
+        if (successful && changes != null && !changes.isEmpty()) {
+            changes.dispatch(getContext().getContentResolver());
+        }
+        if (!successful) {
+            // 整批回滚时其中记录的版本也被回滚
+            NoteRevisions.discardCache();
+        }
+    }
+
     /*****/
     private String parseSelection(String selection) {
         // 如果查询条件不为空，返回 AND (查询条件)
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
 
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
-        // 构建 SQL 语句
+    /**
+     * 执行更新，所有值都通过参数绑定。更新笔记表时版本号的递增
+     * 合并在同一条 UPDATE 语句中，如果调用方显式设置了版本号，则以调用方的值为准
+     */
+    private int update(SQLiteDatabase db, String table, ContentValues values, String selection,
+                       String[] selectionArgs, boolean increaseVersion) {
+        if (values == null || (values.size() == 0 && !increaseVersion)) {
+            throw new IllegalArgumentException("Empty values");
+        }
         StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
-
-        // 如果传入的 ID 或者查询条件不为空，则在 SQL 语句中添加 WHERE 子句
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
+        sql.append("UPDATE ").append(table).append(" SET ");
+        Object[] bindArgs = new Object[values.size()
+                + (selectionArgs == null ? 0 : selectionArgs.length)];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            sql.append(i > 0 ? "," : "").append(entry.getKey()).append("=?");
+            bindArgs[i++] = entry.getValue();
         }
-        // 如果传入的 ID 不为空，添加 ID 条件
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
+        if (increaseVersion && !values.containsKey(NoteColumns.VERSION)) {
+            sql.append(i > 0 ? "," : "");
+            sql.append(NoteColumns.VERSION).append("=").append(NoteColumns.VERSION).append("+1");
         }
-        // 如果查询条件不为空，添加查询条件
         if (!TextUtils.isEmpty(selection)) {
-            // 解析查询条件中的参数
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
+            sql.append(" WHERE ").append(selection);
+        }
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                bindArgs[i++] = arg;
+            }
+        }
+
+        return executeUpdateDelete(db, sql.toString(), bindArgs);
+    }
+
+    /**
+     * 插入一条数据，内容过长时在同一个事务中写入分块，文本内容同时记录为笔记的历史版本
+     */
+    private long insertData(SQLiteDatabase db, ContentValues values) {
+        values = new ContentValues(values);
+        String content = ContentChunks.prepareContent(values);
+        boolean isText = DataConstants.NOTE.equals(values.getAsString(DataColumns.MIME_TYPE))
+                && values.containsKey(DataColumns.NOTE_ID)
+                && values.containsKey(DataColumns.CONTENT);
+        if (content == null && !isText) {
+            return db.insert(TABLE.DATA, null, values);
+        }
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            long dataId = db.insert(TABLE.DATA, null, values);
+            if (dataId > 0 && content != null) {
+                ContentChunks.writeChunks(db, dataId, content);
+            }
+            if (dataId > 0 && isText) {
+                NoteRevisions.record(db, values.getAsLong(DataColumns.NOTE_ID),
+                        content != null ? content : values.getAsString(DataColumns.CONTENT));
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return dataId;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                NoteRevisions.discardCache();
+            }
+        }
+    }
+
+    /**
+     * 更新数据。更新内容时在同一个事务中替换分块，内容不再过长时删除原来的分块，
+     * 文本内容同时记录为笔记的历史版本
+     */
+    private int updateData(SQLiteDatabase db, ContentValues values, String selection,
+                           String[] selectionArgs) {
+        if (values == null || !values.containsKey(DataColumns.CONTENT)) {
+            return update(db, TABLE.DATA, values, selection, selectionArgs, false);
+        }
+        values = new ContentValues(values);
+        String content = ContentChunks.prepareContent(values);
+        String fullContent = content != null ? content : values.getAsString(DataColumns.CONTENT);
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            // 先找出要更新的行及其所属的文本笔记，更新之后条件可能不再匹配
+            ArrayList<Long> ids = new ArrayList<Long>();
+            ArrayList<Long> textNoteIds = new ArrayList<Long>();
+            Cursor c = db.query(TABLE.DATA, new String[] {
+                    DataColumns.ID, DataColumns.NOTE_ID, DataColumns.MIME_TYPE
+            }, selection, selectionArgs, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                    if (DataConstants.NOTE.equals(c.getString(2))) {
+                        textNoteIds.add(c.getLong(1));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            int count = update(db, TABLE.DATA, values, selection, selectionArgs, false);
+            for (long id : ids) {
+                if (content != null) {
+                    ContentChunks.writeChunks(db, id, content);
+                } else {
+                    ContentChunks.deleteChunks(db, id);
+                }
+            }
+            for (long noteId : textNoteIds) {
+                NoteRevisions.record(db, noteId, fullContent);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return count;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                NoteRevisions.discardCache();
+            }
+        }
+    }
+
+    /**
+     * 按 id 删除一行
+     */
+    private int deleteById(SQLiteDatabase db, String table, String idColumn, String id,
+                           String selection, String[] selectionArgs) {
+        String sql = "DELETE FROM " + table + " WHERE " + idColumn + "=?" + parseSelection(selection);
+        return executeUpdateDelete(db, sql,
+                appendSelectionArgs(new String[] { id }, selectionArgs));
+    }
+
+    /**
+     * 执行一条 UPDATE 或 DELETE 语句，返回受影响的行数。id 等值都通过参数绑定，SQL 文本不随参数变化，
+     * 编译结果由 SQLite 连接自带的语句缓存复用
+     */
+    private static int executeUpdateDelete(SQLiteDatabase db, String sql, Object[] bindArgs) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            if (bindArgs != null) {
+                for (int i = 0; i < bindArgs.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+                }
             }
-            sql.append(selectString);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
         }
+    }
 
-        // 执行 SQL 语句，增加笔记版本号
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+    private static String[] appendSelectionArgs(String[] args, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return args;
+        }
+        String[] result = new String[args.length + selectionArgs.length];
+        System.arraycopy(args, 0, result, 0, args.length);
+        System.arraycopy(selectionArgs, 0, result, args.length, selectionArgs.length);
+        return result;
     }
 
     @Override
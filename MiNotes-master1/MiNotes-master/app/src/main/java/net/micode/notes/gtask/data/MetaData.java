@@ -4,6 +4,7 @@
  */
 package net.micode.notes.gtask.data;
 import android.database.Cursor;
+import android.util.JsonReader;
 import android.util.Log;
 
 import net.micode.notes.tool.GTaskStringUtils;
@@ -11,6 +12,8 @@ import net.micode.notes.tool.GTaskStringUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class MetaData extends Task {
     private final static String TAG = MetaData.class.getSimpleName();
     // 关联的gid
@@ -54,6 +57,21 @@ public class MetaData extends Task {
     @Override
     public void setContentByRemoteJSON(JSONObject js) {
         super.setContentByRemoteJSON(js);
+        parseRelatedGid();
+    }
+
+    /**
+     * 通过流式读取的远程JSON设置元数据内容。
+     * @param reader 位于元数据对象开头的reader。
+     */
+    @Override
+    public void setContentByRemoteReader(JsonReader reader) throws IOException {
+        super.setContentByRemoteReader(reader);
+        parseRelatedGid();
+    }
+
+    // 从备注信息中取出关联的gid
+    private void parseRelatedGid() {
         if (getNotes() != null) {
             try {
                 // 解析备注信息
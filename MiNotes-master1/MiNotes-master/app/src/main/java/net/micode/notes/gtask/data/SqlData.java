@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 
+import net.micode.notes.data.ContentChunks;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
@@ -43,7 +44,7 @@ public class SqlData {
     // PROJECTION_DATA常量数组，用于查询数据表中的字段
     public static final String[] PROJECTION_DATA = new String[] {
             DataColumns.ID, DataColumns.MIME_TYPE, DataColumns.CONTENT, DataColumns.DATA1,
-            DataColumns.DATA3
+            DataColumns.DATA3, DataColumns.CHUNK_COUNT
     };
 
     // 数据表字段的索引常量，用于读取查询结果集
@@ -52,6 +53,7 @@ public class SqlData {
     public static final int DATA_CONTENT_COLUMN = 2;
     public static final int DATA_CONTENT_DATA_1_COLUMN = 3;
     public static final int DATA_CONTENT_DATA_3_COLUMN = 4;
+    public static final int DATA_CHUNK_COUNT_COLUMN = 5;
 
     private ContentResolver mContentResolver; // ContentResolver对象，用于操作数据表
     private boolean mIsCreate; // 是否创建了数据
@@ -86,6 +88,15 @@ public class SqlData {
         mDataId = c.getLong(DATA_ID_COLUMN); // 读取数据ID
         mDataMimeType = c.getString(DATA_MIME_TYPE_COLUMN); // 读取数据类型
         mDataContent = c.getString(DATA_CONTENT_COLUMN); // 读取数据内容
+        int chunkCount = c.getInt(DATA_CHUNK_COUNT_COLUMN);
+        if (chunkCount > 0) {
+            // 过长的内容分块保存，同步时需要完整内容，否则会把截断的内容写回
+            String content = ContentChunks.readContent(mContentResolver, mDataId, chunkCount);
+            if (content == null) {
+                throw new ActionFailureException("read chunked content failed");
+            }
+            mDataContent = content;
+        }
         mDataContentData1 = c.getLong(DATA_CONTENT_DATA_1_COLUMN); // 读取数据字段1
         mDataContentData3 = c.getString(DATA_CONTENT_DATA_3_COLUMN); // 读取数据字段3
     }
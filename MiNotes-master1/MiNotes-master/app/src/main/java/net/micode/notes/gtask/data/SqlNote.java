@@ -27,6 +27,7 @@ import android.util.Log;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.tool.ResourceParser;
@@ -237,6 +238,20 @@ public class SqlNote {
         }
     }
 
+    /**
+     * 远端的摘要可能是完整的文本，本地只保存 {@link NotesDatabaseHelper#SNIPPET_MAX_LENGTH} 个字符的预览，
+     * 截断后再与本地的值比较，避免每次同步都认为摘要有变化
+     */
+    private static String truncateSnippet(String snippet) {
+        if (snippet.length() <= NotesDatabaseHelper.SNIPPET_MAX_LENGTH) {
+            return snippet;
+        }
+        // 按码点截断，与 SQLite 的 substr 一致，也不会拆开代理对
+        int end = snippet.offsetByCodePoints(0, Math.min(NotesDatabaseHelper.SNIPPET_MAX_LENGTH,
+                snippet.codePointCount(0, snippet.length())));
+        return snippet.substring(0, end);
+    }
+
     public boolean setContent(JSONObject js) {
         try {
             // 获取note对象
@@ -248,7 +263,8 @@ public class SqlNote {
             // 如果笔记类型为文件夹
             else if (note.getInt(NoteColumns.TYPE) == Notes.TYPE_FOLDER) {
                 // 可以更新snippet和类型
-                String snippet = note.has(NoteColumns.SNIPPET) ? note.getString(NoteColumns.SNIPPET) : "";
+                String snippet = truncateSnippet(note.has(NoteColumns.SNIPPET) ? note
+                        .getString(NoteColumns.SNIPPET) : "");
                 // 如果是新建笔记或者snippet改变，则将新值放入mDiffNoteValues中
                 if (mIsCreate || !mSnippet.equals(snippet)) {
                     mDiffNoteValues.put(NoteColumns.SNIPPET, snippet);
@@ -318,8 +334,8 @@ public class SqlNote {
                 mParentId = parentId;
 
                 // 获取笔记的摘要
-                String snippet = note.has(NoteColumns.SNIPPET) ? note
-                        .getString(NoteColumns.SNIPPET) : "";
+                String snippet = truncateSnippet(note.has(NoteColumns.SNIPPET) ? note
+                        .getString(NoteColumns.SNIPPET) : "");
                 if (mIsCreate || !mSnippet.equals(snippet)) {
                     mDiffNoteValues.put(NoteColumns.SNIPPET, snippet);
                 }
@@ -513,14 +529,13 @@ public class SqlNote {
 
             // 如果当前 Note 的 DiffNoteValues 中存在修改过的值，则将其更新到数据库中
             if (mDiffNoteValues.size() > 0) {
-                mVersion ++; // 更新 Note 的版本号
                 int result = 0;
                 if (!validateVersion) { // 如果不需要验证版本号，则直接更新数据库
                     result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
                             + NoteColumns.ID + "=?)", new String[] {
                             String.valueOf(mId)
                     });
-                } else { // 如果需要验证版本号，则在更新数据库时指定版本号
+                } else { // 如果需要验证版本号，则只在数据库中的版本号没有被其它修改增加时更新
                     result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
                                     + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
                             new String[] {
@@ -530,6 +545,7 @@ public class SqlNote {
                 if (result == 0) {
                     Log.w(TAG, "there is no update. maybe user updates note when syncing");
                 }
+                mVersion ++; // 更新语句会同时增加数据库中 Note 的版本号
             }
 
             // 如果当前 Note 是普通笔记，则将其关联的 SqlData 数据写入到数据库中
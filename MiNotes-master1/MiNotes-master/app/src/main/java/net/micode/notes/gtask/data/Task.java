@@ -18,6 +18,8 @@ package net.micode.notes.gtask.data;
 
 import android.database.Cursor;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -31,6 +33,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 
 public class Task extends Node {
     private static final String TAG = Task.class.getSimpleName();
@@ -143,7 +147,10 @@ public class Task extends Node {
         if (js != null) {
             try {
                 // id
-                // 设置任务id
+                if (js.has(GTaskStringUtils.GTASK_JSON_ID)) {
+                    setGid(js.getString(GTaskStringUtils.GTASK_JSON_ID)); // 设置任务id
+                }
+
                 // last_modified
                 if (js.has(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
                     setLastModified(js.getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)); // 设置任务最后修改时间
@@ -177,6 +184,35 @@ public class Task extends Node {
         }
     }
 
+    /**
+     * 从流式读取的远程 JSON 中设置任务内容，reader 位于任务对象的开头，读完后位于对象之后。
+     * 字段与 {@link #setContentByRemoteJSON(JSONObject)} 相同，其余字段跳过
+     */
+    public void setContentByRemoteReader(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_ID)) {
+                setGid(reader.nextString()); // 设置任务id
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
+                setLastModified(reader.nextLong()); // 设置任务最后修改时间
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_NAME)) {
+                setName(reader.nextString()); // 设置任务名称
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_NOTES)) {
+                setNotes(reader.nextString()); // 设置任务备注信息
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_DELETED)) {
+                setDeleted(reader.nextBoolean()); // 设置任务是否被删除
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_COMPLETED)) {
+                setCompleted(reader.nextBoolean()); // 设置任务是否已完成
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
     public void setContentByLocalJSON(JSONObject js) {
         if (js == null || !js.has(GTaskStringUtils.META_HEAD_NOTE)
                 || !js.has(GTaskStringUtils.META_HEAD_DATA)) {
@@ -17,6 +17,8 @@
 package net.micode.notes.gtask.data;
 
 import android.database.Cursor;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
@@ -27,6 +29,7 @@ import net.micode.notes.tool.GTaskStringUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 
@@ -139,6 +142,30 @@ public class TaskList extends Node {
         }
     }
 
+    /**
+     * 从流式读取的远程 JSON 中设置内容，只读取 ID、最后修改时间和名称，其余字段跳过
+     *
+     * @param reader 位于任务列表对象开头的 reader
+     */
+    public void setContentByRemoteReader(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_ID)) {
+                setGid(reader.nextString());
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
+                setLastModified(reader.nextLong());
+            } else if (name.equals(GTaskStringUtils.GTASK_JSON_NAME)) {
+                setName(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
     /**
 
      根据本地 JSON 对象设置内容。
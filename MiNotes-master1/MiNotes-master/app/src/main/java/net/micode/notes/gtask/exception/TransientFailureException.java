@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.exception;
+
+/**
+ * A network failure that may go away if the request is sent again
+ */
+public class TransientFailureException extends NetworkFailureException {
+    private static final long serialVersionUID = -3190247384251712307L;
+
+    // the server may have carried out the request before the failure
+    private final boolean mMayBeApplied;
+
+    // the delay in milliseconds the server asks for before retrying, 0 if not given
+    private final long mRetryAfter;
+
+    public TransientFailureException(String paramString, boolean mayBeApplied) {
+        this(paramString, mayBeApplied, 0, null);
+    }
+
+    public TransientFailureException(String paramString, boolean mayBeApplied,
+            long retryAfter, Throwable paramThrowable) {
+        super(paramString, paramThrowable);
+        mMayBeApplied = mayBeApplied;
+        mRetryAfter = retryAfter;
+    }
+
+    public boolean mayBeApplied() {
+        return mMayBeApplied;
+    }
+
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+}
@@ -20,32 +20,32 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
+import android.content.Context;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
+import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.gtask.exception.TransientFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -54,6 +54,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
@@ -70,36 +76,68 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    // max number of actions posted in one request
+    static final int DEFAULT_BATCH_SIZE = 100;
+
+    // max chars of the actions posted in one request
+    static final int DEFAULT_BATCH_LENGTH = 128 * 1024;
+
+    // not in HttpStatus, sent when the client posts too often
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
     private static GTaskClient mInstance = null;
 
-    private DefaultHttpClient mHttpClient;
+    private final GTaskTransport mTransport;
+
+    private final GTaskRetryPolicy mRetryPolicy;
 
-    private String mGetUrl;
+    // used to save the session
+    private Context mContext;
 
-    private String mPostUrl;
+    // base of the gtask urls, a stand-in server can take the place of google
+    private volatile String mServiceUrl;
 
-    private long mClientVersion;
+    private volatile String mGetUrl;
 
-    private boolean mLoggedin;
+    private volatile String mPostUrl;
 
-    private long mLastLoginTime;
+    private volatile long mClientVersion;
+
+    private volatile boolean mLoggedin;
 
     private int mActionId;
 
     private Account mAccount;
 
-    private JSONArray mUpdateArray;
+    // actions waiting to be posted in one batch
+    private ArrayList<PendingAction> mPendingActions;
+
+    private int mPendingLength;
+
+    private int mBatchSize;
+
+    private int mBatchLength;
+
+    // held while a batch is posted, so a retry waits without blocking the queueing threads
+    private final Object mCommitLock = new Object();
+
+    private volatile BatchListener mBatchListener;
 
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = new GTaskTransport();
+        mRetryPolicy = new GTaskRetryPolicy();
+        mContext = null;
+        mServiceUrl = GTASK_URL;
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
         mLoggedin = false;
-        mLastLoginTime = 0;
         mActionId = 1;
         mAccount = null;
-        mUpdateArray = null;
+        mPendingActions = new ArrayList<PendingAction>();
+        mPendingLength = 0;
+        mBatchSize = DEFAULT_BATCH_SIZE;
+        mBatchLength = DEFAULT_BATCH_LENGTH;
     }
 
     public static synchronized GTaskClient getInstance() {
@@ -109,19 +147,15 @@ public class GTaskClient {
         return mInstance;
     }
 
-    public boolean login(Activity activity) {
-        // we suppose that the cookie would expire after 5 minutes
-        // then we need to re-login
-        final long interval = 1000 * 60 * 5;
-        if (mLastLoginTime + interval < System.currentTimeMillis()) {
-            mLoggedin = false;
-        }
+    public synchronized boolean login(Activity activity) {
+        // the session is kept until the server rejects it, see invalidateSession
 
         // need to re-login after account switch
         if (mLoggedin
                 && !TextUtils.equals(getSyncAccount().name, NotesPreferenceActivity
                         .getSyncAccountName(activity))) {
             mLoggedin = false;
+            mTransport.clearSession(activity);
         }
 
         if (mLoggedin) {
@@ -129,7 +163,15 @@ public class GTaskClient {
             return true;
         }
 
-        mLastLoginTime = System.currentTimeMillis();
+        mContext = activity.getApplicationContext();
+        mTransport.closeIdleConnections();
+
+        // go on with the session saved last time if the server still takes it
+        if (resumeSession(activity)) {
+            mLoggedin = true;
+            return true;
+        }
+
         String authToken = loginGoogleAccount(activity, false);
         if (authToken == null) {
             Log.e(TAG, "login google account failed");
@@ -139,7 +181,7 @@ public class GTaskClient {
         // login with custom domain if necessary
         if (!(mAccount.name.toLowerCase().endsWith("gmail.com") || mAccount.name.toLowerCase()
                 .endsWith("googlemail.com"))) {
-            StringBuilder url = new StringBuilder(GTASK_URL).append("a/");
+            StringBuilder url = new StringBuilder(mServiceUrl).append("a/");
             int index = mAccount.name.indexOf('@') + 1;
             String suffix = mAccount.name.substring(index);
             url.append(suffix + "/");
@@ -153,19 +195,51 @@ public class GTaskClient {
 
         // try to login with google official url
         if (!mLoggedin) {
-            mGetUrl = GTASK_GET_URL;
-            mPostUrl = GTASK_POST_URL;
+            mGetUrl = mServiceUrl + "ig";
+            mPostUrl = mServiceUrl + "r/ig";
             if (!tryToLoginGtask(activity, authToken)) {
                 return false;
             }
         }
 
         mLoggedin = true;
+        mTransport.saveSession(mContext, mAccount.name, mGetUrl, mPostUrl);
         return true;
     }
 
-    private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
-        String authToken;
+    /**
+     * Send the requests to another server speaking the gtask protocol, the url ends with "/"
+     * as {@link #GTASK_URL} does. The current session is dropped, the saved one as well
+     */
+    public synchronized void setServiceUrl(Context context, String url) {
+        if (!TextUtils.equals(url, mServiceUrl)) {
+            mServiceUrl = url;
+            mLoggedin = false;
+            mTransport.clearSession(context);
+            mRetryPolicy.reset();
+        }
+    }
+
+    GTaskTransport getTransport() {
+        return mTransport;
+    }
+
+    public void setTimeouts(int connectionTimeout, int socketTimeout) {
+        mTransport.setTimeouts(connectionTimeout, socketTimeout);
+    }
+
+    public void setGzipRequests(boolean gzip) {
+        mTransport.setGzipRequests(gzip);
+    }
+
+    /**
+     * Set how the requests failing on the network are retried, 1 attempt doesn't retry
+     */
+    public void setRetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        mRetryPolicy.setLimits(maxAttempts, baseDelay, maxDelay);
+    }
+
+    private Account getGoogleAccount(Activity activity) {
         AccountManager accountManager = AccountManager.get(activity);
         Account[] accounts = accountManager.getAccountsByType("com.google");
 
@@ -175,17 +249,66 @@ public class GTaskClient {
         }
 
         String accountName = NotesPreferenceActivity.getSyncAccountName(activity);
-        Account account = null;
         for (Account a : accounts) {
             if (a.name.equals(accountName)) {
-                account = a;
-                break;
+                return a;
             }
         }
+        Log.e(TAG, "unable to get an account with the same name in the settings");
+        return null;
+    }
+
+    private boolean resumeSession(Activity activity) {
+        Account account = getGoogleAccount(activity);
+        if (account == null) {
+            return false;
+        }
+        String[] urls = mTransport.restoreSession(activity, account.name);
+        if (urls == null || !mTransport.hasCookie("GTL")) {
+            return false;
+        }
+        if (!urls[0].startsWith(mServiceUrl) || !urls[1].startsWith(mServiceUrl)) {
+            // saved for another server, its cookies must not be sent to this one
+            Log.d(TAG, "saved session belongs to another server");
+            mTransport.clearSession(activity);
+            return false;
+        }
+
+        mAccount = account;
+        mGetUrl = urls[0];
+        mPostUrl = urls[1];
+        try {
+            // the client version is needed for posting anyway
+            HttpResponse response = mTransport.execute(new HttpGet(mGetUrl));
+            mClientVersion = readSetup(response.getEntity(), null);
+        } catch (Exception e) {
+            // the saved session is no longer valid, login from the beginning
+            Log.d(TAG, "resume session failed: " + e.toString());
+            mTransport.clearCookies();
+            return false;
+        }
+        mTransport.saveSession(mContext, mAccount.name, mGetUrl, mPostUrl);
+        Log.d(TAG, "resumed the saved session");
+        return true;
+    }
+
+    // called when the server rejects the session, the next sync will login again
+    private void invalidateSession() {
+        mLoggedin = false;
+        if (mContext != null) {
+            mTransport.clearSession(mContext);
+        } else {
+            mTransport.clearCookies();
+        }
+    }
+
+    private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
+        String authToken;
+        AccountManager accountManager = AccountManager.get(activity);
+        Account account = getGoogleAccount(activity);
         if (account != null) {
             mAccount = account;
         } else {
-            Log.e(TAG, "unable to get an account with the same name in the settings");
             return null;
         }
 
@@ -226,48 +349,24 @@ public class GTaskClient {
     }
 
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // the new session starts without the cookies of the old one
+        mTransport.clearCookies();
 
         // login gtask
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
             HttpGet httpGet = new HttpGet(loginUrl);
             HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = mTransport.execute(httpGet);
 
             // get the cookie now
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
-            boolean hasAuthCookie = false;
-            for (Cookie cookie : cookies) {
-                if (cookie.getName().contains("GTL")) {
-                    hasAuthCookie = true;
-                }
-            }
-            if (!hasAuthCookie) {
+            if (!mTransport.hasCookie("GTL")) {
                 Log.w(TAG, "it seems that there is no auth cookie");
             }
 
             // get the client version
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
-            mClientVersion = js.getLong("v");
-        } catch (JSONException e) {
+            mClientVersion = readSetup(response.getEntity(), null);
+        } catch (MalformedJsonException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             return false;
@@ -280,7 +379,17 @@ public class GTaskClient {
         return true;
     }
 
-    private int getActionId() {
+    // the page of the get url sets up the web client with a json object
+    private long readSetup(HttpEntity entity, ArrayList<TaskList> lists) throws IOException {
+        Reader in = getResponseReader(entity);
+        try {
+            return GTaskResponseReader.readSetup(in, lists);
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized int getActionId() {
         return mActionId++;
     }
 
@@ -291,21 +400,29 @@ public class GTaskClient {
         return httpPost;
     }
 
-    private String getResponseContent(HttpEntity entity) throws IOException {
+    private InputStream getResponseStream(HttpEntity entity) throws IOException {
         String contentEncoding = null;
         if (entity.getContentEncoding() != null) {
             contentEncoding = entity.getContentEncoding().getValue();
             Log.d(TAG, "encoding: " + contentEncoding);
         }
 
-        InputStream input = entity.getContent();
+        InputStream input = mTransport.countReceived(entity.getContent());
         if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
+            input = new GZIPInputStream(input);
         } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
             Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
+            input = new InflaterInputStream(input, inflater);
         }
+        return input;
+    }
+
+    private Reader getResponseReader(HttpEntity entity) throws IOException {
+        return new BufferedReader(new InputStreamReader(getResponseStream(entity), "UTF-8"));
+    }
 
+    private String getResponseContent(HttpEntity entity) throws IOException {
+        InputStream input = getResponseStream(entity);
         try {
             InputStreamReader isr = new InputStreamReader(input);
             BufferedReader br = new BufferedReader(isr);
@@ -323,35 +440,92 @@ public class GTaskClient {
         }
     }
 
-    private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+    /**
+     * Turns the content of a response into the result of the request
+     */
+    private interface ResponseHandler<T> {
+        T handleResponse(HttpEntity entity) throws IOException, JSONException;
+    }
+
+    private JSONObject postRequest(JSONObject js, boolean replayable)
+            throws NetworkFailureException {
+        return postRequest(js, replayable, new ResponseHandler<JSONObject>() {
+            public JSONObject handleResponse(HttpEntity entity)
+                    throws IOException, JSONException {
+                return new JSONObject(getResponseContent(entity));
+            }
+        });
+    }
+
+    /**
+     * Post the request, it is sent again on transient failures as long as the retry policy
+     * allows
+     *
+     * @param replayable whether the request does the same if the server gets it twice
+     */
+    private <T> T postRequest(final JSONObject js, boolean replayable,
+            final ResponseHandler<T> handler) throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
+        return mRetryPolicy.execute(new GTaskRetryPolicy.Request<T>() {
+            public T execute() throws NetworkFailureException {
+                return postRequestOnce(js, handler);
+            }
+        }, replayable);
+    }
+
+    private <T> T postRequestOnce(JSONObject js, ResponseHandler<T> handler)
+            throws NetworkFailureException {
         HttpPost httpPost = createHttpPost();
         try {
             LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
             list.add(new BasicNameValuePair("r", js.toString()));
             UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
+            HttpEntity sent = mTransport.prepareEntity(entity);
+            httpPost.setEntity(sent);
 
             // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
+            HttpResponse response = mTransport.execute(httpPost);
+            int status = response.getStatusLine().getStatusCode();
+            if (sent != entity && mTransport.isGzipRejected(sent, status)) {
+                // rejected before it was handled, so it is safe to send it again
+                response.getEntity().consumeContent();
+                httpPost = createHttpPost();
+                httpPost.setEntity(entity);
+                response = mTransport.execute(httpPost);
+                status = response.getStatusLine().getStatusCode();
+            }
+            if (status == HttpStatus.SC_UNAUTHORIZED || status == HttpStatus.SC_FORBIDDEN) {
+                response.getEntity().consumeContent();
+                invalidateSession();
+                throw new NetworkFailureException("postRequest: session expired");
+            }
+            checkServerError(response);
+            return handler.handleResponse(response.getEntity());
 
+        } catch (NetworkFailureException e) {
+            throw e;
+        } catch (MalformedJsonException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            // most likely a login page, the session is not valid any more
+            invalidateSession();
+            throw new ActionFailureException("unable to read response content");
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new NetworkFailureException("postRequest failed");
         } catch (IOException e) {
             Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("postRequest failed");
+            throw getTransientFailure("postRequest failed", e);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
+            // most likely a login page, the session is not valid any more
+            invalidateSession();
             throw new ActionFailureException("unable to convert response content to jsonobject");
         } catch (Exception e) {
             Log.e(TAG, e.toString());
@@ -360,105 +534,181 @@ public class GTaskClient {
         }
     }
 
-    public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+    /**
+     * Server errors and throttling are worth another try, the other errors show up when the
+     * content is handled
+     */
+    private void checkServerError(HttpResponse response) throws IOException,
+            TransientFailureException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status < HttpStatus.SC_INTERNAL_SERVER_ERROR && status != SC_TOO_MANY_REQUESTS) {
+            return;
+        }
+        if (response.getEntity() != null) {
+            response.getEntity().consumeContent();
+        }
+        // the request is turned away rather than failed while being carried out
+        boolean mayBeApplied = status != HttpStatus.SC_SERVICE_UNAVAILABLE
+                && status != SC_TOO_MANY_REQUESTS;
+        long retryAfter = 0;
+        Header header = response.getFirstHeader("Retry-After");
+        if (header != null) {
+            try {
+                retryAfter = Long.parseLong(header.getValue().trim()) * 1000;
+            } catch (NumberFormatException e) {
+                // an http date, the own backoff is used instead
+            }
+        }
+        throw new TransientFailureException("server error " + status, mayBeApplied, retryAfter,
+                null);
+    }
 
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    // a request failing before it is sent can't have reached the server
+    private static TransientFailureException getTransientFailure(String message,
+            IOException e) {
+        boolean mayBeApplied = !(e instanceof ConnectException
+                || e instanceof ConnectTimeoutException || e instanceof UnknownHostException);
+        return new TransientFailureException(message + ": " + e, mayBeApplied, 0, e);
+    }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    /**
+     * Called with the result of a queued action once its batch has been posted
+     */
+    public interface ActionCallback {
+        void onActionResult(JSONObject result) throws NetworkFailureException;
+    }
 
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+    /**
+     * Told around each post of the queued actions, so that what must be stored before the
+     * actions reach the server, and what their results bring, is written once per batch
+     */
+    public interface BatchListener {
+        // the batch is about to be posted
+        void onBatchPosting();
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
-        }
+        // the results of the batch have been dispatched, or the post has failed
+        void onBatchDone();
     }
 
-    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+    private static class PendingAction {
+        final int mActionId;
 
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+        final JSONObject mAction;
 
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        // length of the action in the posted json
+        final int mLength;
 
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+        final ActionCallback mCallback;
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
+        // the node being created, null for the other actions
+        final Node mCreated;
+
+        // updates, moves and deletes end in the same state when done twice, creates don't
+        final boolean mReplayable;
+
+        PendingAction(int actionId, JSONObject action, Node created, ActionCallback callback) {
+            mActionId = actionId;
+            mAction = action;
+            mLength = action.toString().length();
+            mCreated = created;
+            mCallback = callback;
+            mReplayable = !GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(
+                    action.optString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE));
         }
     }
 
-    public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
-            try {
-                JSONObject jsPost = new JSONObject();
+    public synchronized void setBatchLimits(int maxActions, int maxLength) {
+        mBatchSize = Math.max(maxActions, 1);
+        mBatchLength = Math.max(maxLength, 1);
+    }
 
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
+    public void setBatchListener(BatchListener listener) {
+        mBatchListener = listener;
+    }
 
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    public void createTask(Task task) throws NetworkFailureException {
+        createTask(task, null);
+    }
 
-                postRequest(jsPost);
-                mUpdateArray = null;
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
+    /**
+     * Queue the creation of the task, the gid of the task is set when the batch has been
+     * posted, right before the callback is called
+     */
+    public void createTask(final Task task, final ActionCallback callback)
+            throws NetworkFailureException {
+        if (task.getParent().getGid() == null) {
+            // the parent list is still being created
+            commitUpdate();
+        }
+        // a prior sibling without gid is queued as well, the index places the task then
+        int actionId = getActionId();
+        enqueueAction(actionId, task.getCreateAction(actionId), task, new ActionCallback() {
+            public void onActionResult(JSONObject result) throws NetworkFailureException {
+                try {
+                    task.setGid(result.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+                } catch (JSONException e) {
+                    Log.e(TAG, e.toString());
+                    e.printStackTrace();
+                    throw new ActionFailureException("create task: handing jsonobject failed");
+                }
+                if (callback != null) {
+                    callback.onActionResult(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Create the task list right away, the tasks of the list can't be created without its gid
+     */
+    public void createTaskList(final TaskList tasklist)
+            throws NetworkFailureException {
+        int actionId = getActionId();
+        enqueueAction(actionId, tasklist.getCreateAction(actionId), tasklist,
+                new ActionCallback() {
+            public void onActionResult(JSONObject result) {
+                try {
+                    tasklist.setGid(result.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+                } catch (JSONException e) {
+                    Log.e(TAG, e.toString());
+                    e.printStackTrace();
+                    throw new ActionFailureException("create tasklist: handing jsonobject failed");
+                }
+            }
+        });
+        commitUpdate();
+    }
+
+    /**
+     * Post all the queued actions, the callbacks may queue more actions which are posted too.
+     * The client itself is not locked while posting, the retries can take a while
+     */
+    public void commitUpdate() throws NetworkFailureException {
+        synchronized (mCommitLock) {
+            ArrayList<PendingAction> batch;
+            while ((batch = takePendingActions()) != null) {
+                postPendingActions(batch);
             }
         }
     }
 
     public void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
-            }
-
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+            int actionId = getActionId();
+            enqueueAction(actionId, node.getUpdateAction(actionId), null, null);
         }
     }
 
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
+            int actionId = getActionId();
 
             // action_list
             action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
                     GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
+            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
             action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
             if (preParent == curParent && task.getPriorSibling() != null) {
                 // put prioring_sibing_id only if moving within the tasklist and
@@ -471,13 +721,7 @@ public class GTaskClient {
                 // put the dest_list only if moving between tasklists
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
             }
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
+            enqueueAction(actionId, action, null, null);
 
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -487,68 +731,301 @@ public class GTaskClient {
     }
 
     public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+        node.setDeleted(true);
+        int actionId = getActionId();
+        enqueueAction(actionId, node.getUpdateAction(actionId), null, null);
+    }
 
-            // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    // the batch is posted first if the action doesn't fit in it
+    private void enqueueAction(int actionId, JSONObject action, Node created,
+            ActionCallback callback) throws NetworkFailureException {
+        PendingAction pending = new PendingAction(actionId, action, created, callback);
+        if (isBatchFull(pending)) {
+            commitUpdate();
+        }
+        synchronized (this) {
+            mPendingActions.add(pending);
+            mPendingLength += pending.mLength;
+        }
+    }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    private synchronized boolean isBatchFull(PendingAction pending) {
+        return !mPendingActions.isEmpty() && (mPendingActions.size() >= mBatchSize
+                || mPendingLength + pending.mLength > mBatchLength);
+    }
 
-            postRequest(jsPost);
-            mUpdateArray = null;
+    private synchronized ArrayList<PendingAction> takePendingActions() {
+        if (mPendingActions.isEmpty()) {
+            return null;
+        }
+        ArrayList<PendingAction> batch = mPendingActions;
+        mPendingActions = new ArrayList<PendingAction>();
+        mPendingLength = 0;
+        return batch;
+    }
+
+    private void postPendingActions(ArrayList<PendingAction> batch)
+            throws NetworkFailureException {
+        BatchListener listener = mBatchListener;
+        if (listener != null) {
+            listener.onBatchPosting();
+        }
+        try {
+            boolean replayable = isReplayable(batch);
+
+            // a batch with creates is only sent again as it is if it never reached the server
+            JSONObject jsResponse;
+            try {
+                jsResponse = postRequest(getBatchPost(batch), replayable);
+            } catch (TransientFailureException e) {
+                if (!e.mayBeApplied() || replayable) {
+                    throw e;
+                }
+                resendLostBatch(batch, e);
+                return;
+            }
+            dispatchResults(batch, jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS));
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
+            throw new ActionFailureException("commit update: handing jsonobject failed");
+        } finally {
+            if (listener != null) {
+                listener.onBatchDone();
+            }
+        }
+    }
+
+    private JSONObject getBatchPost(List<PendingAction> batch) throws JSONException {
+        JSONObject jsPost = new JSONObject();
+        JSONArray actionList = new JSONArray();
+
+        // action_list
+        for (PendingAction pending : batch) {
+            actionList.put(pending.mAction);
+        }
+        jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+
+        // client_version
+        jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        return jsPost;
+    }
+
+    private static boolean isReplayable(List<PendingAction> batch) {
+        for (PendingAction pending : batch) {
+            if (!pending.mReplayable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The answer of a batch with creates is lost and the server may have carried it out. A
+     * node found in its list by name and notes, with a gid the sync doesn't know yet, is
+     * taken as created. The rest of the batch is sent again, with the creates that never
+     * made it
+     */
+    private void resendLostBatch(ArrayList<PendingAction> batch,
+            TransientFailureException failure) throws NetworkFailureException, JSONException {
+        Log.w(TAG, "looking up the creates of a lost answer: " + failure.getMessage());
+        JSONArray results = new JSONArray();
+        ArrayList<PendingAction> resend = new ArrayList<PendingAction>();
+        HashSet<String> found = new HashSet<String>();
+        HashMap<String, ArrayList<Task>> remoteTasks = new HashMap<String, ArrayList<Task>>();
+        ArrayList<TaskList> remoteLists = null;
+        for (PendingAction pending : batch) {
+            String gid = null;
+            if (pending.mCreated instanceof TaskList) {
+                // the folders are matched by name, a list of the name is the created one
+                if (remoteLists == null) {
+                    remoteLists = getTaskLists();
+                }
+                gid = findCreated(remoteLists, pending.mCreated, null, found);
+            } else if (pending.mCreated instanceof Task) {
+                TaskList parent = ((Task) pending.mCreated).getParent();
+                ArrayList<Task> tasks = remoteTasks.get(parent.getGid());
+                if (tasks == null) {
+                    tasks = fetchTaskList(parent.getGid(), GTaskResponseReader.TASKS);
+                    remoteTasks.put(parent.getGid(), tasks);
+                }
+                HashSet<String> known = new HashSet<String>();
+                for (Task child : parent.getChildTaskList()) {
+                    if (child.getGid() != null) {
+                        known.add(child.getGid());
+                    }
+                }
+                gid = findCreated(tasks, pending.mCreated, known, found);
+            }
+
+            if (gid != null) {
+                found.add(gid);
+                JSONObject result = new JSONObject();
+                result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, pending.mActionId);
+                result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, gid);
+                results.put(result);
+            } else {
+                resend.add(pending);
+            }
+        }
+        Log.d(TAG, "found " + found.size() + " created nodes, sending " + resend.size()
+                + " of " + batch.size() + " actions again");
+
+        if (!resend.isEmpty()) {
+            // another lost answer is left to the sync journal
+            JSONObject jsResponse = postRequest(getBatchPost(resend), isReplayable(resend));
+            JSONArray resent = jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+            int count = resent != null ? resent.length() : 0;
+            for (int i = 0; i < count; i++) {
+                JSONObject result = resent.getJSONObject(i);
+                if (!result.has(GTaskStringUtils.GTASK_JSON_ACTION_ID) && count == resend.size()) {
+                    // results without action ids come in the order of the actions
+                    result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, resend.get(i).mActionId);
+                }
+                results.put(result);
+            }
+        }
+        dispatchResults(batch, results);
+    }
+
+    private static String findCreated(List<? extends Node> nodes, Node created,
+            HashSet<String> known, HashSet<String> found) {
+        String notes = created instanceof Task ? ((Task) created).getNotes() : null;
+        for (Node node : nodes) {
+            String gid = node.getGid();
+            if (gid == null || found.contains(gid) || (known != null && known.contains(gid))
+                    || !TextUtils.equals(node.getName(), created.getName())) {
+                continue;
+            }
+            if (node instanceof Task && !TextUtils.equals(emptyIfNull(((Task) node).getNotes()),
+                    emptyIfNull(notes))) {
+                continue;
+            }
+            return gid;
+        }
+        return null;
+    }
+
+    private static String emptyIfNull(String s) {
+        return s != null ? s : "";
+    }
+
+    private void dispatchResults(ArrayList<PendingAction> batch, JSONArray results)
+            throws NetworkFailureException, JSONException {
+        HashMap<Integer, JSONObject> resultMap = new HashMap<Integer, JSONObject>();
+        int count = results != null ? results.length() : 0;
+        for (int i = 0; i < count; i++) {
+            JSONObject result = results.getJSONObject(i);
+            if (result.has(GTaskStringUtils.GTASK_JSON_ACTION_ID)) {
+                resultMap.put(result.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID), result);
+            }
+        }
+
+        // every callback runs even if an earlier one fails, the results of the actions the
+        // server has applied must not be lost. The first failure is thrown afterwards
+        Exception failure = null;
+        int failures = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            PendingAction pending = batch.get(i);
+            if (pending.mCallback == null) {
+                continue;
+            }
+            JSONObject result = resultMap.get(pending.mActionId);
+            if (result == null && resultMap.isEmpty() && count == batch.size()) {
+                // results without action ids come in the order of the actions
+                result = results.getJSONObject(i);
+            }
+            try {
+                if (result == null) {
+                    throw new ActionFailureException("commit update: result of action "
+                            + pending.mActionId + " is missing");
+                }
+                pending.mCallback.onActionResult(result);
+            } catch (NetworkFailureException e) {
+                Log.e(TAG, "result of action " + pending.mActionId + " failed: " + e);
+                failures++;
+                failure = failure != null ? failure : e;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "result of action " + pending.mActionId + " failed: " + e);
+                failures++;
+                failure = failure != null ? failure : e;
+            }
+        }
+
+        if (failure != null) {
+            Log.e(TAG, failures + " of " + batch.size() + " action results failed");
+            if (failure instanceof NetworkFailureException) {
+                throw (NetworkFailureException) failure;
+            }
+            throw (RuntimeException) failure;
         }
     }
 
-    public JSONArray getTaskLists() throws NetworkFailureException {
+    public ArrayList<TaskList> getTaskLists() throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
+        return mRetryPolicy.execute(new GTaskRetryPolicy.Request<ArrayList<TaskList>>() {
+            public ArrayList<TaskList> execute() throws NetworkFailureException {
+                return getTaskListsOnce();
+            }
+        }, true);
+    }
+
+    private ArrayList<TaskList> getTaskListsOnce() throws NetworkFailureException {
         try {
             HttpGet httpGet = new HttpGet(mGetUrl);
             HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = mTransport.execute(httpGet);
+            checkServerError(response);
 
             // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
-            return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
+            ArrayList<TaskList> lists = new ArrayList<TaskList>();
+            readSetup(response.getEntity(), lists);
+            return lists;
+        } catch (MalformedJsonException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            // the session has expired if the login page comes back
+            invalidateSession();
+            throw new ActionFailureException("get task lists: handing setup data failed");
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new NetworkFailureException("gettasklists: httpget failed");
         } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            throw getTransientFailure("gettasklists: httpget failed", e);
+        } catch (IllegalStateException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
-        } catch (JSONException e) {
+            throw new ActionFailureException("get task lists: handing setup data failed");
+        } catch (NumberFormatException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("get task lists: handing jasonobject failed");
+            throw new ActionFailureException("get task lists: handing setup data failed");
         }
     }
 
-    public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+    public ArrayList<Task> getTaskList(String listGid) throws NetworkFailureException {
+        return getTaskList(listGid, GTaskResponseReader.TASKS);
+    }
+
+    public ArrayList<MetaData> getMetaList(String listGid) throws NetworkFailureException {
+        return getTaskList(listGid, GTaskResponseReader.META_DATA);
+    }
+
+    private <T extends Task> ArrayList<T> getTaskList(String listGid,
+            GTaskResponseReader.TaskFactory<T> factory) throws NetworkFailureException {
         commitUpdate();
+        return fetchTaskList(listGid, factory);
+    }
+
+    // the queued actions are not posted first
+    private <T extends Task> ArrayList<T> fetchTaskList(String listGid,
+            final GTaskResponseReader.TaskFactory<T> factory) throws NetworkFailureException {
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
@@ -566,8 +1043,17 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            // the tasks are built while the response is read
+            return postRequest(jsPost, true, new ResponseHandler<ArrayList<T>>() {
+                public ArrayList<T> handleResponse(HttpEntity entity) throws IOException {
+                    Reader in = getResponseReader(entity);
+                    try {
+                        return GTaskResponseReader.readTasks(in, factory);
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -579,7 +1065,8 @@ public class GTaskClient {
         return mAccount;
     }
 
-    public void resetUpdateArray() {
-        mUpdateArray = null;
+    public synchronized void resetUpdateArray() {
+        mPendingActions.clear();
+        mPendingLength = 0;
     }
 }
@@ -37,15 +37,23 @@ import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class GTaskManager {
@@ -61,6 +69,8 @@ public class GTaskManager {
 
     public static final int STATE_SYNC_CANCELLED = 4;
 
+    static final int DEFAULT_FETCH_THREADS = 4;
+
     private static GTaskManager mInstance = null;
 
     private Activity mActivity;
@@ -71,7 +81,7 @@ public class GTaskManager {
 
     private boolean mSyncing;
 
-    private boolean mCancelled;
+    private volatile boolean mCancelled;
 
     private HashMap<String, TaskList> mGTaskListHashMap;
 
@@ -87,6 +97,24 @@ public class GTaskManager {
 
     private HashMap<Long, String> mNidToGid;
 
+    // Whether only the task lists changed since the last sync are loaded
+    private boolean mIncremental;
+
+    // Task lists whose tasks are loaded, the others only have the list node
+    private HashSet<String> mLoadedListGids;
+
+    // Local folders of the task lists not loaded, their notes are skipped
+    private HashSet<Long> mSkippedFolderIds;
+
+    // Max number of task lists fetched at the same time
+    private int mFetchThreads;
+
+    // Journal of the running sync, an interrupted sync resumes from it
+    private GTaskSyncJournal mJournal;
+
+    // Whether the sync goes on from the journal of an interrupted one
+    private boolean mResumed;
+
     private GTaskManager() {
         mSyncing = false;
         mCancelled = false;
@@ -97,6 +125,9 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mLoadedListGids = new HashSet<String>();
+        mSkippedFolderIds = new HashSet<Long>();
+        mFetchThreads = DEFAULT_FETCH_THREADS;
     }
 
     public static synchronized GTaskManager getInstance() {
@@ -111,6 +142,11 @@ public class GTaskManager {
         mActivity = activity;
     }
 
+    public synchronized void setFetchThreads(int count) {
+        // 1 fetches the task lists one after another
+        mFetchThreads = Math.max(count, 1);
+    }
+
     public int sync(Context context, GTaskASyncTask asyncTask) {
         if (mSyncing) {
             Log.d(TAG, "Sync is in progress");
@@ -126,6 +162,13 @@ public class GTaskManager {
         mLocalDeleteIdMap.clear();
         mGidToNid.clear();
         mNidToGid.clear();
+        mLoadedListGids.clear();
+        mSkippedFolderIds.clear();
+        mResumed = false;
+        // a sync point exists only after a successful sync of the current account
+        mIncremental = NotesPreferenceActivity.getLastSyncTime(mContext) > 0;
+        long startTime = System.currentTimeMillis();
+        GTaskClient.getInstance().getTransport().resetStats();
 
         try {
             GTaskClient client = GTaskClient.getInstance();
@@ -138,13 +181,45 @@ public class GTaskManager {
                 }
             }
 
-            // get the task list from google
-            asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
-            initGTaskList();
+            if (mCancelled) {
+                return STATE_SYNC_CANCELLED;
+            }
+
+            mJournal = new GTaskSyncJournal(mContentResolver, client.getSyncAccount().name);
+            final GTaskSyncJournal journal = mJournal;
+            client.setBatchListener(new GTaskClient.BatchListener() {
+                public void onBatchPosting() {
+                    journal.writePendingCreates();
+                }
+
+                public void onBatchDone() {
+                    journal.writeCreatedGids();
+                }
+            });
+            if (mJournal.begin() == GTaskSyncJournal.PHASE_CONTENT_SYNCED) {
+                // the content has been synced by the interrupted sync, only the sync ids of
+                // the lists it has synced are left to refresh
+                Log.d(TAG, "resume the interrupted sync");
+                mResumed = true;
+                mIncremental = true;
+                mLoadedListGids.addAll(mJournal.getSyncedListGids());
+                collectSkippedFolders();
+                asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
+                refreshLocalSyncId();
+            } else {
+                // get the task list from google
+                asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
+                initGTaskList(null);
+                recoverPendingCreates();
+
+                // do content sync work
+                asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
+                syncContent();
+            }
 
-            // do content sync work
-            asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
-            syncContent();
+            if (!mCancelled) {
+                mJournal.clear();
+            }
         } catch (NetworkFailureException e) {
             Log.e(TAG, e.toString());
             return STATE_NETWORK_ERROR;
@@ -162,91 +237,475 @@ public class GTaskManager {
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mLoadedListGids.clear();
+            mSkippedFolderIds.clear();
+            mJournal = null;
+            GTaskClient.getInstance().setBatchListener(null);
+            Log.d(TAG, (mResumed ? "resumed" : mIncremental ? "incremental" : "full")
+                    + " sync took " + (System.currentTimeMillis() - startTime) + "ms, "
+                    + GTaskClient.getInstance().getTransport().getStats());
             mSyncing = false;
         }
 
         return mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
     }
 
-    private void initGTaskList() throws NetworkFailureException {
+    /**
+     * Load the task lists from google. In incremental mode only the lists changed since the
+     * last sync and the lists holding local changes are loaded with their tasks, or exactly
+     * the lists in loadGids if given. It falls back to a full load when the local sync state
+     * is not valid
+     */
+    private void initGTaskList(HashSet<String> loadGids) throws NetworkFailureException {
         if (mCancelled)
             return;
         GTaskClient client = GTaskClient.getInstance();
+        ArrayList<TaskList> taskLists = client.getTaskLists();
+
+        if (loadGids != null) {
+            mLoadedListGids.clear();
+            mLoadedListGids.addAll(loadGids);
+        } else if (mIncremental && !collectChangedLists(taskLists)) {
+            Log.d(TAG, "local sync state is not valid, fall back to full sync");
+            mIncremental = false;
+            mLoadedListGids.clear();
+            mSkippedFolderIds.clear();
+        }
+
+        // fetch the tasks of all the lists to load at once, the meta list goes first
+        String metaGid = null;
+        ArrayList<String> fetchGids = new ArrayList<String>();
+        for (TaskList tasklist : taskLists) {
+            String gid = tasklist.getGid();
+            String name = tasklist.getName();
+
+            if (name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
+                // meta data is needed only when some notes are going to be synced
+                if (!mIncremental || !mLoadedListGids.isEmpty()) {
+                    metaGid = gid;
+                }
+            } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
+                    && (!mIncremental || mLoadedListGids.contains(gid))) {
+                fetchGids.add(gid);
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(
+                Math.min(mFetchThreads, fetchGids.size() + 1), 1));
         try {
-            JSONArray jsTaskLists = client.getTaskLists();
-
-            // init meta list first
-            mMetaList = null;
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name
-                        .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
-                    mMetaList = new TaskList();
-                    mMetaList.setContentByRemoteJSON(object);
-
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
-                        }
-                    }
+            Future<ArrayList<MetaData>> metaFetch = metaGid != null ? fetchMetaList(executor,
+                    metaGid) : null;
+            initGTaskList(taskLists, metaFetch, fetchTaskLists(executor, fetchGids));
+            if (loadGids == null && mIncremental) {
+                loadListsOfMissingTasks(executor, metaFetch != null);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Build the task lists in the order google returns them, the tasks of each list are taken
+     * from its fetch once it is done
+     */
+    private void initGTaskList(ArrayList<TaskList> taskLists,
+            Future<ArrayList<MetaData>> metaFetch,
+            HashMap<String, Future<ArrayList<Task>>> fetches) throws NetworkFailureException {
+        // init meta list first
+        mMetaList = null;
+        for (TaskList tasklist : taskLists) {
+            if (tasklist.getName().equals(
+                    GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
+                mMetaList = tasklist;
+
+                // meta data is needed only when some notes are going to be synced
+                if (metaFetch != null) {
+                    loadMetaData(metaFetch);
+                }
+            }
+        }
+
+        // create meta list if not existed
+        if (mMetaList == null) {
+            mMetaList = new TaskList();
+            mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + GTaskStringUtils.FOLDER_META);
+            GTaskClient.getInstance().createTaskList(mMetaList);
+        }
+
+        // init task list
+        for (TaskList tasklist : taskLists) {
+            String gid = tasklist.getGid();
+            String name = tasklist.getName();
+
+            if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
+                    && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                            + GTaskStringUtils.FOLDER_META)) {
+                mGTaskListHashMap.put(gid, tasklist);
+                mGTaskHashMap.put(gid, tasklist);
+
+                if (fetches.containsKey(gid)) {
+                    loadTasks(tasklist, fetches.get(gid));
                 }
             }
+        }
+    }
 
-            // create meta list if not existed
-            if (mMetaList == null) {
-                mMetaList = new TaskList();
-                mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                        + GTaskStringUtils.FOLDER_META);
-                GTaskClient.getInstance().createTaskList(mMetaList);
-            }
-
-            // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    TaskList tasklist = new TaskList();
-                    tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);
-
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
-                        if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
-                            tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
-                        }
+    private void loadMetaData(Future<ArrayList<MetaData>> metaFetch)
+            throws NetworkFailureException {
+        for (MetaData metaData : getFetchResult(metaFetch)) {
+            if (metaData.isWorthSaving()) {
+                mMetaList.addChildTask(metaData);
+                if (metaData.getGid() != null) {
+                    mMetaHashMap.put(metaData.getRelatedGid(), metaData);
+                }
+            }
+        }
+    }
+
+    private void loadTasks(TaskList tasklist, Future<ArrayList<Task>> fetch)
+            throws NetworkFailureException {
+        mLoadedListGids.add(tasklist.getGid());
+        for (Task task : getFetchResult(fetch)) {
+            if (task.isWorthSaving()) {
+                task.setMetaInfo(mMetaHashMap.get(task.getGid()));
+                tasklist.addChildTask(task);
+                mGTaskHashMap.put(task.getGid(), task);
+            }
+        }
+    }
+
+    /**
+     * A locally changed note whose task is not in the loaded lists has been moved to another
+     * folder, possibly one not bound to a list yet, so its task is in a list that may not be
+     * loaded. The other lists are loaded as well in that case, otherwise the note would be
+     * taken for deleted remotely and its task would be left in the old list
+     */
+    private void loadListsOfMissingTasks(ExecutorService executor, boolean metaLoaded)
+            throws NetworkFailureException {
+        if (mCancelled || !hasMissingTasks()) {
+            return;
+        }
+        ArrayList<String> fetchGids = new ArrayList<String>();
+        for (String gid : mGTaskListHashMap.keySet()) {
+            if (!mLoadedListGids.contains(gid)) {
+                fetchGids.add(gid);
+            }
+        }
+        if (fetchGids.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "tasks of changed notes are missing, load the other "
+                + fetchGids.size() + " task lists");
+        Future<ArrayList<MetaData>> metaFetch = metaLoaded ? null
+                : fetchMetaList(executor, mMetaList.getGid());
+        HashMap<String, Future<ArrayList<Task>>> fetches = fetchTaskLists(executor, fetchGids);
+        if (metaFetch != null) {
+            loadMetaData(metaFetch);
+        }
+        for (String gid : fetchGids) {
+            loadTasks(mGTaskListHashMap.get(gid), fetches.get(gid));
+        }
+        collectSkippedFolders();
+    }
+
+    /**
+     * Whether a locally modified or trashed note synced this time has a gid that is not among
+     * the loaded tasks
+     */
+    private boolean hasMissingTasks() {
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    getLoadedNoteSelection("(type=? AND gtask_id<>''"
+                            + " AND (local_modified=1 OR parent_id=?))"), new String[] {
+                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+                    }, null);
+            if (c == null) {
+                Log.w(TAG, "failed to query locally modified notes");
+                // can't tell, load all the lists to be safe
+                return true;
+            }
+            while (c.moveToNext()) {
+                if (!mGTaskHashMap.containsKey(c.getString(SqlNote.GTASK_ID_COLUMN))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Start fetching the tasks of the given lists, at most mFetchThreads of them are fetched
+     * at the same time
+     */
+    private HashMap<String, Future<ArrayList<Task>>> fetchTaskLists(ExecutorService executor,
+            List<String> gids) {
+        final GTaskClient client = GTaskClient.getInstance();
+        HashMap<String, Future<ArrayList<Task>>> fetches =
+                new HashMap<String, Future<ArrayList<Task>>>();
+        for (final String gid : gids) {
+            fetches.put(gid, executor.submit(new Callable<ArrayList<Task>>() {
+                public ArrayList<Task> call() throws NetworkFailureException {
+                    if (mCancelled) {
+                        // the result is not going to be used
+                        return new ArrayList<Task>();
                     }
+                    return client.getTaskList(gid);
                 }
+            }));
+        }
+        return fetches;
+    }
+
+    private Future<ArrayList<MetaData>> fetchMetaList(ExecutorService executor,
+            final String gid) {
+        return executor.submit(new Callable<ArrayList<MetaData>>() {
+            public ArrayList<MetaData> call() throws NetworkFailureException {
+                return GTaskClient.getInstance().getMetaList(gid);
             }
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("initGTaskList: handing JSONObject failed");
+        });
+    }
+
+    private <T> T getFetchResult(Future<T> fetch) throws NetworkFailureException {
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkFailureException("fetch task list interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ActionFailureException("fetch task list failed");
         }
     }
 
+    /**
+     * Find the task lists to load in incremental mode: a list is loaded if its last_modified
+     * differs from the sync id recorded in its local folder, if its folder holds local
+     * changes, or if it has no local folder yet. The notes of the other folders are skipped
+     * in this sync
+     *
+     * @return false if the local sync state doesn't match the remote lists
+     */
+    private boolean collectChangedLists(ArrayList<TaskList> taskLists) {
+        mLoadedListGids.clear();
+        mSkippedFolderIds.clear();
+
+        // remote lists by gid, the meta list must exist after a sync
+        HashMap<String, Long> remoteLastModified = new HashMap<String, Long>();
+        boolean hasMetaList = false;
+        for (TaskList tasklist : taskLists) {
+            String name = tasklist.getName();
+            if (name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
+                hasMetaList = true;
+            } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                remoteLastModified.put(tasklist.getGid(), tasklist.getLastModified());
+            }
+        }
+        if (!hasMetaList) {
+            return false;
+        }
+
+        // local folders bound to remote lists
+        HashMap<Long, String> folderGids = new HashMap<Long, String>();
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    "(type<>? AND gtask_id<>'')", new String[] {
+                        String.valueOf(Notes.TYPE_NOTE)
+                    }, null);
+            if (c == null) {
+                Log.w(TAG, "failed to query synced folders");
+                return false;
+            }
+            while (c.moveToNext()) {
+                String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
+                Long lastModified = remoteLastModified.get(gid);
+                if (lastModified == null) {
+                    // the list has been removed remotely
+                    return false;
+                }
+                long folderId = c.getLong(SqlNote.ID_COLUMN);
+                folderGids.put(folderId, gid);
+                if (c.getLong(SqlNote.SYNC_ID_COLUMN) != lastModified) {
+                    mLoadedListGids.add(gid);
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+                c = null;
+            }
+        }
+        if (!folderGids.containsKey((long) Notes.ID_ROOT_FOLDER)) {
+            return false;
+        }
+
+        // folders holding local changes, a trashed note is looked up in its original folder
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    "(type=? AND (local_modified=1 OR parent_id=?))", new String[] {
+                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
+                    }, null);
+            if (c == null) {
+                Log.w(TAG, "failed to query locally modified notes");
+                return false;
+            }
+            while (c.moveToNext()) {
+                long folderId = c.getLong(SqlNote.PARENT_ID_COLUMN);
+                if (folderId == Notes.ID_TRASH_FOLER) {
+                    folderId = c.getLong(SqlNote.ORIGIN_PARENT_ID_COLUMN);
+                }
+                String gid = folderGids.get(folderId);
+                if (gid != null) {
+                    mLoadedListGids.add(gid);
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+                c = null;
+            }
+        }
+
+        // lists created remotely since the last sync have no local folder yet
+        for (String gid : remoteLastModified.keySet()) {
+            if (!folderGids.containsValue(gid)) {
+                mLoadedListGids.add(gid);
+            }
+        }
+
+        for (Map.Entry<Long, String> entry : folderGids.entrySet()) {
+            if (!mLoadedListGids.contains(entry.getValue())) {
+                mSkippedFolderIds.add(entry.getKey());
+            }
+        }
+        Log.d(TAG, "incremental sync loads " + mLoadedListGids.size() + " of "
+                + remoteLastModified.size() + " task lists");
+        return true;
+    }
+
+    /**
+     * Skip the notes of the bound folders whose task lists are not in mLoadedListGids
+     */
+    private void collectSkippedFolders() {
+        mSkippedFolderIds.clear();
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    "(type<>? AND gtask_id<>'')", new String[] {
+                        String.valueOf(Notes.TYPE_NOTE)
+                    }, null);
+            if (c == null) {
+                Log.w(TAG, "failed to query synced folders");
+                return;
+            }
+            while (c.moveToNext()) {
+                if (!mLoadedListGids.contains(c.getString(SqlNote.GTASK_ID_COLUMN))) {
+                    mSkippedFolderIds.add(c.getLong(SqlNote.ID_COLUMN));
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+                c = null;
+            }
+        }
+    }
+
+    /**
+     * Bind the notes whose tasks were created by an interrupted sync, so that they are not
+     * created twice. A create without a known gid is matched to a task of the same name in
+     * the same list that has no meta data yet, since the meta data is created right after
+     * the task is
+     */
+    private void recoverPendingCreates() {
+        if (mCancelled || mJournal.getPendingCreates().isEmpty()) {
+            return;
+        }
+
+        HashSet<String> claimedGids = new HashSet<String>();
+        int recovered = 0;
+        for (GTaskSyncJournal.PendingCreate pending : mJournal.getPendingCreates()) {
+            String gid = pending.mGid;
+            if (gid.length() == 0) {
+                gid = findOrphanTask(pending.mListGid, pending.mName, claimedGids);
+                if (gid == null) {
+                    // the create never reached the server, the note is created again
+                    continue;
+                }
+            }
+            claimedGids.add(gid);
+
+            // the note keeps its local modified flag, so it is pushed to its task this time
+            ContentValues values = new ContentValues();
+            values.put(NoteColumns.GTASK_ID, gid);
+            recovered += mContentResolver.update(ContentUris.withAppendedId(
+                    Notes.CONTENT_NOTE_URI, pending.mNoteId), values,
+                    NoteColumns.GTASK_ID + "=''", null);
+        }
+        Log.d(TAG, "recovered " + recovered + " of " + mJournal.getPendingCreates().size()
+                + " pending creates");
+        mJournal.clearPendingCreates();
+    }
+
+    private String findOrphanTask(String listGid, String name, HashSet<String> claimedGids) {
+        TaskList tasklist = mGTaskListHashMap.get(listGid);
+        if (tasklist == null) {
+            return null;
+        }
+        for (Task task : tasklist.getChildTaskList()) {
+            String gid = task.getGid();
+            if (name.equals(task.getName()) && !claimedGids.contains(gid)
+                    && !mMetaHashMap.containsKey(gid) && !isBoundLocally(gid)) {
+                return gid;
+            }
+        }
+        return null;
+    }
+
+    private boolean isBoundLocally(String gid) {
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID
+        }, NoteColumns.GTASK_ID + "=?", new String[] {
+                gid
+        }, null);
+        if (c == null) {
+            // not sure, leave the task alone
+            return true;
+        }
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Restrict the selection to folders and the notes whose task lists are loaded
+     */
+    private String getLoadedNoteSelection(String selection) {
+        if (mSkippedFolderIds.isEmpty()) {
+            return selection;
+        }
+        StringBuilder sb = new StringBuilder(selection).append(" AND (type<>")
+                .append(Notes.TYPE_NOTE).append(" OR parent_id NOT IN (");
+        boolean first = true;
+        for (Long folderId : mSkippedFolderIds) {
+            sb.append(first ? "" : ",").append(folderId);
+            first = false;
+        }
+        return sb.append("))").toString();
+    }
+
     private void syncContent() throws NetworkFailureException {
         int syncType;
         Cursor c = null;
@@ -289,10 +748,10 @@ public class GTaskManager {
         // sync folder first
         syncFolder();
 
-        // for note existing in database
+        // for note existing in database, notes in task lists not loaded are unchanged
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    getLoadedNoteSelection("(type=? AND parent_id<>?)"), new String[] {
                             String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
@@ -346,6 +805,8 @@ public class GTaskManager {
         // refresh local sync id
         if (!mCancelled) {
             GTaskClient.getInstance().commitUpdate();
+            // an interrupted refresh goes on from here next time
+            mJournal.finishContentSync(mLoadedListGids);
             refreshLocalSyncId();
         }
 
@@ -624,12 +1085,11 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
-        Node n;
+        final SqlNote sqlNote = new SqlNote(mContext, c);
 
         // update remotely
         if (sqlNote.isNoteType()) {
-            Task task = new Task();
+            final Task task = new Task();
             task.setContentByLocalJSON(sqlNote.getContent());
 
             String parentGid = mNidToGid.get(sqlNote.getParentId());
@@ -639,11 +1099,22 @@ public class GTaskManager {
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
-            GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
+            // journal the create first, the task may be created remotely and the sync
+            // interrupted before the note is bound to it. The journal is written once per
+            // batch, before it is posted
+            mJournal.addPendingCreate(sqlNote.getId(), parentGid, task.getName());
 
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            // the task is created along with the other queued actions, the rest is done
+            // once it has got its gid
+            GTaskClient.getInstance().createTask(task, new GTaskClient.ActionCallback() {
+                public void onActionResult(JSONObject result) throws NetworkFailureException {
+                    mJournal.setCreatedGid(sqlNote.getId(), task.getGid());
+
+                    // add meta
+                    updateRemoteMeta(task.getGid(), sqlNote);
+                    bindRemoteNode(task, sqlNote);
+                }
+            });
         } else {
             TaskList tasklist = null;
 
@@ -678,9 +1149,12 @@ public class GTaskManager {
                 GTaskClient.getInstance().createTaskList(tasklist);
                 mGTaskListHashMap.put(tasklist.getGid(), tasklist);
             }
-            n = (Node) tasklist;
+            bindRemoteNode(tasklist, sqlNote);
         }
+    }
 
+    // bind the local note to the remote node after the node has got its gid
+    private void bindRemoteNode(Node n, SqlNote sqlNote) {
         // update local note
         sqlNote.setGtaskId(n.getGid());
         sqlNote.commit(false);
@@ -751,16 +1225,19 @@ public class GTaskManager {
             return;
         }
 
-        // get the latest gtask list
+        // get the latest gtask list, only the lists synced this time are reloaded
         mGTaskHashMap.clear();
         mGTaskListHashMap.clear();
         mMetaHashMap.clear();
-        initGTaskList();
+        initGTaskList(mIncremental ? new HashSet<String>(mLoadedListGids) : null);
 
         Cursor c = null;
         try {
+            // system folders bound to a list keep its last modified too, so that an
+            // incremental sync can tell whether the list has changed
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id<>?)", new String[] {
+                    getLoadedNoteSelection("((type<>? OR gtask_id<>'') AND parent_id<>?)"),
+                    new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
@@ -769,10 +1246,18 @@ public class GTaskManager {
                     Node node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
+                        if (mIncremental && node instanceof TaskList
+                                && !mLoadedListGids.contains(gid)) {
+                            // the list may have changed after its tasks were checked
+                            continue;
+                        }
                         ContentValues values = new ContentValues();
                         values.put(NoteColumns.SYNC_ID, node.getLastModified());
                         mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
                                 c.getLong(SqlNote.ID_COLUMN)), values, null, null);
+                    } else if (mResumed) {
+                        // changed after the interrupted sync, it is synced next time
+                        Log.d(TAG, "skip item not synced by the interrupted sync");
                     } else {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
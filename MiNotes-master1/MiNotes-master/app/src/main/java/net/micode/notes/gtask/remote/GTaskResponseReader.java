@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
+
+import net.micode.notes.gtask.data.MetaData;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Decodes the gtask responses while they are read from the network, the nodes are built
+ * straight from the stream so neither the response text nor a json tree of it is kept.
+ * Malformed content is reported as {@link MalformedJsonException} or
+ * {@link IllegalStateException}, other IOExceptions come from the network
+ */
+class GTaskResponseReader {
+    // the setup data of the web client starts right after it in the page
+    private static final String SETUP_BEGIN = "_setup(";
+
+    // the setup object holds the task lists under it
+    private static final String SETUP_TASKS = "t";
+
+    private static final String SETUP_CLIENT_VERSION = "v";
+
+    /**
+     * Creates the nodes of a task list, the meta list holds meta data instead of tasks
+     */
+    interface TaskFactory<T extends Task> {
+        T newTask();
+    }
+
+    static final TaskFactory<Task> TASKS = new TaskFactory<Task>() {
+        public Task newTask() {
+            return new Task();
+        }
+    };
+
+    static final TaskFactory<MetaData> META_DATA = new TaskFactory<MetaData>() {
+        public MetaData newTask() {
+            return new MetaData();
+        }
+    };
+
+    /**
+     * Read the setup data from the page of the get url
+     *
+     * @param lists the task lists are added into it, null if they are not needed
+     * @return the client version
+     */
+    static long readSetup(Reader in, ArrayList<TaskList> lists) throws IOException {
+        skipTo(in, SETUP_BEGIN);
+        JsonReader reader = new JsonReader(in);
+        // the page goes on after the setup object, it is never read
+        reader.setLenient(true);
+
+        long clientVersion = -1;
+        boolean hasLists = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(SETUP_CLIENT_VERSION)) {
+                clientVersion = reader.nextLong();
+            } else if (name.equals(SETUP_TASKS) && lists != null) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals(GTaskStringUtils.GTASK_JSON_LISTS)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            TaskList tasklist = new TaskList();
+                            tasklist.setContentByRemoteReader(reader);
+                            lists.add(tasklist);
+                        }
+                        reader.endArray();
+                        hasLists = true;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (clientVersion == -1 || (lists != null && !hasLists)) {
+            throw new MalformedJsonException("incomplete setup data");
+        }
+        return clientVersion;
+    }
+
+    /**
+     * Read the tasks from the response of a get all action
+     */
+    static <T extends Task> ArrayList<T> readTasks(Reader in, TaskFactory<T> factory)
+            throws IOException {
+        JsonReader reader = new JsonReader(in);
+        ArrayList<T> tasks = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(GTaskStringUtils.GTASK_JSON_TASKS)) {
+                tasks = new ArrayList<T>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    T task = factory.newTask();
+                    task.setContentByRemoteReader(reader);
+                    tasks.add(task);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (tasks == null) {
+            throw new MalformedJsonException("no tasks in the response");
+        }
+        return tasks;
+    }
+
+    // consume the stream up to the end of the marker, the marker doesn't repeat its first char
+    private static void skipTo(Reader in, String marker) throws IOException {
+        int matched = 0;
+        while (matched < marker.length()) {
+            int c = in.read();
+            if (c == -1) {
+                throw new MalformedJsonException("\"" + marker + "\" not found");
+            } else if (c == marker.charAt(matched)) {
+                matched++;
+            } else {
+                matched = c == marker.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+}
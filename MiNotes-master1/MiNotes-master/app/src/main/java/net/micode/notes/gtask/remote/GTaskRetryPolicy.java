@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.gtask.exception.TransientFailureException;
+
+import java.util.Random;
+
+/**
+ * Retries the gtask requests failing with a {@link TransientFailureException}, waiting an
+ * exponentially growing and jittered delay between the attempts. A request that the server
+ * may have carried out is sent again only if it is safe to replay. After a run of failures
+ * in a row the circuit opens and requests fail right away for a while, then a single trial
+ * request decides whether it closes again. The policy is shared by all the threads of a sync
+ */
+class GTaskRetryPolicy {
+    private static final String TAG = GTaskRetryPolicy.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    public static final long DEFAULT_BASE_DELAY = 500;
+
+    public static final long DEFAULT_MAX_DELAY = 8000;
+
+    // failures in a row that open the circuit
+    private static final int FAILURE_THRESHOLD = 5;
+
+    // how long the circuit stays open before a trial request is let through
+    private static final long OPEN_DURATION = 30 * 1000;
+
+    /**
+     * One attempt of a request
+     */
+    interface Request<T> {
+        T execute() throws NetworkFailureException;
+    }
+
+    private final Random mRandom;
+
+    private volatile int mMaxAttempts;
+
+    private volatile long mBaseDelay;
+
+    private volatile long mMaxDelay;
+
+    private int mFailures;
+
+    private long mOpenUntil;
+
+    private boolean mTrialInFlight;
+
+    GTaskRetryPolicy() {
+        this(new Random());
+    }
+
+    // a seeded random makes the delays repeatable
+    GTaskRetryPolicy(Random random) {
+        mRandom = random;
+        mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+        mBaseDelay = DEFAULT_BASE_DELAY;
+        mMaxDelay = DEFAULT_MAX_DELAY;
+    }
+
+    /**
+     * @param maxAttempts attempts of each request, 1 doesn't retry at all
+     */
+    public void setLimits(int maxAttempts, long baseDelay, long maxDelay) {
+        mMaxAttempts = Math.max(maxAttempts, 1);
+        mBaseDelay = Math.max(baseDelay, 0);
+        mMaxDelay = Math.max(maxDelay, mBaseDelay);
+    }
+
+    /**
+     * Close the circuit and forget the failures so far
+     */
+    public synchronized void reset() {
+        mFailures = 0;
+        mOpenUntil = 0;
+        mTrialInFlight = false;
+    }
+
+    /**
+     * Run the request until it succeeds, fails for good or runs out of attempts
+     *
+     * @param replayable whether the request can be sent again after the server may have
+     *            carried it out
+     */
+    public <T> T execute(Request<T> request, boolean replayable) throws NetworkFailureException {
+        for (int attempt = 1;; attempt++) {
+            acquire();
+            TransientFailureException failure = null;
+            boolean answered = false;
+            try {
+                T result = request.execute();
+                answered = true;
+                return result;
+            } catch (TransientFailureException e) {
+                failure = e;
+            } finally {
+                // only a handled answer closes the circuit, the other failures, like a
+                // response that can't be read, neither close nor open it
+                release(answered, failure != null);
+            }
+
+            if (failure.mayBeApplied() && !replayable) {
+                Log.w(TAG, "not safe to replay: " + failure.getMessage());
+                throw failure;
+            }
+            if (attempt >= mMaxAttempts || isOpen()) {
+                throw failure;
+            }
+            if (failure.getRetryAfter() > mMaxDelay) {
+                // the server wants a longer break than a sync can wait
+                throw failure;
+            }
+            long delay = Math.max(getDelay(attempt), failure.getRetryAfter());
+            Log.w(TAG, failure.getMessage() + ", retry " + attempt + " in " + delay + "ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkFailureException("retry interrupted", failure);
+            }
+        }
+    }
+
+    // half of the exponential delay is fixed and the other half random, so the retries of
+    // the parallel requests are spread out
+    private long getDelay(int attempt) {
+        long delay = mBaseDelay << Math.min(attempt - 1, 16);
+        delay = Math.min(delay, mMaxDelay);
+        long half = delay / 2;
+        synchronized (mRandom) {
+            return half + (long) (mRandom.nextDouble() * (delay - half));
+        }
+    }
+
+    private synchronized boolean isOpen() {
+        return mFailures >= FAILURE_THRESHOLD;
+    }
+
+    private synchronized void acquire() throws NetworkFailureException {
+        if (mFailures < FAILURE_THRESHOLD) {
+            return;
+        }
+        if (System.currentTimeMillis() < mOpenUntil || mTrialInFlight) {
+            throw new NetworkFailureException("circuit open, the server keeps failing");
+        }
+        mTrialInFlight = true;
+    }
+
+    private synchronized void release(boolean answered, boolean failed) {
+        mTrialInFlight = false;
+        if (answered) {
+            if (mFailures >= FAILURE_THRESHOLD) {
+                Log.d(TAG, "circuit closed");
+            }
+            mFailures = 0;
+        } else if (failed && ++mFailures >= FAILURE_THRESHOLD) {
+            Log.w(TAG, "circuit open after " + mFailures + " failures");
+            mOpenUntil = System.currentTimeMillis() + OPEN_DURATION;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.SyncJournalColumns;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * The journal of the running sync kept in the database, it is cleared once the sync succeeds.
+ * When a sync is interrupted the journal tells the next one which phases have finished and
+ * which tasks may have been created remotely without being bound to their notes
+ */
+class GTaskSyncJournal {
+    private static final String TAG = GTaskSyncJournal.class.getSimpleName();
+
+    // the sync has started, nothing can be skipped
+    static final int PHASE_STARTED = 0;
+
+    // the content has been synced and committed, only the sync ids are left to refresh
+    static final int PHASE_CONTENT_SYNCED = 1;
+
+    // a finished phase older than this is not resumed, the remote lists may have changed
+    // since then and refreshing the sync ids would hide those changes
+    private static final long RESUME_WINDOW = 10 * 60 * 1000;
+
+    private static final String[] PROJECTION = new String[] {
+            SyncJournalColumns.ID, SyncJournalColumns.KIND, SyncJournalColumns.PHASE,
+            SyncJournalColumns.NOTE_ID, SyncJournalColumns.LIST_GID, SyncJournalColumns.NAME,
+            SyncJournalColumns.GID, SyncJournalColumns.CREATED_DATE
+    };
+
+    private static final int ID_COLUMN = 0;
+
+    private static final int KIND_COLUMN = 1;
+
+    private static final int PHASE_COLUMN = 2;
+
+    private static final int NOTE_ID_COLUMN = 3;
+
+    private static final int LIST_GID_COLUMN = 4;
+
+    private static final int NAME_COLUMN = 5;
+
+    private static final int GID_COLUMN = 6;
+
+    private static final int CREATED_DATE_COLUMN = 7;
+
+    /**
+     * A task create sent by an interrupted sync whose note may not have been bound
+     */
+    static class PendingCreate {
+        long mNoteId;
+
+        String mListGid;
+
+        String mName;
+
+        // empty if the interrupted sync didn't get the answer of the create
+        String mGid;
+    }
+
+    private final ContentResolver mContentResolver;
+
+    private final String mAccount;
+
+    private int mPhase;
+
+    private final HashSet<String> mSyncedListGids;
+
+    private final ArrayList<PendingCreate> mPendingCreates;
+
+    // the creates of this sync not written yet, they are written before the next post
+    private final ArrayList<ContentValues> mQueuedCreates;
+
+    // the gids the server has assigned since the last post, written once its results are in
+    private final ArrayList<ContentProviderOperation> mQueuedGids;
+
+    GTaskSyncJournal(ContentResolver resolver, String account) {
+        mContentResolver = resolver;
+        mAccount = account;
+        mPhase = PHASE_STARTED;
+        mSyncedListGids = new HashSet<String>();
+        mPendingCreates = new ArrayList<PendingCreate>();
+        mQueuedCreates = new ArrayList<ContentValues>();
+        mQueuedGids = new ArrayList<ContentProviderOperation>();
+    }
+
+    /**
+     * Load what the interrupted sync of the account has left and start the journal of this
+     * sync, the entries of other accounts are dropped
+     *
+     * @return the latest phase finished by the interrupted sync that can be resumed
+     */
+    int begin() {
+        mContentResolver.delete(Notes.CONTENT_SYNC_JOURNAL_URI, SyncJournalColumns.ACCOUNT
+                + "<>?", new String[] {
+                mAccount
+        });
+
+        boolean started = false;
+        long phaseDate = 0;
+        Cursor c = mContentResolver.query(Notes.CONTENT_SYNC_JOURNAL_URI, PROJECTION,
+                SyncJournalColumns.ACCOUNT + "=?", new String[] {
+                    mAccount
+                }, SyncJournalColumns.ID);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    switch (c.getInt(KIND_COLUMN)) {
+                        case SyncJournalColumns.KIND_PHASE:
+                            started = true;
+                            mPhase = c.getInt(PHASE_COLUMN);
+                            phaseDate = c.getLong(CREATED_DATE_COLUMN);
+                            break;
+                        case SyncJournalColumns.KIND_LIST:
+                            mSyncedListGids.add(c.getString(LIST_GID_COLUMN));
+                            break;
+                        case SyncJournalColumns.KIND_CREATE:
+                            PendingCreate pending = new PendingCreate();
+                            pending.mNoteId = c.getLong(NOTE_ID_COLUMN);
+                            pending.mListGid = c.getString(LIST_GID_COLUMN);
+                            pending.mName = c.getString(NAME_COLUMN);
+                            pending.mGid = c.getString(GID_COLUMN);
+                            mPendingCreates.add(pending);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        } else {
+            Log.w(TAG, "failed to query sync journal");
+        }
+
+        if (mPhase != PHASE_STARTED
+                && System.currentTimeMillis() - phaseDate > RESUME_WINDOW) {
+            Log.d(TAG, "interrupted sync is too old to resume");
+            mPhase = PHASE_STARTED;
+        }
+        if (mPhase == PHASE_STARTED) {
+            // the phases are redone, only the pending creates are still of use
+            mSyncedListGids.clear();
+            mContentResolver.delete(Notes.CONTENT_SYNC_JOURNAL_URI, SyncJournalColumns.ACCOUNT
+                    + "=? AND " + SyncJournalColumns.KIND + "<>?", new String[] {
+                    mAccount, String.valueOf(SyncJournalColumns.KIND_CREATE)
+            });
+            started = false;
+        }
+        if (!started) {
+            insertPhase(PHASE_STARTED);
+        }
+        if (started || !mPendingCreates.isEmpty()) {
+            Log.d(TAG, "interrupted sync found, phase " + mPhase + ", "
+                    + mPendingCreates.size() + " pending creates");
+        }
+        return mPhase;
+    }
+
+    /**
+     * The task lists the interrupted sync has synced, valid when it has finished
+     * {@link #PHASE_CONTENT_SYNCED}
+     */
+    HashSet<String> getSyncedListGids() {
+        return mSyncedListGids;
+    }
+
+    ArrayList<PendingCreate> getPendingCreates() {
+        return mPendingCreates;
+    }
+
+    /**
+     * Forget the pending creates of the interrupted sync once they are recovered
+     */
+    void clearPendingCreates() {
+        mPendingCreates.clear();
+        mContentResolver.delete(Notes.CONTENT_SYNC_JOURNAL_URI, SyncJournalColumns.ACCOUNT
+                + "=? AND " + SyncJournalColumns.KIND + "=?", new String[] {
+                mAccount, String.valueOf(SyncJournalColumns.KIND_CREATE)
+        });
+    }
+
+    /**
+     * Record that the content of the given task lists has been synced and committed
+     */
+    void finishContentSync(Collection<String> listGids) {
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        for (String gid : listGids) {
+            ContentValues values = newEntry(SyncJournalColumns.KIND_LIST);
+            values.put(SyncJournalColumns.LIST_GID, gid);
+            rows.add(values);
+        }
+        // written in the same transaction, the list entries are of no use without the phase
+        ContentValues phase = newEntry(SyncJournalColumns.KIND_PHASE);
+        phase.put(SyncJournalColumns.PHASE, PHASE_CONTENT_SYNCED);
+        rows.add(phase);
+        mContentResolver.bulkInsert(Notes.CONTENT_SYNC_JOURNAL_URI,
+                rows.toArray(new ContentValues[rows.size()]));
+        mPhase = PHASE_CONTENT_SYNCED;
+    }
+
+    /**
+     * Record a task create, it is written by {@link #writePendingCreates} before the batch
+     * holding it is posted
+     */
+    void addPendingCreate(long noteId, String listGid, String name) {
+        ContentValues values = newEntry(SyncJournalColumns.KIND_CREATE);
+        values.put(SyncJournalColumns.NOTE_ID, noteId);
+        values.put(SyncJournalColumns.LIST_GID, listGid);
+        values.put(SyncJournalColumns.NAME, name != null ? name : "");
+        mQueuedCreates.add(values);
+    }
+
+    /**
+     * Record the gid the server has assigned to the pending create of the note, it is written
+     * by {@link #writeCreatedGids}. The note is bound right away, a create left without its
+     * gid is not taken for an orphan then
+     */
+    void setCreatedGid(long noteId, String gid) {
+        mQueuedGids.add(ContentProviderOperation.newUpdate(Notes.CONTENT_SYNC_JOURNAL_URI)
+                .withValue(SyncJournalColumns.GID, gid)
+                .withSelection(SyncJournalColumns.ACCOUNT + "=? AND " + SyncJournalColumns.KIND
+                        + "=? AND " + SyncJournalColumns.NOTE_ID + "=?", new String[] {
+                        mAccount, String.valueOf(SyncJournalColumns.KIND_CREATE),
+                        String.valueOf(noteId)
+                }).build());
+    }
+
+    /**
+     * Write the creates recorded since the last post in one transaction
+     */
+    void writePendingCreates() {
+        if (mQueuedCreates.isEmpty()) {
+            return;
+        }
+        mContentResolver.bulkInsert(Notes.CONTENT_SYNC_JOURNAL_URI,
+                mQueuedCreates.toArray(new ContentValues[mQueuedCreates.size()]));
+        mQueuedCreates.clear();
+    }
+
+    /**
+     * Write the gids assigned since the last post in one transaction
+     */
+    void writeCreatedGids() {
+        if (mQueuedGids.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(Notes.AUTHORITY, mQueuedGids);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+        }
+        mQueuedGids.clear();
+    }
+
+    /**
+     * Drop the journal of the account after the sync has succeeded
+     */
+    void clear() {
+        mPhase = PHASE_STARTED;
+        mSyncedListGids.clear();
+        mPendingCreates.clear();
+        mQueuedCreates.clear();
+        mQueuedGids.clear();
+        mContentResolver.delete(Notes.CONTENT_SYNC_JOURNAL_URI, SyncJournalColumns.ACCOUNT
+                + "=?", new String[] {
+                mAccount
+        });
+    }
+
+    private void insertPhase(int phase) {
+        ContentValues values = newEntry(SyncJournalColumns.KIND_PHASE);
+        values.put(SyncJournalColumns.PHASE, phase);
+        mContentResolver.insert(Notes.CONTENT_SYNC_JOURNAL_URI, values);
+        mPhase = phase;
+    }
+
+    private ContentValues newEntry(int kind) {
+        ContentValues values = new ContentValues();
+        values.put(SyncJournalColumns.ACCOUNT, mAccount);
+        values.put(SyncJournalColumns.KIND, kind);
+        values.put(SyncJournalColumns.CREATED_DATE, System.currentTimeMillis());
+        return values;
+    }
+}
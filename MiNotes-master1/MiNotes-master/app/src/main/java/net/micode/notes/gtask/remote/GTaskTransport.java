@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The http client shared by all the gtask requests. It lives as long as the process, so the
+ * pooled connections are kept alive between requests and syncs, and the session cookies are
+ * saved in the private preferences so that the next process can go on with the same session.
+ * <p>
+ * The cookies, the GTL auth cookie among them, are stored as plain JSON in the
+ * gtask_session preferences file. It is only protected by the app's private storage, so it
+ * is excluded from backups by res/xml/backup_rules.xml and cleared when the session is
+ * rejected, the account changes or the client is pointed at another server
+ */
+class GTaskTransport {
+    private static final String TAG = GTaskTransport.class.getSimpleName();
+
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
+
+    public static final int DEFAULT_SOCKET_TIMEOUT = 15000;
+
+    // requests may be posted from several threads at the same time
+    private static final int MAX_CONNECTIONS = 8;
+
+    // used when the server doesn't tell how long a connection can be kept
+    private static final long DEFAULT_KEEP_ALIVE = 30 * 1000;
+
+    // smaller request bodies are not worth compressing
+    private static final int MIN_GZIP_LENGTH = 1024;
+
+    // statuses of a server that doesn't take compressed request bodies
+    private static final int SC_BAD_REQUEST = 400;
+
+    private static final int SC_LENGTH_REQUIRED = 411;
+
+    private static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
+
+    private static final String SESSION_PREFERENCE_NAME = "gtask_session";
+
+    private static final String SESSION_ACCOUNT = "account";
+
+    private static final String SESSION_GET_URL = "get_url";
+
+    private static final String SESSION_POST_URL = "post_url";
+
+    private static final String SESSION_COOKIES = "cookies";
+
+    private static final String COOKIE_NAME = "name";
+
+    private static final String COOKIE_VALUE = "value";
+
+    private static final String COOKIE_DOMAIN = "domain";
+
+    private static final String COOKIE_PATH = "path";
+
+    private static final String COOKIE_EXPIRY = "expiry";
+
+    private static final String COOKIE_SECURE = "secure";
+
+    private final DefaultHttpClient mHttpClient;
+
+    private final BasicCookieStore mCookieStore;
+
+    private volatile boolean mGzipRequests;
+
+    // traffic since the last resetStats, the bytes are counted as sent over the wire
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    GTaskTransport() {
+        HttpParams httpParameters = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(httpParameters, DEFAULT_CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(httpParameters, DEFAULT_SOCKET_TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(httpParameters, true);
+        HttpProtocolParams.setUseExpectContinue(httpParameters, false);
+        ConnManagerParams.setMaxTotalConnections(httpParameters, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParameters,
+                new ConnPerRouteBean(MAX_CONNECTIONS));
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        mHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(httpParameters,
+                schemeRegistry), httpParameters);
+        mHttpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : DEFAULT_KEEP_ALIVE;
+            }
+        });
+        mCookieStore = new BasicCookieStore();
+        mHttpClient.setCookieStore(mCookieStore);
+        // not every endpoint takes compressed request bodies, it has to be turned on
+        mGzipRequests = false;
+    }
+
+    public void setTimeouts(int connectionTimeout, int socketTimeout) {
+        HttpParams params = mHttpClient.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+    }
+
+    public void setGzipRequests(boolean gzip) {
+        mGzipRequests = gzip;
+    }
+
+    /**
+     * Check whether the server has rejected a compressed request body. If so compression is
+     * turned off, the request has not been handled and can be sent again uncompressed
+     *
+     * @param sent the entity returned by {@link #prepareEntity}
+     */
+    public boolean isGzipRejected(HttpEntity sent, int status) {
+        if (sent.getContentEncoding() == null || (status != SC_BAD_REQUEST
+                && status != SC_LENGTH_REQUIRED && status != SC_UNSUPPORTED_MEDIA_TYPE)) {
+            return false;
+        }
+        Log.w(TAG, "compressed request rejected with " + status + ", stop compressing");
+        mGzipRequests = false;
+        return true;
+    }
+
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        request.setHeader("Accept-Encoding", "gzip, deflate");
+        mRequestCount.incrementAndGet();
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && entity.getContentLength() > 0) {
+                mBytesSent.addAndGet(entity.getContentLength());
+            }
+        }
+        long start = System.currentTimeMillis();
+        try {
+            return mHttpClient.execute(request);
+        } finally {
+            Log.d(TAG, request.getMethod() + " took " + (System.currentTimeMillis() - start)
+                    + "ms");
+        }
+    }
+
+    /**
+     * Compress the request body if it is large enough and compression is enabled
+     */
+    public HttpEntity prepareEntity(HttpEntity entity) throws IOException {
+        if (!mGzipRequests || entity.getContentLength() < MIN_GZIP_LENGTH) {
+            return entity;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                (int) entity.getContentLength() / 4);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            entity.writeTo(out);
+        } finally {
+            out.close();
+        }
+        ByteArrayEntity gzipEntity = new ByteArrayEntity(bytes.toByteArray());
+        gzipEntity.setContentType(entity.getContentType());
+        gzipEntity.setContentEncoding("gzip");
+        return gzipEntity;
+    }
+
+    /**
+     * Count the bytes read from the raw content of a response
+     */
+    public InputStream countReceived(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    mBytesReceived.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read > 0) {
+                    mBytesReceived.addAndGet(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    public void resetStats() {
+        mRequestCount.set(0);
+        mBytesSent.set(0);
+        mBytesReceived.set(0);
+    }
+
+    public String getStats() {
+        return mRequestCount.get() + " requests, " + mBytesSent.get() + " bytes sent, "
+                + mBytesReceived.get() + " bytes received";
+    }
+
+    public boolean hasCookie(String name) {
+        for (Cookie cookie : mCookieStore.getCookies()) {
+            if (cookie.getName().contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clearCookies() {
+        mCookieStore.clear();
+    }
+
+    /**
+     * Close the pooled connections that have been idle longer than they can be kept
+     */
+    public void closeIdleConnections() {
+        mHttpClient.getConnectionManager().closeIdleConnections(DEFAULT_KEEP_ALIVE,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Save the session cookies and the urls they belong to, the cookies are stored
+     * unencrypted in the private preferences
+     */
+    public void saveSession(Context context, String account, String getUrl, String postUrl) {
+        JSONArray jsCookies = new JSONArray();
+        try {
+            for (Cookie cookie : mCookieStore.getCookies()) {
+                JSONObject js = new JSONObject();
+                js.put(COOKIE_NAME, cookie.getName());
+                js.put(COOKIE_VALUE, cookie.getValue());
+                js.put(COOKIE_DOMAIN, cookie.getDomain());
+                js.put(COOKIE_PATH, cookie.getPath());
+                if (cookie.getExpiryDate() != null) {
+                    js.put(COOKIE_EXPIRY, cookie.getExpiryDate().getTime());
+                }
+                js.put(COOKIE_SECURE, cookie.isSecure());
+                jsCookies.put(js);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            return;
+        }
+        getSessionPreferences(context).edit()
+                .putString(SESSION_ACCOUNT, account)
+                .putString(SESSION_GET_URL, getUrl)
+                .putString(SESSION_POST_URL, postUrl)
+                .putString(SESSION_COOKIES, jsCookies.toString())
+                .commit();
+    }
+
+    /**
+     * Load the cookies saved for the account into the cookie store
+     *
+     * @return the get url and post url of the session, or null if there is no saved session
+     */
+    public String[] restoreSession(Context context, String account) {
+        SharedPreferences session = getSessionPreferences(context);
+        if (!account.equals(session.getString(SESSION_ACCOUNT, ""))) {
+            return null;
+        }
+        String getUrl = session.getString(SESSION_GET_URL, null);
+        String postUrl = session.getString(SESSION_POST_URL, null);
+        if (getUrl == null || postUrl == null) {
+            return null;
+        }
+
+        mCookieStore.clear();
+        Date now = new Date();
+        try {
+            JSONArray jsCookies = new JSONArray(session.getString(SESSION_COOKIES, "[]"));
+            for (int i = 0; i < jsCookies.length(); i++) {
+                JSONObject js = jsCookies.getJSONObject(i);
+                BasicClientCookie cookie = new BasicClientCookie(js.getString(COOKIE_NAME),
+                        js.getString(COOKIE_VALUE));
+                cookie.setDomain(js.optString(COOKIE_DOMAIN, null));
+                cookie.setPath(js.optString(COOKIE_PATH, null));
+                if (js.has(COOKIE_EXPIRY)) {
+                    cookie.setExpiryDate(new Date(js.getLong(COOKIE_EXPIRY)));
+                }
+                cookie.setSecure(js.optBoolean(COOKIE_SECURE));
+                if (!cookie.isExpired(now)) {
+                    mCookieStore.addCookie(cookie);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "saved cookies are broken: " + e.toString());
+            mCookieStore.clear();
+            return null;
+        }
+        return new String[] {
+                getUrl, postUrl
+        };
+    }
+
+    /**
+     * Forget the session both in memory and in the preferences
+     */
+    public void clearSession(Context context) {
+        mCookieStore.clear();
+        getSessionPreferences(context).edit().clear().commit();
+    }
+
+    private static SharedPreferences getSessionPreferences(Context context) {
+        return context.getSharedPreferences(SESSION_PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -21,7 +21,6 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
-import android.net.Uri;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -38,33 +37,6 @@ public class Note {
     private ContentValues mNoteDiffValues; // 声明一个 ContentValues 对象，用于存储 Note 对象的差异值
     private NoteData mNoteData; // 声明一个 NoteData 对象，用于存储 Note 数据
     private static final String TAG = "Note"; // 声明一个 TAG 常量，用于在日志中输出信息
-    /**
-     * 为添加新笔记创建一个新的笔记ID
-     */
-    public static synchronized long getNewNoteId(Context context, long folderId) {
-        // 在数据库中创建一个新的笔记
-        ContentValues values = new ContentValues();
-        long createdTime = System.currentTimeMillis();
-        values.put(NoteColumns.CREATED_DATE, createdTime);
-        values.put(NoteColumns.MODIFIED_DATE, createdTime);
-        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
-        values.put(NoteColumns.LOCAL_MODIFIED, 1);
-        values.put(NoteColumns.PARENT_ID, folderId);
-        Uri uri = context.getContentResolver().insert(Notes.CONTENT_NOTE_URI, values);
-
-        long noteId = 0;
-        try {
-            noteId = Long.valueOf(uri.getPathSegments().get(1)); // 从 Uri 中获取新创建的笔记 ID
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Get note id error :" + e.toString()); // 输出错误信息
-            noteId = 0;
-        }
-        if (noteId == -1) { // 如果笔记 ID 为 -1，则表示创建笔记失败，抛出异常
-            throw new IllegalStateException("Wrong note id:" + noteId);
-        }
-        return noteId; // 返回新创建的笔记 ID
-    }
-
     public Note() { // Note 类的构造函数
         mNoteDiffValues = new ContentValues(); // 初始化 ContentValues 对象
         mNoteData = new NoteData(); // 初始化 NoteData 对象
@@ -89,6 +61,10 @@ public class Note {
         return mNoteData.mTextDataId; // 获取笔记的文本数据ID
     }
 
+    public long getCallDataId() {
+        return mNoteData.mCallDataId;
+    }
+
     public void setCallDataId(long id) {
         mNoteData.setCallDataId(id); // 设置笔记的电话数据ID
     }
@@ -102,34 +78,170 @@ public class Note {
         // 检查笔记是否被本地修改过
     }
 
-    public boolean syncNote(Context context, long noteId) {
-        if (noteId <= 0) {
-            throw new IllegalArgumentException("Wrong note id:" + noteId); // 如果笔记ID非法，则抛出异常
+    /**
+     * 一次保存要写入的操作，以及生成操作时从待保存修改中取出的值
+     */
+    public static class SyncBatch {
+        private long mNoteId;
+        private final ArrayList<ContentProviderOperation> mOperations;
+        private final ContentValues mNoteValues;
+        private final ContentValues mTextDataValues;
+        private final ContentValues mCallDataValues;
+        private int mTextDataIndex;
+        private int mCallDataIndex;
+
+        private SyncBatch(long noteId, ContentValues noteValues, ContentValues textDataValues,
+                ContentValues callDataValues) {
+            mNoteId = noteId;
+            mOperations = new ArrayList<ContentProviderOperation>();
+            mNoteValues = noteValues;
+            mTextDataValues = textDataValues;
+            mCallDataValues = callDataValues;
+        }
+
+        /**
+         * The id of the saved note, for a new note it's known once the batch is finished
+         */
+        public long getNoteId() {
+            return mNoteId;
         }
+    }
 
-        if (!isLocalModified()) {
-            return true; // 如果笔记没有被本地修改过，则直接返回 true
+    /**
+     * 取出所有待保存的修改生成一次批量写入。之后的修改记录为新的待保存修改，
+     * 所以批量操作可以在其它线程中执行，期间笔记仍然可以被编辑。
+     * noteId 为 0 时表示新笔记，笔记行在同一个批量操作中插入到 folderId 中，
+     * 数据行通过回溯引用取得新笔记的 ID，因此打开编辑器而不保存不会写数据库
+     */
+    public SyncBatch takeSyncBatch(long noteId, long folderId) {
+        if (noteId < 0) {
+            throw new IllegalArgumentException("Wrong note id:" + noteId);
         }
+        SyncBatch batch = new SyncBatch(noteId, mNoteDiffValues, mNoteData.mTextDataValues,
+                mNoteData.mCallDataValues);
+        mNoteDiffValues = new ContentValues();
+        mNoteData.mTextDataValues = new ContentValues();
+        mNoteData.mCallDataValues = new ContentValues();
 
         /**
          * In theory, once data changed, the note should be updated on {@link NoteColumns#LOCAL_MODIFIED} and
          * {@link NoteColumns#MODIFIED_DATE}. For data safety, though update note fails, we also update the
-         * note data info
+         * note data info. The note row and all changed data rows are written by one batch, which the
+         * provider applies in a single transaction
          */
-        if (context.getContentResolver().update(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), mNoteDiffValues, null,
-                null) == 0) {
+        if (noteId == 0) {
+            // 在数据库中创建新笔记，修改过的值覆盖默认值
+            ContentValues values = new ContentValues();
+            long createdTime = System.currentTimeMillis();
+            values.put(NoteColumns.CREATED_DATE, createdTime);
+            values.put(NoteColumns.MODIFIED_DATE, createdTime);
+            values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            values.put(NoteColumns.PARENT_ID, folderId);
+            values.putAll(batch.mNoteValues);
+            batch.mOperations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(values).build());
+        } else if (batch.mNoteValues.size() > 0) {
+            batch.mOperations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId))
+                    .withValues(batch.mNoteValues).build());
+        }
+        batch.mTextDataIndex = mNoteData.addDataOperation(noteId, mNoteData.mTextDataId,
+                TextNote.CONTENT_ITEM_TYPE, batch.mTextDataValues, batch.mOperations);
+        batch.mCallDataIndex = mNoteData.addDataOperation(noteId, mNoteData.mCallDataId,
+                CallNote.CONTENT_ITEM_TYPE, batch.mCallDataValues, batch.mOperations);
+        return batch;
+    }
+
+    /**
+     * 执行批量写入，只访问 {@link SyncBatch} 自身，不需要持有笔记的锁。失败时返回 null
+     */
+    public static ContentProviderResult[] applySyncBatch(Context context, SyncBatch batch) {
+        if (batch.mOperations.isEmpty()) {
+            return new ContentProviderResult[0];
+        }
+        ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(Notes.AUTHORITY, batch.mOperations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return null;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            return null;
+        }
+        if (results == null || results.length != batch.mOperations.size()) {
+            Log.e(TAG, "Sync note failed with note id:" + batch.mNoteId);
+            return null;
+        }
+        return results;
+    }
+
+    /**
+     * 记录批量写入的结果：成功时记下新插入的数据 ID，失败的部分放回待保存的修改中，
+     * 已被之后的修改覆盖的值不再放回
+     */
+    public boolean finishSyncBatch(SyncBatch batch, ContentProviderResult[] results) {
+        if (results == null) {
+            restore(mNoteDiffValues, batch.mNoteValues);
+            restore(mNoteData.mTextDataValues, batch.mTextDataValues);
+            restore(mNoteData.mCallDataValues, batch.mCallDataValues);
+            return false;
+        }
+        if (batch.mNoteId == 0) {
+            batch.mNoteId = parseInsertedId(results[0]);
+            if (batch.mNoteId <= 0) {
+                // 没有创建笔记，所有修改留到下次保存
+                Log.e(TAG, "Create new note failed");
+                batch.mNoteId = 0;
+                return finishSyncBatch(batch, null);
+            }
+        } else if (batch.mNoteValues.size() > 0
+                && (results[0].count == null || results[0].count == 0)) {
             Log.e(TAG, "Update note error, should not happen"); // 更新笔记失败，记录错误日志
-            // Do not return, fall through
         }
-        mNoteDiffValues.clear(); // 清空笔记的差异值
 
-        if (mNoteData.isLocalModified()
-                && (mNoteData.pushIntoContentResolver(context, noteId) == null)) {
-            return false; // 如果笔记的数据被修改且同步到 ContentResolver 失败，则返回 false
+        boolean succeeded = true;
+        if (batch.mTextDataIndex >= 0 && mNoteData.mTextDataId == 0) {
+            long id = parseInsertedId(results[batch.mTextDataIndex]);
+            if (id > 0) {
+                mNoteData.setTextDataId(id);
+            } else {
+                Log.e(TAG, "Insert text data failed with note id:" + batch.mNoteId);
+                restore(mNoteData.mTextDataValues, batch.mTextDataValues);
+                succeeded = false;
+            }
+        }
+        if (batch.mCallDataIndex >= 0 && mNoteData.mCallDataId == 0) {
+            long id = parseInsertedId(results[batch.mCallDataIndex]);
+            if (id > 0) {
+                mNoteData.setCallDataId(id);
+            } else {
+                Log.e(TAG, "Insert call data failed with note id:" + batch.mNoteId);
+                restore(mNoteData.mCallDataValues, batch.mCallDataValues);
+                succeeded = false;
+            }
+        }
+        return succeeded;
+    }
+
+    private static void restore(ContentValues pending, ContentValues taken) {
+        ContentValues values = new ContentValues(taken);
+        for (String key : pending.keySet()) {
+            values.remove(key);
         }
+        pending.putAll(values);
+    }
 
-        return true; // 成功同步笔记数据，则返回 true
+    private static long parseInsertedId(ContentProviderResult result) {
+        if (result == null || result.uri == null) {
+            return 0;
+        }
+        try {
+            return ContentUris.parseId(result.uri);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
 
@@ -170,76 +282,34 @@ public class Note {
             mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
             mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
         }
-        Uri pushIntoContentResolver(Context context, long noteId) {
-/*
-
-检查是否安全
-*/
-            if (noteId <= 0) {
-                throw new IllegalArgumentException("错误的笔记ID：" + noteId);
-            }
-            ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-            ContentProviderOperation.Builder builder = null;
-
-            if(mTextDataValues.size() > 0) {
-// 插入文本数据
-                mTextDataValues.put(DataColumns.NOTE_ID, noteId);
-                if (mTextDataId == 0) {
-                    mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI, mTextDataValues);
-                    try {
-                        setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "插入新的文本数据失败，笔记ID为" + noteId);
-                        mTextDataValues.clear();
-                        return null;
-                    }
-                } else {
-// 更新文本数据
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mTextDataId));
-                    builder.withValues(mTextDataValues);
-                    operationList.add(builder.build());
-                }
-                mTextDataValues.clear();
+        /**
+         * 把数据的插入或更新加入批量操作，返回该操作的位置，没有修改时返回 -1
+         */
+        int addDataOperation(long noteId, long dataId, String mimeType,
+                ContentValues values, ArrayList<ContentProviderOperation> operationList) {
+            if (values.size() == 0) {
+                return -1;
             }
 
-            if(mCallDataValues.size() > 0) {
-// 插入通话数据
-                mCallDataValues.put(DataColumns.NOTE_ID, noteId);
-                if (mCallDataId == 0) {
-                    mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI, mCallDataValues);
-                    try {
-                        setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "插入新的通话数据失败，笔记ID为" + noteId);
-                        mCallDataValues.clear();
-                        return null;
-                    }
-                } else {
-// 更新通话数据
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mCallDataId));
-                    builder.withValues(mCallDataValues);
-                    operationList.add(builder.build());
-                }
-                mCallDataValues.clear();
+            ContentProviderOperation.Builder builder;
+            if (dataId == 0) {
+                // 插入新的数据
+                builder = ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                        .withValue(DataColumns.MIME_TYPE, mimeType);
+            } else {
+                // 更新已有的数据
+                builder = ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
             }
-
-            if (operationList.size() > 0) {
-                try {
-                    ContentProviderResult[] results = context.getContentResolver().applyBatch(
-                            Notes.AUTHORITY, operationList);
-                    return (results == null || results.length == 0 || results[0] == null) ? null
-                            : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                } catch (RemoteException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
-                } catch (OperationApplicationException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
-                }
+            builder.withValues(values);
+            if (noteId > 0) {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
+            } else {
+                // 新笔记在批量操作的第一个操作中插入
+                builder.withValueBackReference(DataColumns.NOTE_ID, 0);
             }
-            return null;
+            operationList.add(builder.build());
+            return operationList.size() - 1;
         }
     }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Write-behind saving of a {@link WorkingNote}. Edits schedule a save, which runs on a
+ * background thread once the user stops typing for {@link #SAVE_DELAY}, so at most that
+ * much editing is lost if the process dies. {@link #flush()} writes what's left before the
+ * editor goes away, without blocking the caller. A note reopened meanwhile is loaded once
+ * its queued saves are written, see {@link #waitForPendingSave(long)}. Must be used on the
+ * main thread
+ */
+public class NoteAutoSaver {
+    private static final String TAG = "NoteAutoSaver";
+
+    // Delay after the latest edit before the note is saved, in milliseconds
+    public static final long SAVE_DELAY = 2000;
+
+    // One thread for all notes, saves are written in the order they are scheduled
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+
+    // The latest queued save of each note, removed once it is written
+    private static final ConcurrentHashMap<Long, Future<Boolean>> sPendingSaves =
+            new ConcurrentHashMap<Long, Future<Boolean>>();
+
+    private final WorkingNote mWorkingNote;
+
+    private final OnCollectEditsListener mOnCollectEditsListener;
+
+    private final Handler mHandler;
+
+    public interface OnCollectEditsListener {
+        /**
+         * Called on the main thread before each save, the listener should copy the pending
+         * edits of the views into the working note
+         */
+        void onCollectEdits();
+    }
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        public void run() {
+            mOnCollectEditsListener.onCollectEdits();
+            submitSave();
+        }
+    };
+
+    private final Callable<Boolean> mSaveCallable = new Callable<Boolean>() {
+        public Boolean call() {
+            return mWorkingNote.saveNote();
+        }
+    };
+
+    public NoteAutoSaver(WorkingNote note, OnCollectEditsListener l) {
+        mWorkingNote = note;
+        mOnCollectEditsListener = l;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Called after each edit, the save is delayed until no edit happens for {@link #SAVE_DELAY}
+     */
+    public void scheduleSave() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        mHandler.postDelayed(mSaveRunnable, SAVE_DELAY);
+    }
+
+    /**
+     * Cancel the scheduled save, the edits are kept in the working note
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mSaveRunnable);
+    }
+
+    /**
+     * Save the pending edits in background now, the scheduled save is taken over. A load of
+     * the note started before the save is written waits for it
+     *
+     * @return true if there are edits to write
+     */
+    public boolean flush() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        mOnCollectEditsListener.onCollectEdits();
+        if (!mWorkingNote.hasUnsavedChanges()) {
+            return false;
+        }
+        submitSave();
+        return true;
+    }
+
+    /**
+     * Save the pending edits now and wait until they and all saves scheduled before are
+     * written. Only for the callers that need the id of a new note right away
+     *
+     * @return true if this save has written the note
+     */
+    public boolean flushAndWait() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        mOnCollectEditsListener.onCollectEdits();
+        Future<Boolean> future = submitSave();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Flush note interrupted: " + e.toString());
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Flush note failed: " + e.getCause());
+        }
+        return false;
+    }
+
+    /**
+     * Wait until the queued saves of the note are written, so its load doesn't see the state
+     * before them. Returns right away if no save of the note is queued
+     */
+    static void waitForPendingSave(long noteId) {
+        Future<Boolean> future = sPendingSaves.get(noteId);
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Wait for note save interrupted: " + e.toString());
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Queued note save failed: " + e.getCause());
+        }
+    }
+
+    // the cached note is dropped as soon as the edits are taken, not once they are written,
+    // a new note has no id to be reopened with until it is saved
+    private Future<Boolean> submitSave() {
+        final long noteId = mWorkingNote.getNoteId();
+        FutureTask<Boolean> task = new FutureTask<Boolean>(mSaveCallable) {
+            @Override
+            protected void done() {
+                sPendingSaves.remove(noteId, this);
+            }
+        };
+        if (noteId > 0) {
+            sPendingSaves.put(noteId, task);
+            mWorkingNote.discardCachedState();
+        }
+        sSaveExecutor.execute(task);
+        return task;
+    }
+}
@@ -17,12 +17,17 @@
 package net.micode.notes.model;
 
 import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import net.micode.notes.data.ContentChunks;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
@@ -35,8 +40,8 @@ import net.micode.notes.tool.ResourceParser.NoteBgResources;
 public class WorkingNote {
     // Note for the working note
     private Note mNote;
-    // Note Id
-    private long mNoteId;
+    // Note Id, assigned by the saving thread
+    private volatile long mNoteId;
     // Note content
     private String mContent;
     // Note mode
@@ -62,6 +67,11 @@ public class WorkingNote {
 
     private NoteSettingChangedListener mNoteSettingStatusListener;
 
+    // Serializes saves, the note itself is only locked while its changes are taken or put back
+    private final Object mSaveLock = new Object();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     public static final String[] DATA_PROJECTION = new String[] {
             DataColumns.ID,
             DataColumns.CONTENT,
@@ -70,6 +80,7 @@ public class WorkingNote {
             DataColumns.DATA2,
             DataColumns.DATA3,
             DataColumns.DATA4,
+            DataColumns.CHUNK_COUNT,
     };
 
     public static final String[] NOTE_PROJECTION = new String[] {
@@ -89,6 +100,8 @@ public class WorkingNote {
 
     private static final int DATA_MODE_COLUMN = 3;
 
+    private static final int DATA_CHUNK_COUNT_COLUMN = 7;
+
     private static final int NOTE_PARENT_ID_COLUMN = 0;
 
     private static final int NOTE_ALERTED_DATE_COLUMN = 1;
@@ -121,7 +134,50 @@ public class WorkingNote {
         mFolderId = folderId;
         mIsDeleted = false;
         mNote = new Note();
-        loadNote();
+        WorkingNoteCache cache = WorkingNoteCache.getInstance(context);
+        WorkingNoteCache.Entry entry = cache.get(noteId);
+        if (entry != null) {
+            restore(entry);
+        } else {
+            long generation = cache.getGeneration();
+            loadNote();
+            // only cache a note found with its text data, out of trash folder
+            if (mNote.getTextDataId() > 0 && mFolderId != Notes.ID_TRASH_FOLER) {
+                cache.put(noteId, snapshot(), generation);
+            }
+        }
+    }
+
+    private void restore(WorkingNoteCache.Entry entry) {
+        mFolderId = entry.folderId;
+        mBgColorId = entry.bgColorId;
+        mWidgetId = entry.widgetId;
+        mWidgetType = entry.widgetType;
+        mAlertDate = entry.alertDate;
+        mModifiedDate = entry.modifiedDate;
+        mContent = entry.content;
+        mMode = entry.mode;
+        if (entry.textDataId > 0) {
+            mNote.setTextDataId(entry.textDataId);
+        }
+        if (entry.callDataId > 0) {
+            mNote.setCallDataId(entry.callDataId);
+        }
+    }
+
+    private WorkingNoteCache.Entry snapshot() {
+        WorkingNoteCache.Entry entry = new WorkingNoteCache.Entry();
+        entry.folderId = mFolderId;
+        entry.bgColorId = mBgColorId;
+        entry.widgetId = mWidgetId;
+        entry.widgetType = mWidgetType;
+        entry.alertDate = mAlertDate;
+        entry.modifiedDate = mModifiedDate;
+        entry.content = mContent;
+        entry.mode = mMode;
+        entry.textDataId = mNote.getTextDataId();
+        entry.callDataId = mNote.getCallDataId();
+        return entry;
     }
 
     private void loadNote() {
@@ -158,6 +214,11 @@ public class WorkingNote {
                     String type = cursor.getString(DATA_MIME_TYPE_COLUMN);
                     if (DataConstants.NOTE.equals(type)) {
                         mContent = cursor.getString(DATA_CONTENT_COLUMN);
+                        int chunkCount = cursor.getInt(DATA_CHUNK_COUNT_COLUMN);
+                        if (chunkCount > 0) {
+                            mContent = loadChunkedContent(cursor.getLong(DATA_ID_COLUMN),
+                                    chunkCount);
+                        }
                         mMode = cursor.getInt(DATA_MODE_COLUMN);
                         mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
                     } else if (DataConstants.CALL_NOTE.equals(type)) {
@@ -174,6 +235,22 @@ public class WorkingNote {
         }
     }
 
+    /**
+     * Reassemble an oversized content from its chunks, falling back to the inline beginning
+     */
+    private String loadChunkedContent(long dataId, int chunkCount) {
+        long start = SystemClock.uptimeMillis();
+        String content = ContentChunks.readContent(mContext.getContentResolver(), dataId,
+                chunkCount);
+        if (content == null) {
+            Log.e(TAG, "Load chunks failed with data id:" + dataId);
+            return mContent;
+        }
+        Log.d(TAG, "Load " + content.length() + " chars from chunks in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+        return content;
+    }
+
     public static WorkingNote createEmptyNote(Context context, long folderId, int widgetId,
             int widgetType, int defaultBgColorId) {
         WorkingNote note = new WorkingNote(context, folderId);
@@ -183,35 +260,76 @@ public class WorkingNote {
         return note;
     }
 
+    /**
+     * Load an existing note, after the saves of it still queued by {@link NoteAutoSaver}
+     */
     public static WorkingNote load(Context context, long id) {
+        NoteAutoSaver.waitForPendingSave(id);
         return new WorkingNote(context, id, 0);
     }
 
-    public synchronized boolean saveNote() {
-        if (isWorthSaving()) {
+    /**
+     * Drop the cached state of the note, its edits are about to be written
+     */
+    void discardCachedState() {
+        if (mNoteId > 0) {
+            WorkingNoteCache.getInstance(mContext).remove(mNoteId);
+        }
+    }
+
+    /**
+     * Save the changes made so far. The database is written without holding the note's
+     * lock, so it's safe to call on a background thread while the note is being edited
+     */
+    public boolean saveNote() {
+        synchronized (mSaveLock) {
+            Note.SyncBatch batch;
+            synchronized (this) {
+                if (!isWorthSaving()) {
+                    return false;
+                }
+                // a new note gets its id when the batch inserts it with its data
+                batch = mNote.takeSyncBatch(mNoteId, mFolderId);
+            }
+            ContentProviderResult[] results = Note.applySyncBatch(mContext, batch);
+            synchronized (this) {
+                mNote.finishSyncBatch(batch, results);
+            }
             if (!existInDatabase()) {
-                if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
-                    Log.e(TAG, "Create new note fail with id:" + mNoteId);
+                if (batch.getNoteId() == 0) {
+                    Log.e(TAG, "Create new note fail with folder id:" + mFolderId);
                     return false;
                 }
+                mNoteId = batch.getNoteId();
             }
-
-            mNote.syncNote(mContext, mNoteId);
+            // the provider will notify the change later, don't let a reopen see the old state
+            WorkingNoteCache.getInstance(mContext).remove(mNoteId);
 
             /**
-             * Update widget content if there exist any widget of this note
+             * Update widget content if there exist any widget of this note, the listener
+             * touches views so it's called on the main thread
              */
+            final NoteSettingChangedListener listener = mNoteSettingStatusListener;
             if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
                     && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
-                    && mNoteSettingStatusListener != null) {
-                mNoteSettingStatusListener.onWidgetChanged();
+                    && listener != null) {
+                sMainHandler.post(new Runnable() {
+                    public void run() {
+                        listener.onWidgetChanged();
+                    }
+                });
             }
             return true;
-        } else {
-            return false;
         }
     }
 
+    /**
+     * Whether {@link #saveNote()} has anything to write
+     */
+    public synchronized boolean hasUnsavedChanges() {
+        return isWorthSaving();
+    }
+
     public boolean existInDatabase() {
         return mNoteId > 0;
     }
@@ -229,7 +347,7 @@ public class WorkingNote {
         mNoteSettingStatusListener = l;
     }
 
-    public void setAlertDate(long date, boolean set) {
+    public synchronized void setAlertDate(long date, boolean set) {
         if (date != mAlertDate) {
             mAlertDate = date;
             mNote.setNoteValue(NoteColumns.ALERTED_DATE, String.valueOf(mAlertDate));
@@ -239,7 +357,7 @@ public class WorkingNote {
         }
     }
 
-    public void markDeleted(boolean mark) {
+    public synchronized void markDeleted(boolean mark) {
         mIsDeleted = mark;
         if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
                 && mWidgetType != Notes.TYPE_WIDGET_INVALIDE && mNoteSettingStatusListener != null) {
@@ -247,7 +365,7 @@ public class WorkingNote {
         }
     }
 
-    public void setBgColorId(int id) {
+    public synchronized void setBgColorId(int id) {
         if (id != mBgColorId) {
             mBgColorId = id;
             if (mNoteSettingStatusListener != null) {
@@ -257,7 +375,7 @@ public class WorkingNote {
         }
     }
 
-    public void setCheckListMode(int mode) {
+    public synchronized void setCheckListMode(int mode) {
         if (mMode != mode) {
             if (mNoteSettingStatusListener != null) {
                 mNoteSettingStatusListener.onCheckListModeChanged(mMode, mode);
@@ -267,28 +385,28 @@ public class WorkingNote {
         }
     }
 
-    public void setWidgetType(int type) {
+    public synchronized void setWidgetType(int type) {
         if (type != mWidgetType) {
             mWidgetType = type;
             mNote.setNoteValue(NoteColumns.WIDGET_TYPE, String.valueOf(mWidgetType));
         }
     }
 
-    public void setWidgetId(int id) {
+    public synchronized void setWidgetId(int id) {
         if (id != mWidgetId) {
             mWidgetId = id;
             mNote.setNoteValue(NoteColumns.WIDGET_ID, String.valueOf(mWidgetId));
         }
     }
 
-    public void setWorkingText(String text) {
+    public synchronized void setWorkingText(String text) {
         if (!TextUtils.equals(mContent, text)) {
             mContent = text;
             mNote.setTextData(DataColumns.CONTENT, mContent);
         }
     }
 
-    public void convertToCallNote(String phoneNumber, long callDate) {
+    public synchronized void convertToCallNote(String phoneNumber, long callDate) {
         mNote.setCallData(CallNote.CALL_DATE, String.valueOf(callDate));
         mNote.setCallData(CallNote.PHONE_NUMBER, phoneNumber);
         mNote.setNoteValue(NoteColumns.PARENT_ID, String.valueOf(Notes.ID_CALL_RECORD_FOLDER));
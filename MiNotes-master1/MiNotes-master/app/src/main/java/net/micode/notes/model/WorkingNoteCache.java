@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.util.LruCache;
+
+import net.micode.notes.data.Notes;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recently loaded notes, so reopening a note doesn't query the database again. Entries are
+ * removed when the provider notifies a change of the note, and all entries are dropped when
+ * the change can't be narrowed down to single notes
+ */
+class WorkingNoteCache {
+    // Bound of the cached content, in chars
+    private static final int MAX_CACHED_CHARS = 256 * 1024;
+
+    private static WorkingNoteCache sInstance;
+
+    private final LruCache<Long, Entry> mEntries;
+
+    // Increased on each invalidation, a load started before it must not be cached
+    private long mGeneration;
+
+    /**
+     * The loaded state of a note, it's never modified once cached
+     */
+    static class Entry {
+        long folderId;
+        int bgColorId;
+        int widgetId;
+        int widgetType;
+        long alertDate;
+        long modifiedDate;
+        String content;
+        int mode;
+        long textDataId;
+        long callDataId;
+    }
+
+    private WorkingNoteCache() {
+        mEntries = new LruCache<Long, Entry>(MAX_CACHED_CHARS) {
+            @Override
+            protected int sizeOf(Long key, Entry value) {
+                return 1 + (value.content == null ? 0 : value.content.length());
+            }
+        };
+    }
+
+    static synchronized WorkingNoteCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WorkingNoteCache();
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    Notes.CONTENT_NOTE_URI, true, sInstance.new InvalidateObserver());
+        }
+        return sInstance;
+    }
+
+    Entry get(long noteId) {
+        return mEntries.get(noteId);
+    }
+
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a note loaded after {@code generation} was read, unless it has been invalidated
+     * since then
+     */
+    synchronized void put(long noteId, Entry entry, long generation) {
+        if (generation == mGeneration) {
+            mEntries.put(noteId, entry);
+        }
+    }
+
+    synchronized void remove(long noteId) {
+        mGeneration++;
+        mEntries.remove(noteId);
+    }
+
+    /**
+     * Drop the notes of a folder, its notes may have been moved or deleted along with it
+     * without a change of their own uris
+     */
+    synchronized void removeFolder(long folderId) {
+        mGeneration++;
+        for (Map.Entry<Long, Entry> entry : mEntries.snapshot().entrySet()) {
+            if (entry.getValue().folderId == folderId) {
+                mEntries.remove(entry.getKey());
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    private class InvalidateObserver extends ContentObserver {
+        InvalidateObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            clear();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // data changes are notified on the note's uri too. A folder is notified on
+            // note/<id> when it's changed itself and on note/folder/<id> when its content
+            // changed, the notes in it may be gone with no uri of their own notified
+            List<String> segments = uri == null ? null : uri.getPathSegments();
+            try {
+                if (segments == null || segments.size() < 2) {
+                    clear();
+                } else if (segments.size() == 2) {
+                    long id = ContentUris.parseId(uri);
+                    remove(id);
+                    removeFolder(id);
+                } else if (segments.size() == 3 && "folder".equals(segments.get(1))) {
+                    removeFolder(ContentUris.parseId(uri));
+                } else {
+                    clear();
+                }
+            } catch (NumberFormatException e) {
+                clear();
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package net.micode.notes.tool;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Environment;
@@ -24,6 +25,7 @@ import android.text.format.DateFormat;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.ContentChunks;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
@@ -85,6 +87,39 @@ public class BackupUtils {
         return mTextExport.mFileDirectory;
     }
 
+    /**
+     * Counts the chars appended to the stream
+     */
+    private static class CountingAppendable implements Appendable {
+        private final Appendable mOut;
+
+        private int mCount;
+
+        CountingAppendable(Appendable out) {
+            mOut = out;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        public Appendable append(CharSequence csq) throws IOException {
+            return append(csq, 0, csq.length());
+        }
+
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            mOut.append(csq, start, end);
+            mCount += end - start;
+            return this;
+        }
+
+        public Appendable append(char c) throws IOException {
+            mOut.append(c);
+            mCount++;
+            return this;
+        }
+    }
+
     private static class TextExport {
         private static final String[] NOTE_PROJECTION = {
                 NoteColumns.ID,
@@ -106,6 +141,8 @@ public class BackupUtils {
                 DataColumns.DATA2,
                 DataColumns.DATA3,
                 DataColumns.DATA4,
+                DataColumns.ID,
+                DataColumns.CHUNK_COUNT,
         };
 
         private static final int DATA_COLUMN_CONTENT = 0;
@@ -116,6 +153,10 @@ public class BackupUtils {
 
         private static final int DATA_COLUMN_PHONE_NUMBER = 4;
 
+        private static final int DATA_COLUMN_ID = 6;
+
+        private static final int DATA_COLUMN_CHUNK_COUNT = 7;
+
         private final String [] TEXT_FORMAT;
         private static final int FORMAT_FOLDER_NAME          = 0;
         private static final int FORMAT_NOTE_DATE            = 1;
@@ -196,7 +237,11 @@ public class BackupUtils {
                             }
                         } else if (DataConstants.NOTE.equals(mimeType)) {
                             String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                            if (!TextUtils.isEmpty(content)) {
+                            if (dataCursor.getInt(DATA_COLUMN_CHUNK_COUNT) > 0) {
+                                exportChunkedContentToText(
+                                        dataCursor.getLong(DATA_COLUMN_ID),
+                                        dataCursor.getInt(DATA_COLUMN_CHUNK_COUNT), content, ps);
+                            } else if (!TextUtils.isEmpty(content)) {
                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
                                         content));
                             }
@@ -215,6 +260,37 @@ public class BackupUtils {
             }
         }
 
+        /**
+         * Export an oversized content chunk by chunk, so the whole content is never held in
+         * memory. The chunks are streamed as they are read, if one can't be read the content
+         * written so far, or at least the inline beginning, ends with a marker saying the rest
+         * is missing
+         */
+        private void exportChunkedContentToText(long dataId, int chunkCount, String head,
+                PrintStream ps) {
+            String format = getFormat(FORMAT_NOTE_CONTENT);
+            int index = format.indexOf("%s");
+            ps.print(format.substring(0, index));
+            CountingAppendable out = new CountingAppendable(ps);
+            boolean complete;
+            try {
+                complete = ContentChunks.writeContent(mContext.getContentResolver(), dataId,
+                        chunkCount, out);
+            } catch (IOException e) {
+                Log.e(TAG, "Export chunks of data " + dataId + " failed: " + e.toString());
+                complete = false;
+            }
+            if (!complete) {
+                Log.e(TAG, "Chunks of data " + dataId + " are unreadable after "
+                        + out.getCount() + " chars");
+                if (head != null && out.getCount() < head.length()) {
+                    ps.print(head.substring(out.getCount()));
+                }
+                ps.print("\n" + mContext.getString(R.string.export_content_incomplete));
+            }
+            ps.println(format.substring(index + 2));
+        }
+
         /**
          * Note will be exported as text which is user readable
          */
@@ -29,10 +29,13 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Paint;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
 import android.text.style.BackgroundColorSpan;
 import android.util.Log;
@@ -55,6 +58,7 @@ import android.widget.Toast;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.NoteAutoSaver;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.tool.DataUtils;
@@ -62,6 +66,7 @@ import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
 import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
+import net.micode.notes.ui.NoteEditText.OnUndoRequestListener;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
@@ -73,7 +78,7 @@ import java.util.regex.Pattern;
 
 
 public class NoteEditActivity extends Activity implements OnClickListener,
-        NoteSettingChangedListener, OnTextViewChangeListener {
+        NoteSettingChangedListener, OnTextViewChangeListener, OnUndoRequestListener {
     private class HeadViewHolder {
         public TextView tvModified;
 
@@ -134,6 +139,16 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private WorkingNote mWorkingNote;
 
+    private NoteAutoSaver mAutoSaver;
+
+    private NoteEditJournal mJournal;
+
+    // Whether the views are being reset to a state of the journal
+    private boolean mApplyingJournal;
+
+    // Edits without a pause longer than this are undone together, in milliseconds
+    static final long UNDO_GROUP_DELAY = 1000;
+
     private SharedPreferences mSharedPrefs;
     private int mFontSizeId;
 
@@ -259,6 +274,15 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             return false;
         }
         mWorkingNote.setOnSettingStatusChangedListener(this);
+        if (mAutoSaver != null) {
+            mAutoSaver.cancel();
+        }
+        mAutoSaver = new NoteAutoSaver(mWorkingNote, new NoteAutoSaver.OnCollectEditsListener() {
+            public void onCollectEdits() {
+                getWorkingText();
+            }
+        });
+        mJournal = new NoteEditJournal();
         return true;
     }
 
@@ -293,6 +317,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          * is not ready
          */
         showAlertHeader();
+        if (!mJournal.isStarted()) {
+            mJournal.reset(mWorkingNote.getCheckListMode(), mWorkingNote.getContent());
+        }
     }
 
     private void showAlertHeader() {
@@ -327,7 +354,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          * is no id which is equivalent to create new note
          */
         if (!mWorkingNote.existInDatabase()) {
-            saveNote();
+            saveNoteAndWait();
         }
         outState.putLong(Intent.EXTRA_UID, mWorkingNote.getNoteId());
         Log.d(TAG, "Save working note id: " + mWorkingNote.getNoteId() + " onSaveInstanceState");
@@ -372,6 +399,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         mNoteHeaderHolder.ibSetBgColor = (ImageView) findViewById(R.id.btn_set_bg_color);
         mNoteHeaderHolder.ibSetBgColor.setOnClickListener(this);
         mNoteEditor = (EditText) findViewById(R.id.note_edit_view);
+        mNoteEditor.addTextChangedListener(mAutoSaveWatcher);
+        ((NoteEditText) mNoteEditor).setOnUndoRequestListener(this);
         mNoteEditorPanel = findViewById(R.id.sv_note_edit);
         mNoteBgColorSelector = findViewById(R.id.note_bg_color_selector);
         for (int id : sBgSelectorBtnsMap.keySet()) {
@@ -401,7 +430,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     protected void onPause() {
         super.onPause();
         if(saveNote()) {
-            Log.d(TAG, "Note data was saved with length:" + mWorkingNote.getContent().length());
+            Log.d(TAG, "Note data is being saved with length:" + mWorkingNote.getContent().length());
         }
         clearSettingState();
     }
@@ -502,6 +531,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         } else {
             menu.findItem(R.id.menu_delete_remind).setVisible(false);
         }
+        checkpointJournal();
+        menu.findItem(R.id.menu_undo).setEnabled(mJournal.canUndo());
+        menu.findItem(R.id.menu_redo).setEnabled(mJournal.canRedo());
         return true;
     }
 
@@ -511,6 +543,12 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             case R.id.menu_new_note:
                 createNewNote();
                 break;
+            case R.id.menu_undo:
+                onUndoRequest();
+                break;
+            case R.id.menu_redo:
+                onRedoRequest();
+                break;
             case R.id.menu_delete:
                 AlertDialog.Builder builder = new AlertDialog.Builder(this);
                 builder.setTitle(getString(R.string.alert_title_delete));
@@ -531,8 +569,11 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
                 break;
             case R.id.menu_list_mode:
+                // The mode switch and the text it converts are undone as one edit
+                checkpointJournal();
                 mWorkingNote.setCheckListMode(mWorkingNote.getCheckListMode() == 0 ?
                         TextNote.MODE_CHECK_LIST : 0);
+                checkpointJournal();
                 break;
             case R.id.menu_share:
                 getWorkingText();
@@ -618,7 +659,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          * alert clock, we should save the note first
          */
         if (!mWorkingNote.existInDatabase()) {
-            saveNote();
+            saveNoteAndWait();
         }
         if (mWorkingNote.getNoteId() > 0) {
             Intent intent = new Intent(this, AlarmReceiver.class);
@@ -729,6 +770,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
         final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
         edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
+        edit.addTextChangedListener(mAutoSaveWatcher);
+        edit.setOnUndoRequestListener(this);
         CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
         cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
@@ -737,6 +780,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 } else {
                     edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
                 }
+                scheduleAutoSave();
+                scheduleJournalCheckpoint();
             }
         });
 
@@ -769,6 +814,10 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     public void onCheckListModeChanged(int oldMode, int newMode) {
+        if (mApplyingJournal) {
+            // The views are reset by applyJournalState()
+            return;
+        }
         if (newMode == TextNote.MODE_CHECK_LIST) {
             switchToListMode(mNoteEditor.getText().toString());
         } else {
@@ -805,22 +854,129 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         return hasChecked;
     }
 
-    private boolean saveNote() {
+    /**
+     * Edits are saved in background after a short pause, see {@link NoteAutoSaver}
+     */
+    private final TextWatcher mAutoSaveWatcher = new TextWatcher() {
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            scheduleAutoSave();
+            scheduleJournalCheckpoint();
+        }
+    };
+
+    private void scheduleAutoSave() {
+        if (mAutoSaver != null) {
+            mAutoSaver.scheduleSave();
+        }
+    }
+
+    private final Runnable mJournalCheckpoint = new Runnable() {
+        public void run() {
+            checkpointJournal();
+        }
+    };
+
+    private void scheduleJournalCheckpoint() {
+        if (!mApplyingJournal) {
+            mNoteEditor.removeCallbacks(mJournalCheckpoint);
+            mNoteEditor.postDelayed(mJournalCheckpoint, UNDO_GROUP_DELAY);
+        }
+    }
+
+    /**
+     * Record the edits since the last checkpoint as one entry of the undo history
+     */
+    private void checkpointJournal() {
+        mNoteEditor.removeCallbacks(mJournalCheckpoint);
+        getWorkingText();
+        mJournal.record(mWorkingNote.getCheckListMode(), mWorkingNote.getContent());
+    }
+
+    public boolean onUndoRequest() {
+        checkpointJournal();
+        if (mJournal.undo()) {
+            applyJournalState();
+        }
+        return true;
+    }
+
+    public boolean onRedoRequest() {
+        checkpointJournal();
+        if (mJournal.redo()) {
+            applyJournalState();
+        }
+        return true;
+    }
+
+    /**
+     * Reset the working note and the views to the current state of the journal
+     */
+    private void applyJournalState() {
+        String text = mJournal.getText();
+        mApplyingJournal = true;
+        mWorkingNote.setWorkingText(text);
+        mWorkingNote.setCheckListMode(mJournal.getMode());
+        if (mJournal.getMode() == TextNote.MODE_CHECK_LIST) {
+            switchToListMode(text);
+        } else {
+            mNoteEditor.setText(getHighlightQueryResult(text, mUserQuery));
+            mNoteEditor.setSelection(mNoteEditor.length());
+            mEditTextList.setVisibility(View.GONE);
+            mNoteEditor.setVisibility(View.VISIBLE);
+        }
+        mApplyingJournal = false;
+
+        // The check list drops empty items, continue from the text really shown
+        mNoteEditor.removeCallbacks(mJournalCheckpoint);
         getWorkingText();
-        boolean saved = mWorkingNote.saveNote();
+        mJournal.rebase(mWorkingNote.getCheckListMode(), mWorkingNote.getContent());
+        scheduleAutoSave();
+    }
+
+    /**
+     * Write all edits in background now, the pending delayed save is taken over
+     *
+     * @return true if there are edits being written
+     */
+    private boolean saveNote() {
+        boolean saving = mAutoSaver.flush();
+        if (saving) {
+            setSavedResult();
+        }
+        return saving;
+    }
+
+    /**
+     * Write all edits and wait for them, used when the id of a new note is needed right away
+     */
+    private boolean saveNoteAndWait() {
+        long start = SystemClock.uptimeMillis();
+        boolean saved = mAutoSaver.flushAndWait();
+        Log.d(TAG, "Save note " + (saved ? "done" : "skipped") + " in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
         if (saved) {
-            /**
-             * There are two modes from List view to edit view, open one note,
-             * create/edit a node. Opening node requires to the original
-             * position in the list when back from edit view, while creating a
-             * new node requires to the top of the list. This code
-             * {@link #RESULT_OK} is used to identify the create/edit state
-             */
-            setResult(RESULT_OK);
+            setSavedResult();
         }
         return saved;
     }
 
+    private void setSavedResult() {
+        /**
+         * There are two modes from List view to edit view, open one note,
+         * create/edit a node. Opening node requires to the original
+         * position in the list when back from edit view, while creating a
+         * new node requires to the top of the list. This code
+         * {@link #RESULT_OK} is used to identify the create/edit state
+         */
+        setResult(RESULT_OK);
+    }
+
     private void sendToDesktop() {
         /**
          * Before send message to home, we should make sure that current
@@ -828,7 +984,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          * save it
          */
         if (!mWorkingNote.existInDatabase()) {
-            saveNote();
+            saveNoteAndWait();
         }
 
         if (mWorkingNote.getNoteId() > 0) {
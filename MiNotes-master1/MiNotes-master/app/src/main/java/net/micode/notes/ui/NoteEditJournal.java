@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.util.Log;
+
+/**
+ * Undo and redo history of the note being edited. The history works on the working text of
+ * the note rather than on the edit texts, so it survives switching between normal and check
+ * list mode, which rebuilds all the edit texts. Each entry keeps only the replaced range of
+ * the text, entries are kept in a ring buffer bounded by count and by total chars, the oldest
+ * ones are dropped first. The latest entry is always kept, even if it alone is over the chars
+ */
+class NoteEditJournal {
+    private static final String TAG = "NoteEditJournal";
+
+    // Max number of entries in the history
+    static final int MAX_EDITS = 200;
+
+    // Max chars of all removed and inserted text in the history
+    static final int MAX_CHARS = 64 * 1024;
+
+    private static class Edit {
+        // Replaced range starts at mStart, mRemoved is replaced by mInserted
+        int mStart;
+        String mRemoved;
+        String mInserted;
+        int mOldMode;
+        int mNewMode;
+
+        int length() {
+            return mRemoved.length() + mInserted.length();
+        }
+    }
+
+    private final Edit[] mEdits = new Edit[MAX_EDITS];
+
+    // Index of the oldest entry in mEdits
+    private int mFirst;
+
+    // Number of entries in mEdits
+    private int mCount;
+
+    // Number of entries done, the entries after them can be redone
+    private int mPosition;
+
+    private int mChars;
+
+    // The text and mode that the latest done entry leads to
+    private String mText;
+    private int mMode;
+
+    boolean isStarted() {
+        return mText != null;
+    }
+
+    /**
+     * Drop the history and start from the given state
+     */
+    void reset(int mode, String text) {
+        for (int i = 0; i < MAX_EDITS; i++) {
+            mEdits[i] = null;
+        }
+        mFirst = 0;
+        mCount = 0;
+        mPosition = 0;
+        mChars = 0;
+        mText = text;
+        mMode = mode;
+    }
+
+    /**
+     * Take the given state as the current one without recording an entry, used when the views
+     * normalize the text that has been set into them
+     */
+    void rebase(int mode, String text) {
+        mText = text;
+        mMode = mode;
+    }
+
+    String getText() {
+        return mText;
+    }
+
+    int getMode() {
+        return mMode;
+    }
+
+    boolean canUndo() {
+        return mPosition > 0;
+    }
+
+    boolean canRedo() {
+        return mPosition < mCount;
+    }
+
+    /**
+     * Record the change from the current state to the given one, the entries that could be
+     * redone are dropped
+     *
+     * @return true if anything has changed
+     */
+    boolean record(int mode, String text) {
+        if (!isStarted()) {
+            reset(mode, text);
+            return false;
+        }
+        if (mode == mMode && mText.equals(text)) {
+            return false;
+        }
+        Edit edit = diff(mText, text);
+        edit.mOldMode = mMode;
+        edit.mNewMode = mode;
+        mText = text;
+        mMode = mode;
+
+        while (mCount > mPosition) {
+            removeLast();
+        }
+        if (mCount == MAX_EDITS) {
+            removeFirst();
+        }
+        mEdits[(mFirst + mCount) % MAX_EDITS] = edit;
+        mCount++;
+        mPosition++;
+        mChars += edit.length();
+        while (mChars > MAX_CHARS && mCount > 1) {
+            removeFirst();
+        }
+        return true;
+    }
+
+    /**
+     * Undo the latest done entry, the result is in {@link #getText()} and {@link #getMode()}
+     */
+    boolean undo() {
+        if (!canUndo()) {
+            return false;
+        }
+        Edit edit = mEdits[(mFirst + mPosition - 1) % MAX_EDITS];
+        if (!replace(edit.mStart, edit.mInserted, edit.mRemoved)) {
+            return false;
+        }
+        mMode = edit.mOldMode;
+        mPosition--;
+        return true;
+    }
+
+    /**
+     * Redo the first undone entry, the result is in {@link #getText()} and {@link #getMode()}
+     */
+    boolean redo() {
+        if (!canRedo()) {
+            return false;
+        }
+        Edit edit = mEdits[(mFirst + mPosition) % MAX_EDITS];
+        if (!replace(edit.mStart, edit.mRemoved, edit.mInserted)) {
+            return false;
+        }
+        mMode = edit.mNewMode;
+        mPosition++;
+        return true;
+    }
+
+    private boolean replace(int start, String oldText, String newText) {
+        if (start + oldText.length() > mText.length()
+                || !mText.regionMatches(start, oldText, 0, oldText.length())) {
+            // The text has been changed out of the history, it can't be walked any more
+            Log.w(TAG, "Edit history doesn't match the text, dropped");
+            reset(mMode, mText);
+            return false;
+        }
+        mText = mText.substring(0, start) + newText
+                + mText.substring(start + oldText.length());
+        return true;
+    }
+
+    private void removeFirst() {
+        mChars -= mEdits[mFirst].length();
+        mEdits[mFirst] = null;
+        mFirst = (mFirst + 1) % MAX_EDITS;
+        mCount--;
+        mPosition = Math.max(mPosition - 1, 0);
+    }
+
+    private void removeLast() {
+        int last = (mFirst + mCount - 1) % MAX_EDITS;
+        mChars -= mEdits[last].length();
+        mEdits[last] = null;
+        mCount--;
+    }
+
+    // Only the range between the common prefix and the common suffix is kept
+    private static Edit diff(String oldText, String newText) {
+        int maxLength = Math.min(oldText.length(), newText.length());
+        int prefixLength = 0;
+        while (prefixLength < maxLength
+                && oldText.charAt(prefixLength) == newText.charAt(prefixLength)) {
+            prefixLength++;
+        }
+        int suffixLength = 0;
+        while (suffixLength < maxLength - prefixLength
+                && oldText.charAt(oldText.length() - 1 - suffixLength)
+                    == newText.charAt(newText.length() - 1 - suffixLength)) {
+            suffixLength++;
+        }
+        Edit edit = new Edit();
+        edit.mStart = prefixLength;
+        edit.mRemoved = oldText.substring(prefixLength, oldText.length() - suffixLength);
+        edit.mInserted = newText.substring(prefixLength, newText.length() - suffixLength);
+        return edit;
+    }
+}
@@ -77,6 +77,24 @@ public class NoteEditText extends EditText {
 
     private OnTextViewChangeListener mOnTextViewChangeListener;
 
+    /**
+     * Call by the {@link NoteEditActivity} to undo or redo edits of the whole note, instead
+     * of the history of this single edit text which is lost when the note switches mode
+     */
+    public interface OnUndoRequestListener {
+        /**
+         * Undo when ctrl+Z happens, return true if handled
+         */
+        boolean onUndoRequest();
+
+        /**
+         * Redo when ctrl+shift+Z or ctrl+Y happens, return true if handled
+         */
+        boolean onRedoRequest();
+    }
+
+    private OnUndoRequestListener mOnUndoRequestListener;
+
     public NoteEditText(Context context) {
         super(context, null);
         mIndex = 0;
@@ -90,6 +108,10 @@ public class NoteEditText extends EditText {
         mOnTextViewChangeListener = listener;
     }
 
+    public void setOnUndoRequestListener(OnUndoRequestListener listener) {
+        mOnUndoRequestListener = listener;
+    }
+
     public NoteEditText(Context context, AttributeSet attrs) {
         super(context, attrs, android.R.attr.editTextStyle);
     }
@@ -167,6 +189,18 @@ public class NoteEditText extends EditText {
         return super.onKeyUp(keyCode, event);
     }
 
+    @Override
+    public boolean onKeyShortcut(int keyCode, KeyEvent event) {
+        if (mOnUndoRequestListener != null && event.isCtrlPressed()) {
+            if (keyCode == KeyEvent.KEYCODE_Z && !event.isShiftPressed()) {
+                return mOnUndoRequestListener.onUndoRequest();
+            } else if (keyCode == KeyEvent.KEYCODE_Z || keyCode == KeyEvent.KEYCODE_Y) {
+                return mOnUndoRequestListener.onRedoRequest();
+            }
+        }
+        return super.onKeyShortcut(keyCode, event);
+    }
+
     @Override
     protected void onFocusChanged(boolean focused, int direction, Rect previouslyFocusedRect) {
         if (mOnTextViewChangeListener != null) {
@@ -23,6 +23,7 @@ import android.text.TextUtils;
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteListColumns;
 import net.micode.notes.tool.DataUtils;
 
 
@@ -40,6 +41,8 @@ public class NoteItemData {
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        NoteListColumns.HAS_ALERT,
+        NoteListColumns.HAS_WIDGET,
     };
 
     private static final int ID_COLUMN                    = 0;
@@ -54,6 +57,8 @@ public class NoteItemData {
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int HAS_ALERT_COLUMN             = 12;
+    private static final int HAS_WIDGET_COLUMN            = 13;
 
     private long mId;
     private long mAlertDate;
@@ -67,6 +72,8 @@ public class NoteItemData {
     private int mType;
     private int mWidgetId;
     private int mWidgetType;
+    private boolean mHasAlert;
+    private boolean mHasWidget;
     private String mName;
     private String mPhoneNumber;
 
@@ -91,6 +98,8 @@ public class NoteItemData {
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
+        mHasAlert = cursor.getInt(HAS_ALERT_COLUMN) > 0;
+        mHasWidget = cursor.getInt(HAS_WIDGET_COLUMN) > 0;
 
         mPhoneNumber = "";
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
@@ -211,7 +220,11 @@ public class NoteItemData {
     }
 
     public boolean hasAlert() {
-        return (mAlertDate > 0);
+        return mHasAlert;
+    }
+
+    public boolean hasWidget() {
+        return mHasWidget;
     }
 
     public boolean isCallRecord() {
@@ -221,4 +234,12 @@ public class NoteItemData {
     public static int getNoteType(Cursor cursor) {
         return cursor.getInt(TYPE_COLUMN);
     }
+
+    public static long getNoteId(Cursor cursor) {
+        return cursor.getLong(ID_COLUMN);
+    }
+
+    public static long getModifiedDate(Cursor cursor) {
+        return cursor.getLong(MODIFIED_DATE_COLUMN);
+    }
 }
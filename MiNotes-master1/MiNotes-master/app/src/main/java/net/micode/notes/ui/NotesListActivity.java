@@ -23,12 +23,16 @@ import android.app.Dialog;
 import android.appwidget.AppWidgetManager;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -83,6 +87,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
 
+    private static final int FOLDER_NOTE_PAGE_QUERY_TOKEN = 2;
+
+    private static final int FOLDER_ALL_ROWS_QUERY_TOKEN  = 3;
+
     private static final int MENU_FOLDER_DELETE = 0;
 
     private static final int MENU_FOLDER_VIEW = 1;
@@ -126,12 +134,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private NoteItemData mFocusNoteDataItem;
 
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
-
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
+    // Increased on each first page query, pages queried for an older list are dropped
+    private int mNotesListGeneration;
 
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
@@ -220,6 +224,20 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
         mNotesListView.setOnItemLongClickListener(this);
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnPageRequestListener(new NotesListAdapter.OnPageRequestListener() {
+            public void onRequestFirstPage(int limit) {
+                startAsyncNotesListQuery(limit);
+            }
+
+            public void onRequestNextPage(int limit, int afterType, long afterModifiedDate,
+                    long afterId) {
+                startAsyncNotesPageQuery(limit, afterType, afterModifiedDate, afterId);
+            }
+
+            public void onRequestAllRows() {
+                startAsyncAllRowsQuery();
+            }
+        });
         mNotesListView.setAdapter(mNotesListAdapter);
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
@@ -438,12 +456,52 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
 
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
-                    String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+        startAsyncNotesListQuery(NotesListAdapter.PAGE_SIZE);
+    }
+
+    /**
+     * Query the first {@code limit} rows of current folder, the rest is loaded page by page
+     * as the list scrolls
+     */
+    private void startAsyncNotesListQuery(int limit) {
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_LIST_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_PAGE_QUERY_TOKEN);
+        mNotesListGeneration++;
+        startNotesQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, getNotesPageUri(limit).build(), limit);
+    }
+
+    private void startAsyncNotesPageQuery(int limit, int afterType, long afterModifiedDate,
+            long afterId) {
+        Uri uri = getNotesPageUri(limit)
+                .appendQueryParameter(Notes.QUERY_PARAMETER_AFTER_TYPE, String.valueOf(afterType))
+                .appendQueryParameter(Notes.QUERY_PARAMETER_AFTER_MODIFIED_DATE,
+                        String.valueOf(afterModifiedDate))
+                .appendQueryParameter(Notes.QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                .build();
+        startNotesQuery(FOLDER_NOTE_PAGE_QUERY_TOKEN, uri, limit);
+    }
+
+    /**
+     * Query the ids of all rows of current folder to select the notes not loaded yet
+     */
+    private void startAsyncAllRowsQuery() {
+        mBackgroundQueryHandler.cancelOperation(FOLDER_ALL_ROWS_QUERY_TOKEN);
+        mBackgroundQueryHandler.startQuery(FOLDER_ALL_ROWS_QUERY_TOKEN, mCurrentFolderId,
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_LIST_URI, mCurrentFolderId),
+                NotesListAdapter.SELECTION_PROJECTION, null, null, null);
+    }
+
+    private Uri.Builder getNotesPageUri(int limit) {
+        // the list uri already lists the call record folder in root folder, and only
+        // re-queries when this folder changes
+        return ContentUris.withAppendedId(Notes.CONTENT_NOTE_LIST_URI, mCurrentFolderId)
+                .buildUpon()
+                .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+    }
+
+    private void startNotesQuery(int token, Uri uri, int limit) {
+        mBackgroundQueryHandler.startQuery(token, new int[] { mNotesListGeneration, limit },
+                uri, NoteItemData.PROJECTION, null, null, null);
     }
 
     private final class BackgroundQueryHandler extends AsyncQueryHandler {
@@ -455,9 +513,39 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             switch (token) {
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
+                case FOLDER_NOTE_PAGE_QUERY_TOKEN:
+                    int[] page = (int[]) cookie;
+                    if (page[0] != mNotesListGeneration) {
+                        // the list has been reloaded since this query started
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    } else if (token == FOLDER_NOTE_LIST_QUERY_TOKEN) {
+                        mNotesListAdapter.changeFirstPage(cursor, page[1]);
+                    } else {
+                        mNotesListAdapter.appendPage(cursor, page[1]);
+                    }
+                    break;
+                case FOLDER_ALL_ROWS_QUERY_TOKEN:
+                    if ((Long) cookie != mCurrentFolderId) {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    } else if (mNotesListAdapter.selectNotes(cursor)) {
+                        mModeCallBack.updateMenu();
+                    }
                     break;
                 case FOLDER_LIST_QUERY_TOKEN:
+                    if (cursor != null && (Boolean) cookie) {
+                        // offer to move the notes back to root folder at the top of the list
+                        MatrixCursor root = new MatrixCursor(FoldersListAdapter.PROJECTION, 1);
+                        root.addRow(new Object[] {
+                                Notes.ID_ROOT_FOLDER, ""
+                        });
+                        cursor = new MergeCursor(new Cursor[] {
+                                root, cursor
+                        });
+                    }
                     if (cursor != null && cursor.getCount() > 0) {
                         showFolderListMenu(cursor);
                     } else {
@@ -953,12 +1041,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private void startQueryDestinationFolders() {
         String selection = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>? AND " + NoteColumns.ID + "<>?";
-        selection = (mState == ListEditState.NOTE_LIST) ? selection:
-            "(" + selection + ") OR (" + NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER + ")";
 
         mBackgroundQueryHandler.startQuery(FOLDER_LIST_QUERY_TOKEN,
-                null,
-                Notes.CONTENT_NOTE_URI,
+                mState != ListEditState.NOTE_LIST,
+                Notes.CONTENT_NOTE_LIST_URI,
                 FoldersListAdapter.PROJECTION,
                 selection,
                 new String[] {
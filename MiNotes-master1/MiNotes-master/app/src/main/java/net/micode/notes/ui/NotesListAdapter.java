@@ -18,36 +18,165 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
+import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteListColumns;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 
 public class NotesListAdapter extends CursorAdapter {
     private static final String TAG = "NotesListAdapter";
+    /**
+     * Rows fetched by one page query
+     */
+    public static final int PAGE_SIZE = 50;
+    // Request the next page when the list is this close to the last loaded row
+    private static final int PREFETCH_DISTANCE = 10;
+    // Changes arriving within this delay reload the list only once
+    private static final long CONTENT_CHANGE_DELAY = 100;
+    /**
+     * Columns to query all rows of the folder when everything is selected, see
+     * {@link #selectNotes}
+     */
+    public static final String[] SELECTION_PROJECTION = new String[] {
+        NoteColumns.ID,
+        NoteColumns.TYPE,
+        NoteColumns.WIDGET_ID,
+        NoteColumns.WIDGET_TYPE,
+        NoteListColumns.HAS_WIDGET,
+    };
+    private static final int SELECTION_ID_COLUMN = 0;
+    private static final int SELECTION_TYPE_COLUMN = 1;
+    private static final int SELECTION_WIDGET_ID_COLUMN = 2;
+    private static final int SELECTION_WIDGET_TYPE_COLUMN = 3;
+    private static final int SELECTION_HAS_WIDGET_COLUMN = 4;
     private Context mContext;
-    private HashMap<Integer, Boolean> mSelectedIndex;
+    // Selected notes by id, positions change when the pages are reloaded
+    private HashSet<Long> mSelectedIds;
+    private HashMap<Long, AppWidgetAttribute> mSelectedWidgets;
+    private boolean mSelectAllPending;
     private int mNotesCount;
+    // Notes of the whole folder, -1 when only the loaded pages are known
+    private int mAllNotesCount;
     private boolean mChoiceMode;
+    private ArrayList<Cursor> mPages;
+    private boolean mHasMorePages;
+    private boolean mPageLoading;
+    private OnPageRequestListener mPageRequestListener;
+    private final Handler mHandler;
+    private final Runnable mReloadRunnable = new Runnable() {
+        public void run() {
+            // reload as many rows as are loaded now, so the scroll position is kept
+            if (mPageRequestListener != null) {
+                mPageRequestListener.onRequestFirstPage(Math.max(PAGE_SIZE, getCount()));
+            }
+        }
+    };
 
     public static class AppWidgetAttribute {
         public int widgetId;
         public int widgetType;
     };
 
+    public interface OnPageRequestListener {
+        /**
+         * Called when the loaded rows changed in database, the listener should query the
+         * first {@code limit} rows again and pass them to {@link #changeFirstPage}
+         */
+        void onRequestFirstPage(int limit);
+
+        /**
+         * Called when the list scrolls near the last loaded row, the listener should query
+         * {@code limit} rows after the given key and pass them to {@link #appendPage}
+         */
+        void onRequestNextPage(int limit, int afterType, long afterModifiedDate, long afterId);
+
+        /**
+         * Called when all notes are selected while some pages are not loaded, the listener
+         * should query {@link #SELECTION_PROJECTION} of all rows and pass them to
+         * {@link #selectNotes}
+         */
+        void onRequestAllRows();
+    }
+
     public NotesListAdapter(Context context) {
-        super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        super(context, null, FLAG_REGISTER_CONTENT_OBSERVER);
+        mSelectedIds = new HashSet<Long>();
+        mSelectedWidgets = new HashMap<Long, AppWidgetAttribute>();
         mContext = context;
         mNotesCount = 0;
+        mAllNotesCount = -1;
+        mPages = new ArrayList<Cursor>();
+        mHandler = new Handler();
+    }
+
+    public void setOnPageRequestListener(OnPageRequestListener l) {
+        mPageRequestListener = l;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (mHasMorePages && !mPageLoading && position >= getCount() - PREFETCH_DISTANCE) {
+            requestNextPage();
+        }
+        return super.getView(position, convertView, parent);
+    }
+
+    private void requestNextPage() {
+        Cursor cursor = getCursor();
+        if (mPageRequestListener == null || cursor == null || !cursor.moveToLast()) {
+            return;
+        }
+        mPageLoading = true;
+        mPageRequestListener.onRequestNextPage(PAGE_SIZE, NoteItemData.getNoteType(cursor),
+                NoteItemData.getModifiedDate(cursor), NoteItemData.getNoteId(cursor));
+    }
+
+    /**
+     * Replace all loaded rows with the first page queried with {@code limit}
+     */
+    public void changeFirstPage(Cursor cursor, int limit) {
+        changeCursor(cursor);
+        mHasMorePages = cursor != null && cursor.getCount() >= limit;
+    }
+
+    /**
+     * Append a page queried with {@code limit} after the loaded rows
+     */
+    public void appendPage(Cursor cursor, int limit) {
+        mPageLoading = false;
+        if (cursor == null || getCursor() == null) {
+            mHasMorePages = false;
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        mHasMorePages = cursor.getCount() >= limit;
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return;
+        }
+        mPages.add(cursor);
+        /**
+         * Don't close the swapped out cursor, it shares the loaded pages with the new one
+         */
+        swapCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+        calcNotesCount();
+    }
+
+    public boolean hasMorePages() {
+        return mHasMorePages;
     }
 
     @Override
@@ -65,104 +194,152 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
+        Cursor c = (Cursor) getItem(position);
+        if (c != null) {
+            NoteItemData item = new NoteItemData(mContext, c);
+            AppWidgetAttribute widget = null;
+            if (item.hasWidget()) {
+                widget = new AppWidgetAttribute();
+                widget.widgetId = item.getWidgetId();
+                widget.widgetType = item.getWidgetType();
+            }
+            setChecked(item.getId(), checked, widget);
+        }
         notifyDataSetChanged();
     }
 
+    private void setChecked(long id, boolean checked, AppWidgetAttribute widget) {
+        if (id == Notes.ID_ROOT_FOLDER) {
+            Log.d(TAG, "Wrong item id, should not happen");
+            return;
+        }
+        if (checked) {
+            mSelectedIds.add(id);
+            if (widget != null) {
+                mSelectedWidgets.put(id, widget);
+            }
+        } else {
+            mSelectedIds.remove(id);
+            mSelectedWidgets.remove(id);
+        }
+    }
+
     public boolean isInChoiceMode() {
         return mChoiceMode;
     }
 
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        mSelectedIds.clear();
+        mSelectedWidgets.clear();
+        mSelectAllPending = false;
+        mAllNotesCount = -1;
         mChoiceMode = mode;
     }
 
+    /**
+     * Select or deselect all notes of the folder. The loaded rows are selected at once, the
+     * rest when the rows requested by {@link OnPageRequestListener#onRequestAllRows} arrive
+     */
     public void selectAll(boolean checked) {
+        mSelectAllPending = false;
+        if (!checked) {
+            mSelectedIds.clear();
+            mSelectedWidgets.clear();
+            notifyDataSetChanged();
+            return;
+        }
         Cursor cursor = getCursor();
         for (int i = 0; i < getCount(); i++) {
             if (cursor.moveToPosition(i)) {
                 if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
+                    setCheckedItem(i, true);
                 }
             }
         }
+        if (mHasMorePages && mPageRequestListener != null) {
+            mSelectAllPending = true;
+            mPageRequestListener.onRequestAllRows();
+        }
     }
 
-    public HashSet<Long> getSelectedItemIds() {
-        HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id);
+    /**
+     * Select the notes of the rows queried with {@link #SELECTION_PROJECTION} after
+     * {@link #selectAll}, the cursor is closed
+     *
+     * @return whether the selection changed
+     */
+    public boolean selectNotes(Cursor cursor) {
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            if (!mSelectAllPending || !mChoiceMode) {
+                return false;
+            }
+            mSelectAllPending = false;
+            int count = 0;
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(SELECTION_TYPE_COLUMN) != Notes.TYPE_NOTE) {
+                    continue;
+                }
+                count++;
+                AppWidgetAttribute widget = null;
+                if (cursor.getInt(SELECTION_HAS_WIDGET_COLUMN) > 0) {
+                    widget = new AppWidgetAttribute();
+                    widget.widgetId = cursor.getInt(SELECTION_WIDGET_ID_COLUMN);
+                    widget.widgetType = cursor.getInt(SELECTION_WIDGET_TYPE_COLUMN);
                 }
+                setChecked(cursor.getLong(SELECTION_ID_COLUMN), true, widget);
             }
+            mAllNotesCount = count;
+            notifyDataSetChanged();
+            return true;
+        } finally {
+            cursor.close();
         }
+    }
 
-        return itemSet;
+    public HashSet<Long> getSelectedItemIds() {
+        return new HashSet<Long>(mSelectedIds);
     }
 
     public HashSet<AppWidgetAttribute> getSelectedWidget() {
-        HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * Don't close cursor here, only the adapter could close it
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
-            }
-        }
-        return itemSet;
+        return new HashSet<AppWidgetAttribute>(mSelectedWidgets.values());
     }
 
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
-        }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (true == iter.next()) {
-                count++;
-            }
-        }
-        return count;
+        return mSelectedIds.size();
     }
 
     public boolean isAllSelected() {
         int checkedCount = getSelectedCount();
-        return (checkedCount != 0 && checkedCount == mNotesCount);
+        int notesCount = mHasMorePages ? mAllNotesCount : mNotesCount;
+        return (checkedCount != 0 && checkedCount == notesCount);
     }
 
     public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
-        }
-        return mSelectedIndex.get(position);
+        Cursor c = (Cursor) getItem(position);
+        return c != null && mSelectedIds.contains(NoteItemData.getNoteId(c));
     }
 
     @Override
     protected void onContentChanged() {
-        super.onContentChanged();
-        calcNotesCount();
+        // every page cursor of the merged cursor reports the same change
+        mHandler.removeCallbacks(mReloadRunnable);
+        mHandler.postDelayed(mReloadRunnable, CONTENT_CHANGE_DELAY);
     }
 
     @Override
     public void changeCursor(Cursor cursor) {
+        mPages.clear();
+        if (cursor != null) {
+            mPages.add(cursor);
+        }
+        mHasMorePages = false;
+        mPageLoading = false;
+        if (cursor == null) {
+            mHandler.removeCallbacks(mReloadRunnable);
+        }
         super.changeCursor(cursor);
         calcNotesCount();
     }
@@ -62,7 +62,8 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
     private Cursor getNoteWidgetInfo(Context context, int widgetId) {
         return context.getContentResolver().query(Notes.CONTENT_NOTE_URI,   // 笔记的 Uri
                 PROJECTION,                                                     // 查询的列
-                NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?", // 查询的条件，widgetId 匹配，parent_id 不是垃圾箱
+                NoteColumns.WIDGET_ID + ">0 AND " + NoteColumns.WIDGET_ID + "=? AND "
+                        + NoteColumns.PARENT_ID + "<>?", // 查询的条件，widgetId 匹配，parent_id 不是垃圾箱；widget_id>0 让查询可以使用部分索引
                 new String[]{String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER)}, // 查询条件的值，widgetId 和垃圾箱 ID
                 null);                                                          // 排序方式
     }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes.DataChunkColumns;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.testing.Benchmarks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Oversized contents saved in chunks: they read back whole, an unreadable chunk is reported
+ * instead of returning a partial content, and the load time and heap grow with the note size
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class ContentChunksTest {
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = NotesTestDatabase.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void chunkedContentReadsBack() {
+        // surrogate pairs and CJK across the chunk boundaries
+        String content = content(ContentChunks.CHUNK_THRESHOLD * 3 + 7, "笔记😀 note ");
+        long dataId = insert(content);
+        int chunkCount = chunkCount(dataId);
+        assertTrue(chunkCount > 1);
+        assertEquals(content, ContentChunks.readContent(mResolver, dataId, chunkCount));
+    }
+
+    @Test
+    public void shortContentIsNotChunked() {
+        long dataId = insert("short");
+        assertEquals(0, chunkCount(dataId));
+        assertNull(ContentChunks.readContent(mResolver, dataId, 0));
+    }
+
+    @Test
+    public void corruptChunkIsReported() {
+        long dataId = insert(content(ContentChunks.CHUNK_THRESHOLD * 2, "text "));
+        NotesTestDatabase.getDatabase().execSQL("UPDATE " + TABLE.DATA_CHUNK + " SET "
+                + DataChunkColumns.CONTENT + "=X'00010203' WHERE " + DataChunkColumns.DATA_ID
+                + "=" + dataId + " AND " + DataChunkColumns.SEQUENCE + "=1");
+        assertNull(ContentChunks.readContent(mResolver, dataId, chunkCount(dataId)));
+    }
+
+    @Test
+    public void missingChunkIsReported() {
+        long dataId = insert(content(ContentChunks.CHUNK_THRESHOLD * 2, "text "));
+        int chunkCount = chunkCount(dataId);
+        assertEquals(4, chunkCount);
+
+        // a chunk in the middle
+        deleteChunk(dataId, 1);
+        assertNull(ContentChunks.readContent(mResolver, dataId, chunkCount));
+
+        // the last chunk, the ones left are in order
+        dataId = insert(content(ContentChunks.CHUNK_THRESHOLD * 2, "text "));
+        deleteChunk(dataId, chunkCount - 1);
+        assertNull(ContentChunks.readContent(mResolver, dataId, chunkCount));
+    }
+
+    @Test
+    public void otherColumnUpdateKeepsContentLength() {
+        String content = content(ContentChunks.CHUNK_THRESHOLD * 2, "text ");
+        long dataId = insert(content);
+        String snippet = noteColumn(dataId, NoteColumns.SNIPPET);
+        assertEquals(String.valueOf(content.length()),
+                noteColumn(dataId, NoteColumns.CONTENT_LENGTH));
+
+        // switching to the check list mode writes data1 only
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.DATA1, 1);
+        assertEquals(1, mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI,
+                dataId), values, null, null));
+        assertEquals(String.valueOf(content.length()),
+                noteColumn(dataId, NoteColumns.CONTENT_LENGTH));
+        assertEquals(snippet, noteColumn(dataId, NoteColumns.SNIPPET));
+        assertEquals(content, ContentChunks.readContent(mResolver, dataId, chunkCount(dataId)));
+    }
+
+    private String noteColumn(long dataId, String column) {
+        Cursor c = NotesTestDatabase.getDatabase().rawQuery("SELECT " + column + " FROM "
+                + TABLE.NOTE + " WHERE " + NoteColumns.ID + "=(SELECT " + DataColumns.NOTE_ID
+                + " FROM " + TABLE.DATA + " WHERE " + DataColumns.ID + "=?)", new String[] {
+                String.valueOf(dataId)
+        });
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void deleteChunk(long dataId, int sequence) {
+        NotesTestDatabase.getDatabase().execSQL("DELETE FROM " + TABLE.DATA_CHUNK + " WHERE "
+                + DataChunkColumns.DATA_ID + "=" + dataId + " AND " + DataChunkColumns.SEQUENCE
+                + "=" + sequence);
+    }
+
+    @Test
+    public void loadTimeBySize() throws IOException {
+        for (int size : Benchmarks.sizes(100000, 1000000, 4000000)) {
+            long dataId = insert(content(size, "the quick brown fox jumps over the lazy dog "));
+            int chunkCount = chunkCount(dataId);
+
+            Benchmarks.HeapSampler heap = new Benchmarks.HeapSampler().start();
+            long start = System.nanoTime();
+            String content = ContentChunks.readContent(mResolver, dataId, chunkCount);
+            long load = System.nanoTime() - start;
+            long loadHeap = heap.stop();
+            assertEquals(size, content.length());
+            content = null;
+
+            // the export path, the text goes to the stream without being kept
+            final long[] written = new long[1];
+            Appendable counter = new Appendable() {
+                public Appendable append(CharSequence csq) {
+                    written[0] += csq.length();
+                    return this;
+                }
+
+                public Appendable append(CharSequence csq, int s, int e) {
+                    written[0] += e - s;
+                    return this;
+                }
+
+                public Appendable append(char c) {
+                    written[0]++;
+                    return this;
+                }
+            };
+            heap = new Benchmarks.HeapSampler().start();
+            start = System.nanoTime();
+            assertTrue(ContentChunks.writeContent(mResolver, dataId, chunkCount, counter));
+            long stream = System.nanoTime() - start;
+            long streamHeap = heap.stop();
+            assertEquals(size, written[0]);
+
+            Benchmarks.report("chunked content", "chars=%d chunks=%d load=%.2fms "
+                    + "load heap=%dKB stream=%.2fms stream heap=%dKB", size, chunkCount,
+                    Benchmarks.millis(load), loadHeap / 1024, Benchmarks.millis(stream),
+                    streamHeap / 1024);
+        }
+    }
+
+    private long insert(String content) {
+        long noteId = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER, content);
+        Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.ID
+        }, DataColumns.NOTE_ID + "=?", new String[] {
+                String.valueOf(noteId)
+        }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private int chunkCount(long dataId) {
+        Cursor c = NotesTestDatabase.getDatabase().rawQuery("SELECT " + DataColumns.CHUNK_COUNT
+                + " FROM " + TABLE.DATA + " WHERE " + DataColumns.ID + "=?", new String[] {
+                String.valueOf(dataId)
+        });
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String content(int size, String line) {
+        StringBuilder sb = new StringBuilder(size + line.length());
+        while (sb.length() < size) {
+            sb.append(line);
+        }
+        sb.setLength(size);
+        if (Character.isHighSurrogate(sb.charAt(size - 1))) {
+            sb.setCharAt(size - 1, 'x');
+        }
+        return sb.toString();
+    }
+}
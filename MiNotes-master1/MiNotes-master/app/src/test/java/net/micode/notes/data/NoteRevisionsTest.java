@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.RevisionColumns;
+import net.micode.notes.testing.Benchmarks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Revisions recorded by the saves of a note: each one rebuilds to the saved text, a rolled back
+ * save leaves no trace, and the cost of a save with the latest text cached or rebuilt
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class NoteRevisionsTest {
+    private static final int SAVES = 40;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = NotesTestDatabase.setUp();
+        NoteRevisions.discardCache();
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void revisionsRebuildToSavedText() {
+        long noteId = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "v0");
+        Uri dataUri = dataUri(noteId);
+        String text = "v0";
+        for (int i = 1; i <= SAVES; i++) {
+            text = text + "\nline " + i;
+            save(dataUri, text);
+            assertEquals(text, NoteRevisions.getContent(mResolver, latestRevision(noteId)));
+        }
+        // the same text again doesn't add a revision
+        int count = revisions(noteId).size();
+        save(dataUri, text);
+        assertEquals(count, revisions(noteId).size());
+
+        // rebuilt from the snapshot and deltas without the cache
+        NoteRevisions.discardCache();
+        assertEquals(text, NoteRevisions.getContent(mResolver, latestRevision(noteId)));
+        save(dataUri, text + " end");
+        assertEquals(text + " end", NoteRevisions.getContent(mResolver, latestRevision(noteId)));
+    }
+
+    @Test
+    public void rolledBackSaveIsForgotten() throws Exception {
+        long noteId = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "first");
+        Uri dataUri = dataUri(noteId);
+        save(dataUri, "first\nsecond");
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newUpdate(dataUri)
+                .withValue(DataColumns.CONTENT, "first\nrolled back").build());
+        ops.add(ContentProviderOperation.newAssertQuery(dataUri).withExpectedCount(2).build());
+        try {
+            mResolver.applyBatch(Notes.AUTHORITY, ops);
+            fail("the batch must fail");
+        } catch (OperationApplicationException e) {
+            // expected, the whole batch is rolled back
+        }
+        assertEquals("first\nsecond",
+                NoteRevisions.getContent(mResolver, latestRevision(noteId)));
+
+        // the text of the rolled back save must not be taken for the latest revision
+        save(dataUri, "first\nrolled back");
+        assertEquals("first\nrolled back",
+                NoteRevisions.getContent(mResolver, latestRevision(noteId)));
+    }
+
+    @Test
+    public void saveLatency() {
+        for (int size : Benchmarks.sizes(10000, 100000, 500000)) {
+            long cached = measure(size, false);
+            long rebuilt = measure(size, true);
+            Benchmarks.report("revision record", "chars=%d saves=%d cached=%.2fms/save "
+                    + "rebuilt=%.2fms/save", size, SAVES, Benchmarks.millis(cached) / SAVES,
+                    Benchmarks.millis(rebuilt) / SAVES);
+        }
+    }
+
+    private long measure(int size, boolean rebuild) {
+        StringBuilder sb = new StringBuilder(size + 32);
+        while (sb.length() < size) {
+            sb.append("the quick brown fox jumps over the lazy dog\n");
+        }
+        sb.setLength(size);
+        String text = sb.toString();
+        long noteId = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER, text);
+        Uri dataUri = dataUri(noteId);
+        long total = 0;
+        for (int i = 0; i < SAVES; i++) {
+            text = text + i;
+            if (rebuild) {
+                NoteRevisions.discardCache();
+            }
+            long start = System.nanoTime();
+            save(dataUri, text);
+            total += System.nanoTime() - start;
+        }
+        assertEquals(text, NoteRevisions.getContent(mResolver, latestRevision(noteId)));
+        return total;
+    }
+
+    private void save(Uri dataUri, String text) {
+        ContentValues values = new ContentValues();
+        values.put(DataColumns.CONTENT, text);
+        assertEquals(1, mResolver.update(dataUri, values, null, null));
+    }
+
+    private Uri dataUri(long noteId) {
+        Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.ID
+        }, DataColumns.NOTE_ID + "=?", new String[] {
+                String.valueOf(noteId)
+        }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, c.getLong(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    private long latestRevision(long noteId) {
+        ArrayList<Long> ids = revisions(noteId);
+        assertTrue(ids.size() > 0);
+        return ids.get(0);
+    }
+
+    private ArrayList<Long> revisions(long noteId) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        Cursor c = mResolver.query(Notes.CONTENT_REVISION_URI, new String[] {
+                RevisionColumns.ID
+        }, RevisionColumns.NOTE_ID + "=?", new String[] {
+                String.valueOf(noteId)
+        }, RevisionColumns.ID + " DESC");
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.testing.Benchmarks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class NotesDatabaseWalTest {
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = NotesTestDatabase.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void openedInWalMode() {
+        assertEquals("wal", queryPragma(NotesTestDatabase.getDatabase(), "journal_mode"));
+    }
+
+    @Test
+    public void defaultCheckpointLeftAlone() {
+        assertEquals("1000", queryPragma(NotesTestDatabase.getDatabase(), "wal_autocheckpoint"));
+    }
+
+    @Test
+    public void checkpointAppliedToOpenDatabase() {
+        SQLiteDatabase db = NotesTestDatabase.getDatabase();
+        NotesDatabaseHelper.setWalAutoCheckpointPages(4000);
+        assertEquals("4000", queryPragma(db, "wal_autocheckpoint"));
+    }
+
+    @Test
+    public void checkpointAppliedOnOpen() {
+        NotesDatabaseHelper.closeInstance();
+        NotesDatabaseHelper.setWalAutoCheckpointPages(250);
+        assertEquals("250", queryPragma(NotesTestDatabase.getDatabase(), "wal_autocheckpoint"));
+    }
+
+    /**
+     * Latency of the first list page while another thread commits batches of notes, the
+     * numbers are compared across checkpoint thresholds
+     */
+    @Test
+    public void listLatencyUnderBulkWriter() throws Exception {
+        int[] thresholds = new int[] {
+                NotesDatabaseHelper.WAL_AUTO_CHECKPOINT_DEFAULT, 100, 4000
+        };
+        for (int size : Benchmarks.sizes(2000)) {
+            for (int pages : thresholds) {
+                tearDown();
+                setUp();
+                NotesDatabaseHelper.setWalAutoCheckpointPages(pages);
+                measureListLatency(size, pages);
+            }
+        }
+    }
+
+    private void measureListLatency(final int size, int pages) throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "seed ", 200);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int written = 0; written < size; written += 100) {
+                        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER,
+                                "bulk " + written + " ", 100);
+                    }
+                } catch (Throwable t) {
+                    error.set(t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        }, "bulk-writer");
+
+        long[] samples = new long[100000];
+        int count = 0;
+        long start = System.nanoTime();
+        writer.start();
+        while (!done.get() && count < samples.length) {
+            long begin = System.nanoTime();
+            Cursor c = mResolver.query(Notes.CONTENT_NOTE_LIST_URI.buildUpon()
+                    .appendPath(String.valueOf(Notes.ID_ROOT_FOLDER))
+                    .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, "50").build(),
+                    null, null, null, null);
+            assertTrue(c != null && c.getCount() > 0);
+            c.close();
+            samples[count++] = System.nanoTime() - begin;
+        }
+        writer.join();
+        long wall = System.nanoTime() - start;
+        assertNull(error.get());
+
+        Benchmarks.report("list latency under writer", "notes=%d checkpoint=%s reads=%d "
+                + "p50=%.2fms p99=%.2fms max=%.2fms write=%.0fms", size,
+                pages == NotesDatabaseHelper.WAL_AUTO_CHECKPOINT_DEFAULT ? "default" : pages,
+                count, Benchmarks.millis(Benchmarks.percentile(samples, count, 50)),
+                Benchmarks.millis(Benchmarks.percentile(samples, count, 99)),
+                Benchmarks.millis(Benchmarks.percentile(samples, count, 100)),
+                Benchmarks.millis(wall));
+    }
+
+    private static String queryPragma(SQLiteDatabase db, String name) {
+        Cursor c = db.rawQuery("PRAGMA " + name, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.NoteListColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.data.NotesDatabaseHelper.VIEW;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the hot queries on the note table keep using their
+ * indexes, so an index lost by an upgrade or a reworded query fails here
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class NotesIndexPlanTest {
+    // the list page order of NotesProvider
+    private static final String PAGE_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
+    // "SCAN TABLE note" before SQLite 3.36, "SCAN note" after, without an index
+    private static final Pattern FULL_SCAN = Pattern.compile(
+            "SCAN (TABLE )?" + TABLE.NOTE + "( AS \\w+)?$");
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        NotesTestDatabase.setUp();
+        mDb = NotesTestDatabase.getDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void folderPageUsesParentIndexWithoutSort() {
+        ArrayList<String> plan = explain("SELECT " + NoteColumns.ID + "," + NoteColumns.SNIPPET
+                + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID + "=?"
+                + " ORDER BY " + PAGE_SORT_ORDER + " LIMIT 50", "0");
+        assertUses(plan, "note_parent_type_modified_index");
+        assertNoSort(plan);
+    }
+
+    @Test
+    public void listPageUsesParentIndex() {
+        ArrayList<String> plan = explain("SELECT " + NoteColumns.ID + "," + NoteColumns.SNIPPET
+                + "," + NoteListColumns.HAS_ALERT + " FROM " + VIEW.NOTE_LIST
+                + " WHERE " + NoteListColumns.LIST_FOLDER_ID + "=?"
+                + " ORDER BY " + PAGE_SORT_ORDER + " LIMIT 50", "0");
+        assertUses(plan, "note_parent_type_modified_index");
+        assertNoFullScan(plan);
+    }
+
+    @Test
+    public void alarmQueryUsesPartialIndex() {
+        ArrayList<String> plan = explain("SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ALERTED_DATE + ">0 AND " + NoteColumns.ALERTED_DATE
+                + ">? AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, "1000");
+        assertUses(plan, "note_alert_date_index");
+    }
+
+    @Test
+    public void widgetQueryUsesPartialIndex() {
+        ArrayList<String> plan = explain("SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.WIDGET_ID + ">0 AND " + NoteColumns.WIDGET_ID
+                + "=? AND " + NoteColumns.PARENT_ID + "<>?", "3",
+                String.valueOf(Notes.ID_TRASH_FOLER));
+        assertUses(plan, "note_widget_id_index");
+    }
+
+    @Test
+    public void syncFolderScanUsesTypeIndex() {
+        ArrayList<String> plan = explain("SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE (type=? AND parent_id<>?) ORDER BY " + NoteColumns.TYPE + " DESC",
+                String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER));
+        assertUses(plan, "note_type_parent_index");
+        assertNoFullScan(plan);
+    }
+
+    @Test
+    public void dataOfNoteUsesNoteIdIndex() {
+        ArrayList<String> plan = explain("SELECT " + Notes.DataColumns.ID + " FROM "
+                + TABLE.DATA + " WHERE " + Notes.DataColumns.NOTE_ID + "=?", "1");
+        assertUses(plan, "note_id_index");
+    }
+
+    private ArrayList<String> explain(String sql, String... args) {
+        ArrayList<String> details = new ArrayList<String>();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                details.add(c.getString(detail));
+            }
+        } finally {
+            c.close();
+        }
+        return details;
+    }
+
+    private static void assertUses(ArrayList<String> plan, String index) {
+        for (String detail : plan) {
+            if (detail.contains(index)) {
+                return;
+            }
+        }
+        throw new AssertionError(index + " not used: " + plan);
+    }
+
+    private static void assertNoSort(ArrayList<String> plan) {
+        for (String detail : plan) {
+            assertFalse("sorts the rows: " + plan, detail.contains("TEMP B-TREE"));
+        }
+    }
+
+    private static void assertNoFullScan(ArrayList<String> plan) {
+        for (String detail : plan) {
+            assertFalse("scans the note table: " + plan, FULL_SCAN.matcher(detail).find());
+        }
+        assertTrue(plan.size() > 0);
+    }
+}
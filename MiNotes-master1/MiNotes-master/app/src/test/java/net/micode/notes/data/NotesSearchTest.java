@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class NotesSearchTest {
+    private ContentResolver mResolver;
+
+    private long mEnglish;
+
+    private long mChinese;
+
+    private long mAccented;
+
+    @Before
+    public void setUp() {
+        mResolver = NotesTestDatabase.setUp();
+        mEnglish = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "Meeting notes for the quarterly review");
+        mChinese = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "今天的会议记录：讨论季度计划");
+        mAccented = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "Réunion au café demain");
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void tokenizerDetected() {
+        int tokenizer = NotesDatabaseHelper.getInstance(RuntimeEnvironment.application)
+                .getFtsTokenizer();
+        System.out.println("fts tokenizer: " + tokenizer);
+        assertTrue(tokenizer >= NotesDatabaseHelper.FTS_TOKENIZER_SIMPLE
+                && tokenizer <= NotesDatabaseHelper.FTS_TOKENIZER_ICU);
+    }
+
+    @Test
+    public void englishPrefix() {
+        assertEquals(setOf(mEnglish), search("quarter"));
+        assertEquals(setOf(mEnglish), search("MEET review"));
+    }
+
+    @Test
+    public void chineseWord() {
+        assertEquals(setOf(mChinese), search("会议"));
+    }
+
+    @Test
+    public void chineseInsideWord() {
+        // not at a word boundary, found through the LIKE fallback when the index misses it
+        assertEquals(setOf(mChinese), search("议记"));
+    }
+
+    @Test
+    public void accentedLatin() {
+        assertEquals(setOf(mAccented), search("café"));
+    }
+
+    @Test
+    public void noMatch() {
+        assertEquals(new HashSet<Long>(), search("budget"));
+        assertEquals(new HashSet<Long>(), search("预算"));
+    }
+
+    @Test
+    public void insertedContentIsIndexed() {
+        NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "预算草案");
+        assertEquals(1, search("预算").size());
+    }
+
+    @Test
+    public void newestFirst() {
+        long older = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "meeting meeting meeting with many hits");
+        long newer = NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER,
+                "a single meeting");
+        setModifiedDate(older, 1000);
+        setModifiedDate(newer, 2000);
+        setModifiedDate(mEnglish, 500);
+        ArrayList<Long> ids = searchInOrder("meet");
+        assertEquals(3, ids.size());
+        assertEquals(newer, (long) ids.get(0));
+        assertEquals(older, (long) ids.get(1));
+        assertEquals(mEnglish, (long) ids.get(2));
+    }
+
+    private void setModifiedDate(long noteId, long date) {
+        NotesTestDatabase.getDatabase().execSQL("UPDATE " + NotesDatabaseHelper.TABLE.NOTE
+                + " SET " + NoteColumns.MODIFIED_DATE + "=" + date + " WHERE "
+                + NoteColumns.ID + "=" + noteId);
+    }
+
+    private HashSet<Long> search(String pattern) {
+        return new HashSet<Long>(searchInOrder(pattern));
+    }
+
+    private ArrayList<Long> searchInOrder(String pattern) {
+        Uri uri = Uri.parse("content://" + Notes.AUTHORITY + "/search").buildUpon()
+                .appendQueryParameter("pattern", pattern).build();
+        ArrayList<Long> ids = new ArrayList<Long>();
+        Cursor c = mResolver.query(uri, null, null, null, null);
+        try {
+            int idColumn = c.getColumnIndexOrThrow(NoteColumns.ID);
+            while (c.moveToNext()) {
+                ids.add(c.getLong(idColumn));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private static HashSet<Long> setOf(long... ids) {
+        HashSet<Long> set = new HashSet<Long>();
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+
+/**
+ * Sets up the notes provider over a fresh database for each test and fills it with notes
+ */
+public final class NotesTestDatabase {
+
+    private NotesTestDatabase() {
+    }
+
+    /**
+     * Register a new provider, the database of the previous test is closed so that the
+     * helper opens the one of this test
+     */
+    public static ContentResolver setUp() {
+        NotesDatabaseHelper.closeInstance();
+        Robolectric.setupContentProvider(NotesProvider.class, Notes.AUTHORITY);
+        return RuntimeEnvironment.application.getContentResolver();
+    }
+
+    public static void tearDown() {
+        NotesDatabaseHelper.closeInstance();
+        NotesDatabaseHelper.setWalAutoCheckpointPages(
+                NotesDatabaseHelper.WAL_AUTO_CHECKPOINT_DEFAULT);
+    }
+
+    public static SQLiteDatabase getDatabase() {
+        return NotesDatabaseHelper.getInstance(RuntimeEnvironment.application)
+                .getWritableDatabase();
+    }
+
+    public static long insertFolder(ContentResolver resolver, String name) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        values.put(NoteColumns.SNIPPET, name);
+        return ContentUris.parseId(resolver.insert(Notes.CONTENT_NOTE_URI, values));
+    }
+
+    /**
+     * Insert a text note with its data row
+     */
+    public static long insertNote(ContentResolver resolver, long folderId, String content) {
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TYPE, Notes.TYPE_NOTE);
+        values.put(NoteColumns.PARENT_ID, folderId);
+        values.put(NoteColumns.CREATED_DATE, now);
+        values.put(NoteColumns.MODIFIED_DATE, now);
+        values.put(NoteColumns.SNIPPET, content);
+        long noteId = ContentUris.parseId(resolver.insert(Notes.CONTENT_NOTE_URI, values));
+        resolver.insert(Notes.CONTENT_DATA_URI, newTextData(noteId, content));
+        return noteId;
+    }
+
+    /**
+     * Insert count text notes in one batch, the contents are the prefix followed by the index
+     */
+    public static void insertNotes(ContentResolver resolver, long folderId, String prefix,
+            int count) throws Exception {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            String content = prefix + i;
+            int noteIndex = ops.size();
+            ops.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValue(NoteColumns.TYPE, Notes.TYPE_NOTE)
+                    .withValue(NoteColumns.PARENT_ID, folderId)
+                    .withValue(NoteColumns.CREATED_DATE, now)
+                    .withValue(NoteColumns.MODIFIED_DATE, now + i)
+                    .withValue(NoteColumns.SNIPPET, content)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(newTextData(0, content))
+                    .withValueBackReference(DataColumns.NOTE_ID, noteIndex)
+                    .build());
+        }
+        resolver.applyBatch(Notes.AUTHORITY, ops);
+    }
+
+    public static Uri noteUri(long noteId) {
+        return ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
+    }
+
+    private static ContentValues newTextData(long noteId, String content) {
+        ContentValues values = new ContentValues();
+        if (noteId > 0) {
+            values.put(DataColumns.NOTE_ID, noteId);
+        }
+        values.put(DataColumns.MIME_TYPE, DataConstants.NOTE);
+        values.put(DataColumns.CONTENT, content);
+        return values;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.testing.Benchmarks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the ways of running an update by id: the id inlined into the SQL, which compiles
+ * a new statement each time, the id bound to a parameter, which hits the connection's statement
+ * cache, and one compiled statement kept by the caller. The provider binds the id, the numbers
+ * show whether keeping statements on top of the connection's cache is worth it
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class StatementReuseBenchmarkTest {
+    private ContentResolver mResolver;
+
+    private SQLiteDatabase mDb;
+
+    private long[] mIds;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = NotesTestDatabase.setUp();
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", 200);
+        mDb = NotesTestDatabase.getDatabase();
+        Cursor c = mDb.rawQuery("SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, null);
+        try {
+            mIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                mIds[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void updateById() {
+        for (int size : Benchmarks.sizes(2000)) {
+            long literal = run(size, Mode.LITERAL);
+            long bound = run(size, Mode.BOUND);
+            long kept = run(size, Mode.KEPT);
+            long provider = runProvider(size);
+            Benchmarks.report("update by id", "updates=%d literal=%.1fus bound=%.1fus "
+                    + "kept statement=%.1fus provider=%.1fus", size, perOp(literal, size),
+                    perOp(bound, size), perOp(kept, size), perOp(provider, size));
+        }
+    }
+
+    private enum Mode {
+        LITERAL, BOUND, KEPT
+    }
+
+    private long run(int count, Mode mode) {
+        String boundSql = "UPDATE " + TABLE.NOTE + " SET " + NoteColumns.SNIPPET + "=? WHERE "
+                + NoteColumns.ID + "=?";
+        SQLiteStatement kept = mode == Mode.KEPT ? mDb.compileStatement(boundSql) : null;
+        long start = System.nanoTime();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                long id = mIds[i % mIds.length];
+                String snippet = "s" + i;
+                switch (mode) {
+                    case LITERAL: {
+                        SQLiteStatement statement = mDb.compileStatement("UPDATE " + TABLE.NOTE
+                                + " SET " + NoteColumns.SNIPPET + "=? WHERE " + NoteColumns.ID
+                                + "=" + id);
+                        statement.bindString(1, snippet);
+                        assertEquals(1, statement.executeUpdateDelete());
+                        statement.close();
+                        break;
+                    }
+                    case BOUND: {
+                        SQLiteStatement statement = mDb.compileStatement(boundSql);
+                        statement.bindString(1, snippet);
+                        statement.bindLong(2, id);
+                        assertEquals(1, statement.executeUpdateDelete());
+                        statement.close();
+                        break;
+                    }
+                    case KEPT:
+                        kept.clearBindings();
+                        kept.bindString(1, snippet);
+                        kept.bindLong(2, id);
+                        assertEquals(1, kept.executeUpdateDelete());
+                        break;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            if (kept != null) {
+                kept.close();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long runProvider(int count) {
+        ContentValues values = new ContentValues();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            values.put(NoteColumns.SNIPPET, "p" + i);
+            assertEquals(1, mResolver.update(NotesTestDatabase.noteUri(mIds[i % mIds.length]),
+                    values, null, null));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static double perOp(long nanos, int count) {
+        return nanos / 1000.0 / count;
+    }
+}
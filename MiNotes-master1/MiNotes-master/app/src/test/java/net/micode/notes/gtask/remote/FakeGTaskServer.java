@@ -0,0 +1,621 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local server speaking the part of the gtask protocol the client uses: the setup page at
+ * tasks/ig, which sets the GTL cookie and lists the task lists, and the actions posted to
+ * tasks/r/ig. It keeps the lists and tasks in memory, counts the traffic, and can answer
+ * late, fail or lose the answers of the requests it is told to
+ */
+class FakeGTaskServer {
+    private static final String COOKIE = "GTL";
+
+    private static final int CLIENT_VERSION = 1;
+
+    private final HttpServer mServer;
+
+    private final ExecutorService mExecutor;
+
+    private final LinkedHashMap<String, FakeList> mLists = new LinkedHashMap<String, FakeList>();
+
+    private final LinkedHashMap<String, FakeTask> mTasks = new LinkedHashMap<String, FakeTask>();
+
+    private int mNextId;
+
+    private long mClock;
+
+    private volatile int mLatencyMillis;
+
+    // posts answered with mFailStatus without being applied
+    private final AtomicInteger mFailingPosts = new AtomicInteger();
+
+    private volatile int mFailStatus = 503;
+
+    // posts applied whose answer is lost, the connection is closed instead
+    private final AtomicInteger mLostAnswers = new AtomicInteger();
+
+    // the same for posts with creates only
+    private final AtomicInteger mLostCreateAnswers = new AtomicInteger();
+
+    // the next post creating tasks loses its answer and takes the server down
+    private volatile boolean mDownAfterTaskCreate;
+
+    // the next post with creates takes the reads of the setup page down
+    private volatile boolean mReadsDownAfterCreate;
+
+    // every request is answered with 503 without being carried out
+    private volatile boolean mDown;
+
+    // the same for the reads of the setup page only
+    private volatile boolean mReadsDown;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    private final AtomicInteger mActions = new AtomicInteger();
+
+    private final AtomicInteger mCreates = new AtomicInteger();
+
+    private final AtomicInteger mUpdates = new AtomicInteger();
+
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    static class FakeList {
+        final String mGid;
+
+        String mName;
+
+        long mLastModified;
+
+        boolean mDeleted;
+
+        final ArrayList<String> mTaskGids = new ArrayList<String>();
+
+        FakeList(String gid, String name) {
+            mGid = gid;
+            mName = name;
+        }
+    }
+
+    static class FakeTask {
+        final String mGid;
+
+        String mListGid;
+
+        String mName;
+
+        String mNotes;
+
+        boolean mDeleted;
+
+        boolean mCompleted;
+
+        long mLastModified;
+
+        FakeTask(String gid, String listGid) {
+            mGid = gid;
+            mListGid = listGid;
+        }
+    }
+
+    FakeGTaskServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mExecutor = Executors.newFixedThreadPool(8);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/tasks/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    FakeGTaskServer.this.handle(exchange);
+                } catch (JSONException e) {
+                    respond(exchange, 400, e.toString(), null);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    void start() {
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * The url to give to {@link GTaskClient#setServiceUrl}
+     */
+    String getServiceUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/tasks/";
+    }
+
+    void setLatency(int millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * Answer the next count posts with the status, without applying their actions
+     */
+    void failPosts(int count, int status) {
+        mFailStatus = status;
+        mFailingPosts.set(count);
+    }
+
+    /**
+     * Apply the actions of the next count posts but close the connection instead of answering
+     */
+    void loseAnswers(int count) {
+        mLostAnswers.set(count);
+    }
+
+    /**
+     * Like {@link #loseAnswers} but only the next count posts creating a task or list count
+     */
+    void loseCreateAnswers(int count) {
+        mLostCreateAnswers.set(count);
+    }
+
+    /**
+     * Apply the next post creating tasks but lose its answer, and answer every request after
+     * it with 503 until {@link #comeBack}. The client can neither learn the gids of the
+     * tasks nor look them up
+     */
+    void goDownAfterTaskCreate() {
+        mDownAfterTaskCreate = true;
+    }
+
+    /**
+     * Once the next post with creates is applied, answer the reads of the setup page with
+     * 503 until {@link #comeBack}, the posts keep working
+     */
+    void failReadsAfterCreate() {
+        mReadsDownAfterCreate = true;
+    }
+
+    void comeBack() {
+        mDownAfterTaskCreate = false;
+        mReadsDownAfterCreate = false;
+        mDown = false;
+        mReadsDown = false;
+    }
+
+    void resetCounters() {
+        mRequests.set(0);
+        mActions.set(0);
+        mCreates.set(0);
+        mUpdates.set(0);
+        mBytesReceived.set(0);
+        mBytesSent.set(0);
+    }
+
+    int getRequestCount() {
+        return mRequests.get();
+    }
+
+    int getActionCount() {
+        return mActions.get();
+    }
+
+    int getCreateCount() {
+        return mCreates.get();
+    }
+
+    int getUpdateCount() {
+        return mUpdates.get();
+    }
+
+    long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    synchronized String addList(String name) {
+        FakeList list = new FakeList(newId(), name);
+        list.mLastModified = tick();
+        mLists.put(list.mGid, list);
+        return list.mGid;
+    }
+
+    synchronized String addTask(String listGid, String name, String notes) {
+        FakeTask task = new FakeTask(newId(), listGid);
+        task.mName = name;
+        task.mNotes = notes;
+        putTask(task, null);
+        return task.mGid;
+    }
+
+    synchronized void renameTask(String gid, String name) {
+        FakeTask task = mTasks.get(gid);
+        task.mName = name;
+        touch(task);
+    }
+
+    synchronized String findList(String name) {
+        for (FakeList list : mLists.values()) {
+            if (!list.mDeleted && list.mName.equals(name)) {
+                return list.mGid;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The gids of the tasks not deleted in the list, in their order
+     */
+    synchronized ArrayList<String> getTasks(String listGid) {
+        ArrayList<String> gids = new ArrayList<String>();
+        for (String gid : mLists.get(listGid).mTaskGids) {
+            if (!mTasks.get(gid).mDeleted) {
+                gids.add(gid);
+            }
+        }
+        return gids;
+    }
+
+    synchronized String getTaskName(String gid) {
+        return mTasks.get(gid).mName;
+    }
+
+    synchronized int countLists(String name) {
+        int count = 0;
+        for (FakeList list : mLists.values()) {
+            if (!list.mDeleted && name.equals(list.mName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The number of tasks not deleted with the name, in all lists
+     */
+    synchronized int countTasks(String name) {
+        int count = 0;
+        for (FakeTask task : mTasks.values()) {
+            if (!task.mDeleted && name.equals(task.mName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException, JSONException {
+        mRequests.incrementAndGet();
+        byte[] body = readBody(exchange);
+        mBytesReceived.addAndGet(body.length);
+        sleep(mLatencyMillis);
+
+        String path = exchange.getRequestURI().getPath();
+        boolean read = "GET".equals(exchange.getRequestMethod());
+        if (mDown || (read && mReadsDown)) {
+            respond(exchange, 503, "", null);
+            return;
+        }
+        if (read && path.endsWith("/ig")) {
+            respond(exchange, 200, "<html><script>_setup(" + getSetup()
+                    + ")</script></html>", COOKIE + "=session; Path=/");
+            return;
+        }
+        if (!"POST".equals(exchange.getRequestMethod()) || !path.endsWith("/r/ig")) {
+            respond(exchange, 404, "", null);
+            return;
+        }
+        String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookie == null || !cookie.contains(COOKIE + "=")) {
+            respond(exchange, 401, "", null);
+            return;
+        }
+        if (take(mFailingPosts)) {
+            respond(exchange, mFailStatus, "", null);
+            return;
+        }
+
+        String form = new String(isGzip(exchange) ? gunzip(body) : body, "UTF-8");
+        JSONObject post = new JSONObject(URLDecoder.decode(form.substring(form.indexOf("r=")
+                + 2), "UTF-8"));
+        JSONArray actions = post.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+        String response = apply(actions);
+
+        if (hasCreate(actions) && mReadsDownAfterCreate) {
+            mReadsDownAfterCreate = false;
+            mReadsDown = true;
+        }
+        if (hasTaskCreate(actions) && mDownAfterTaskCreate) {
+            mDownAfterTaskCreate = false;
+            mDown = true;
+            return;
+        }
+        if (take(mLostAnswers) || (hasCreate(actions) && take(mLostCreateAnswers))) {
+            // the actions are applied, the client never learns about it
+            return;
+        }
+        respond(exchange, 200, response, null);
+    }
+
+    private synchronized String getSetup() throws JSONException {
+        JSONArray lists = new JSONArray();
+        for (FakeList list : mLists.values()) {
+            if (list.mDeleted) {
+                continue;
+            }
+            JSONObject js = new JSONObject();
+            js.put(GTaskStringUtils.GTASK_JSON_ID, list.mGid);
+            js.put(GTaskStringUtils.GTASK_JSON_NAME, list.mName);
+            js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, list.mLastModified);
+            lists.put(js);
+        }
+        JSONObject tasks = new JSONObject();
+        tasks.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+        JSONObject setup = new JSONObject();
+        setup.put("v", CLIENT_VERSION);
+        setup.put("t", tasks);
+        return setup.toString();
+    }
+
+    private synchronized String apply(JSONArray actions) throws JSONException {
+        JSONArray results = new JSONArray();
+        JSONArray tasks = null;
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject action = actions.getJSONObject(i);
+            mActions.incrementAndGet();
+            String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+            JSONObject result = new JSONObject();
+            result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                    action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+            if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                tasks = getAll(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                mCreates.incrementAndGet();
+                result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, create(action));
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                mUpdates.incrementAndGet();
+                update(action);
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type)) {
+                move(action);
+            } else {
+                throw new JSONException("unknown action " + type);
+            }
+            results.put(result);
+        }
+        JSONObject response = new JSONObject();
+        response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+        if (tasks != null) {
+            response.put(GTaskStringUtils.GTASK_JSON_TASKS, tasks);
+        }
+        return response.toString();
+    }
+
+    private JSONArray getAll(String listGid) throws JSONException {
+        FakeList list = mLists.get(listGid);
+        if (list == null) {
+            throw new JSONException("no list " + listGid);
+        }
+        JSONArray tasks = new JSONArray();
+        for (String gid : list.mTaskGids) {
+            FakeTask task = mTasks.get(gid);
+            if (task.mDeleted) {
+                continue;
+            }
+            JSONObject js = new JSONObject();
+            js.put(GTaskStringUtils.GTASK_JSON_ID, task.mGid);
+            js.put(GTaskStringUtils.GTASK_JSON_NAME, task.mName);
+            if (task.mNotes != null) {
+                js.put(GTaskStringUtils.GTASK_JSON_NOTES, task.mNotes);
+            }
+            js.put(GTaskStringUtils.GTASK_JSON_DELETED, false);
+            js.put(GTaskStringUtils.GTASK_JSON_COMPLETED, task.mCompleted);
+            js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, task.mLastModified);
+            tasks.put(js);
+        }
+        return tasks;
+    }
+
+    private String create(JSONObject action) throws JSONException {
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String name = entity.getString(GTaskStringUtils.GTASK_JSON_NAME);
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(
+                entity.getString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+            return addList(name);
+        }
+        String listGid = action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID);
+        if (!mLists.containsKey(listGid)) {
+            throw new JSONException("no list " + listGid);
+        }
+        FakeTask task = new FakeTask(newId(), listGid);
+        task.mName = name;
+        task.mNotes = entity.optString(GTaskStringUtils.GTASK_JSON_NOTES, null);
+        putTask(task, action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null));
+        return task.mGid;
+    }
+
+    private void update(JSONObject action) throws JSONException {
+        String gid = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        FakeList list = mLists.get(gid);
+        if (list != null) {
+            list.mName = entity.optString(GTaskStringUtils.GTASK_JSON_NAME, list.mName);
+            list.mDeleted = entity.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED, false);
+            list.mLastModified = tick();
+            return;
+        }
+        FakeTask task = mTasks.get(gid);
+        if (task == null) {
+            throw new JSONException("no node " + gid);
+        }
+        task.mName = entity.optString(GTaskStringUtils.GTASK_JSON_NAME, task.mName);
+        task.mNotes = entity.optString(GTaskStringUtils.GTASK_JSON_NOTES, task.mNotes);
+        task.mDeleted = entity.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED, false);
+        task.mCompleted = entity.optBoolean(GTaskStringUtils.GTASK_JSON_COMPLETED,
+                task.mCompleted);
+        touch(task);
+    }
+
+    private void move(JSONObject action) throws JSONException {
+        FakeTask task = mTasks.get(action.getString(GTaskStringUtils.GTASK_JSON_ID));
+        if (task == null) {
+            throw new JSONException("no task to move");
+        }
+        String destGid = action.optString(GTaskStringUtils.GTASK_JSON_DEST_LIST,
+                task.mListGid);
+        FakeList source = mLists.get(task.mListGid);
+        source.mTaskGids.remove(task.mGid);
+        source.mLastModified = tick();
+        task.mListGid = destGid;
+        putTask(task, action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null));
+    }
+
+    // places the task after its prior sibling, or first
+    private void putTask(FakeTask task, String priorSiblingGid) {
+        mTasks.put(task.mGid, task);
+        ArrayList<String> gids = mLists.get(task.mListGid).mTaskGids;
+        int index = priorSiblingGid != null ? gids.indexOf(priorSiblingGid) + 1 : gids.size();
+        gids.add(index, task.mGid);
+        touch(task);
+    }
+
+    private void touch(FakeTask task) {
+        task.mLastModified = tick();
+        mLists.get(task.mListGid).mLastModified = task.mLastModified;
+    }
+
+    private String newId() {
+        return "fake:" + (++mNextId);
+    }
+
+    private long tick() {
+        mClock = Math.max(mClock + 1, System.currentTimeMillis());
+        return mClock;
+    }
+
+    private void respond(HttpExchange exchange, int status, String body, String cookie)
+            throws IOException {
+        if (cookie != null) {
+            exchange.getResponseHeaders().add("Set-Cookie", cookie);
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+        mBytesSent.addAndGet(bytes.length);
+    }
+
+    private static boolean hasCreate(JSONArray actions) throws JSONException {
+        for (int i = 0; i < actions.length(); i++) {
+            if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(actions.getJSONObject(i)
+                    .getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasTaskCreate(JSONArray actions) throws JSONException {
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject action = actions.getJSONObject(i);
+            if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(action.getString(
+                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE))
+                    && GTaskStringUtils.GTASK_JSON_TYPE_TASK.equals(action.getJSONObject(
+                    GTaskStringUtils.GTASK_JSON_ENTITY_DELTA).optString(
+                    GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // takes one from the counter if it is positive
+    private static boolean take(AtomicInteger counter) {
+        while (true) {
+            int count = counter.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (counter.compareAndSet(count, count - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean isGzip(HttpExchange exchange) {
+        return "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        return readAll(exchange.getRequestBody());
+    }
+
+    private static byte[] gunzip(byte[] body) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void sleep(int millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
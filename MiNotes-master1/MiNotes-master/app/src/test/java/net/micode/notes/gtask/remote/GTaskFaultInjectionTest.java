@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesTestDatabase;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.gtask.exception.TransientFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAccountManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Syncs against {@link FakeGTaskServer} while it fails posts or drops their answers after
+ * carrying them out. Nothing may be created twice, and the retry policy must neither give up
+ * on answers it never got nor hold the client while waiting
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class GTaskFaultInjectionTest {
+    private static final String ACCOUNT = "faults@gmail.com";
+
+    private static final String DEFAULT_LIST = GTaskStringUtils.MIUI_FOLDER_PREFFIX
+            + GTaskStringUtils.FOLDER_DEFAULT;
+
+    private static final String META_LIST = GTaskStringUtils.MIUI_FOLDER_PREFFIX
+            + GTaskStringUtils.FOLDER_META;
+
+    private static final int NOTES = 10;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private Activity mActivity;
+
+    private FakeGTaskServer mServer;
+
+    private GTaskClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = NotesTestDatabase.setUp();
+        mContext = RuntimeEnvironment.application;
+        mActivity = Robolectric.setupActivity(Activity.class);
+
+        Account account = new Account(ACCOUNT, "com.google");
+        ShadowAccountManager accounts = shadowOf(AccountManager.get(mContext));
+        accounts.addAccount(account);
+        accounts.addAuthToken(account, "goanna_mobile", "token");
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT)
+                .commit();
+        NotesPreferenceActivity.setLastSyncTime(mContext, 0);
+
+        mServer = new FakeGTaskServer();
+        mServer.start();
+        mClient = GTaskClient.getInstance();
+        mClient.setServiceUrl(mContext, mServer.getServiceUrl());
+        mClient.setRetryPolicy(4, 20, 100);
+        // a few creates per post, so the lost answers hit a part of the notes
+        mClient.setBatchLimits(4, 128 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.setRetryPolicy(GTaskRetryPolicy.DEFAULT_MAX_ATTEMPTS,
+                GTaskRetryPolicy.DEFAULT_BASE_DELAY, GTaskRetryPolicy.DEFAULT_MAX_DELAY);
+        mClient.setBatchLimits(GTaskClient.DEFAULT_BATCH_SIZE, GTaskClient.DEFAULT_BATCH_LENGTH);
+        mServer.stop();
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void lostCreateAnswersCreateNothingTwice() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        mServer.loseCreateAnswers(3);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        assertSyncedOnce();
+    }
+
+    @Test
+    public void lostListCreateIsFoundByName() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        // the lists are created on their own before any task
+        mServer.loseCreateAnswers(1);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        assertEquals(1, mServer.countLists(META_LIST));
+        assertSyncedOnce();
+    }
+
+    @Test
+    public void failedCreatesAreSentAgain() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        // a server error may come after the actions are applied, here they are not
+        mServer.failPosts(2, 500);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        assertSyncedOnce();
+    }
+
+    @Test
+    public void throttledPostsAreRetried() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        mServer.failPosts(3, 503);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        assertSyncedOnce();
+    }
+
+    @Test
+    public void nextSyncCreatesNothing() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        mServer.loseCreateAnswers(2);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        mServer.resetCounters();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mServer.getCreateCount());
+        assertSyncedOnce();
+    }
+
+    @Test
+    public void retryDoesNotLockClient() throws Exception {
+        assertTrue(mClient.login(mActivity));
+        String listGid = mServer.addList(DEFAULT_LIST);
+        final Task task = newTask(mServer.addTask(listGid, "task", null));
+        final Task other = newTask(mServer.addTask(listGid, "other", null));
+
+        // the first post waits about a second for its retries
+        mClient.setRetryPolicy(4, 400, 400);
+        mServer.failPosts(2, 503);
+        mClient.addUpdateNode(task);
+        final CountDownLatch posting = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread committer = new Thread(new Runnable() {
+            public void run() {
+                posting.countDown();
+                try {
+                    mClient.commitUpdate();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        committer.start();
+        posting.await();
+        Thread.sleep(100);
+
+        // queueing doesn't wait for the retries
+        long start = System.nanoTime();
+        mClient.addUpdateNode(other);
+        long queued = System.nanoTime() - start;
+        assertTrue("queued in " + queued / 1000000 + "ms", queued < 200 * 1000000L);
+        assertTrue(committer.isAlive());
+
+        committer.join();
+        assertNull(failure.get());
+        mClient.commitUpdate();
+    }
+
+    @Test
+    public void unreadableAnswerKeepsCircuitOpening() throws Exception {
+        GTaskRetryPolicy policy = new GTaskRetryPolicy();
+        policy.setLimits(1, 0, 0);
+        GTaskRetryPolicy.Request<Void> unreachable = new GTaskRetryPolicy.Request<Void>() {
+            public Void execute() throws NetworkFailureException {
+                throw new TransientFailureException("unreachable", false);
+            }
+        };
+        GTaskRetryPolicy.Request<Void> unreadable = new GTaskRetryPolicy.Request<Void>() {
+            public Void execute() {
+                throw new ActionFailureException("unreadable answer");
+            }
+        };
+
+        for (int i = 0; i < 4; i++) {
+            expectTransient(policy, unreachable);
+        }
+        // not an answer of the server, the failures so far still count
+        try {
+            policy.execute(unreadable, true);
+            fail();
+        } catch (ActionFailureException e) {
+            // expected
+        }
+        expectTransient(policy, unreachable);
+
+        final boolean[] sent = new boolean[1];
+        try {
+            policy.execute(new GTaskRetryPolicy.Request<Void>() {
+                public Void execute() {
+                    sent[0] = true;
+                    return null;
+                }
+            }, true);
+            fail("the circuit should be open");
+        } catch (NetworkFailureException e) {
+            assertFalse(e instanceof TransientFailureException);
+        }
+        assertFalse(sent[0]);
+    }
+
+    private static void expectTransient(GTaskRetryPolicy policy, GTaskRetryPolicy.Request<Void>
+            request) throws NetworkFailureException {
+        try {
+            policy.execute(request, true);
+            fail();
+        } catch (TransientFailureException e) {
+            // expected
+        }
+    }
+
+    private static Task newTask(String gid) {
+        Task task = new Task();
+        task.setGid(gid);
+        task.setName(gid);
+        return task;
+    }
+
+    private void assertSyncedOnce() {
+        assertEquals(1, mServer.countLists(DEFAULT_LIST));
+        String listGid = mServer.findList(DEFAULT_LIST);
+        assertNotNull(listGid);
+        assertEquals(NOTES, mServer.getTasks(listGid).size());
+        for (int i = 0; i < NOTES; i++) {
+            assertEquals(1, mServer.countTasks("note " + i));
+        }
+        assertEquals(NOTES, mServer.getTasks(mServer.findList(META_LIST)).size());
+        assertEquals(NOTES, countSyncedNotes());
+    }
+
+    private int sync() {
+        GTaskManager manager = GTaskManager.getInstance();
+        manager.setActivityContext(mActivity);
+        int state = manager.sync(mContext, new GTaskASyncTask(mContext, null));
+        if (state == GTaskManager.STATE_SUCCESS) {
+            // done by the task when it finishes
+            NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis());
+        }
+        return state;
+    }
+
+    private int countSyncedNotes() {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID
+        }, NoteColumns.TYPE + "=? AND " + NoteColumns.GTASK_ID + "<>''", new String[] {
+                String.valueOf(Notes.TYPE_NOTE)
+        }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
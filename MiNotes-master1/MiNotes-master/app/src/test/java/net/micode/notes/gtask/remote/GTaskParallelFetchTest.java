@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesTestDatabase;
+import net.micode.notes.testing.Benchmarks;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAccountManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * The first sync of an account with many folders, against a {@link FakeGTaskServer} that
+ * answers each request after a delay. The task lists fetched by several threads must end up
+ * as the same notes as fetched one after another, in a fraction of the time
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class GTaskParallelFetchTest {
+    private static final String ACCOUNT = "parallel@gmail.com";
+
+    private static final int LISTS = 30;
+
+    private static final int TASKS_PER_LIST = 5;
+
+    private static final int LATENCY_MILLIS = 30;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private Activity mActivity;
+
+    private FakeGTaskServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mActivity = Robolectric.setupActivity(Activity.class);
+
+        Account account = new Account(ACCOUNT, "com.google");
+        ShadowAccountManager accounts = shadowOf(AccountManager.get(mContext));
+        accounts.addAccount(account);
+        accounts.addAuthToken(account, "goanna_mobile", "token");
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT)
+                .commit();
+    }
+
+    @After
+    public void tearDown() {
+        GTaskManager.getInstance().setFetchThreads(GTaskManager.DEFAULT_FETCH_THREADS);
+        if (mServer != null) {
+            mServer.stop();
+        }
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void parallelFetchGivesSameNotes() throws Exception {
+        long sequential = firstSync(1);
+        ArrayList<String> expected = getNotes();
+        assertEquals(LISTS + LISTS * TASKS_PER_LIST, expected.size());
+
+        for (int threads : new int[] {
+                2, 4, 8
+        }) {
+            long parallel = firstSync(threads);
+            assertEquals(expected, getNotes());
+            if (threads == GTaskManager.DEFAULT_FETCH_THREADS) {
+                // each list costs a round trip, fetched one by one they add up
+                assertTrue("parallel " + Benchmarks.millis(parallel) + "ms, sequential "
+                        + Benchmarks.millis(sequential) + "ms", parallel < sequential * 2 / 3);
+            }
+        }
+    }
+
+    // syncs a fresh account against a fresh server, returns the wall time
+    private long firstSync(int threads) throws Exception {
+        if (mServer != null) {
+            mServer.stop();
+            NotesTestDatabase.tearDown();
+        }
+        mResolver = NotesTestDatabase.setUp();
+        NotesPreferenceActivity.setLastSyncTime(mContext, 0);
+        mServer = new FakeGTaskServer();
+        for (int i = 0; i < LISTS; i++) {
+            String listGid = mServer.addList(GTaskStringUtils.MIUI_FOLDER_PREFFIX + "folder "
+                    + i);
+            for (int j = 0; j < TASKS_PER_LIST; j++) {
+                mServer.addTask(listGid, "task " + i + "-" + j, null);
+            }
+        }
+        mServer.start();
+        GTaskClient.getInstance().setServiceUrl(mContext, mServer.getServiceUrl());
+        mServer.setLatency(LATENCY_MILLIS);
+
+        GTaskManager manager = GTaskManager.getInstance();
+        manager.setActivityContext(mActivity);
+        manager.setFetchThreads(threads);
+        mServer.resetCounters();
+        long start = System.nanoTime();
+        assertEquals(GTaskManager.STATE_SUCCESS,
+                manager.sync(mContext, new GTaskASyncTask(mContext, null)));
+        long wall = System.nanoTime() - start;
+        Benchmarks.report("gtask fetch", "lists=%d latency=%dms threads=%d wall=%.0fms "
+                + "requests=%d", LISTS, LATENCY_MILLIS, threads, Benchmarks.millis(wall),
+                mServer.getRequestCount());
+        return wall;
+    }
+
+    // the folders and notes with their parents, in a stable order
+    private ArrayList<String> getNotes() {
+        ArrayList<String> notes = new ArrayList<String>();
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.TYPE, NoteColumns.SNIPPET, NoteColumns.PARENT_ID, NoteColumns.ID
+        }, NoteColumns.TYPE + " IN (?,?) AND " + NoteColumns.GTASK_ID + "<>''", new String[] {
+                String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.TYPE_FOLDER)
+        }, NoteColumns.ID);
+        try {
+            ArrayList<String> folders = new ArrayList<String>();
+            ArrayList<Long> folderIds = new ArrayList<Long>();
+            while (c.moveToNext()) {
+                if (c.getInt(0) == Notes.TYPE_FOLDER) {
+                    folders.add(c.getString(1));
+                    folderIds.add(c.getLong(3));
+                }
+            }
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                if (c.getInt(0) == Notes.TYPE_FOLDER) {
+                    notes.add("folder " + c.getString(1));
+                } else {
+                    int parent = folderIds.indexOf(c.getLong(2));
+                    notes.add((parent >= 0 ? folders.get(parent) : "") + "/" + c.getString(1));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(notes);
+        return notes;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.testing.Benchmarks;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parse time and peak heap of a get all response of a large synthetic account, read by the
+ * streaming decoder and, for comparison, the way it used to be read: the whole content into
+ * a string, then a json tree, then the fields copied into the tasks
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class GTaskResponseReaderBenchmarkTest {
+    private static final int RUNS = 5;
+
+    @Test
+    public void streamingReadsSameTasks() throws Exception {
+        byte[] response = buildTasksResponse(100);
+        ArrayList<Task> streamed = GTaskResponseReader.readTasks(reader(response),
+                GTaskResponseReader.TASKS);
+        ArrayList<Task> tree = readTasksByTree(response);
+        assertEquals(100, streamed.size());
+        assertEquals(tree.size(), streamed.size());
+        for (int i = 0; i < tree.size(); i++) {
+            Task expected = tree.get(i);
+            Task actual = streamed.get(i);
+            assertEquals(expected.getGid(), actual.getGid());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getNotes(), actual.getNotes());
+            assertEquals(expected.getLastModified(), actual.getLastModified());
+            assertEquals(expected.getCompleted(), actual.getCompleted());
+        }
+    }
+
+    @Test
+    public void streamingReadsSetup() throws Exception {
+        ArrayList<TaskList> lists = new ArrayList<TaskList>();
+        long version = GTaskResponseReader.readSetup(reader(buildSetupPage(50)), lists);
+        assertEquals(7, version);
+        assertEquals(50, lists.size());
+        assertEquals("list-49", lists.get(49).getGid());
+    }
+
+    @Test
+    public void parseBySize() throws Exception {
+        for (int size : Benchmarks.sizes(2000, 20000)) {
+            byte[] response = buildTasksResponse(size);
+            measure(size, response, true);
+            measure(size, response, false);
+        }
+    }
+
+    private void measure(int size, byte[] response, boolean streaming) throws Exception {
+        long[] samples = new long[RUNS];
+        long peak = 0;
+        for (int i = 0; i < RUNS; i++) {
+            Benchmarks.HeapSampler heap = new Benchmarks.HeapSampler().start();
+            long start = System.nanoTime();
+            ArrayList<Task> tasks = streaming
+                    ? GTaskResponseReader.readTasks(reader(response), GTaskResponseReader.TASKS)
+                    : readTasksByTree(response);
+            samples[i] = System.nanoTime() - start;
+            peak = Math.max(peak, heap.stop());
+            assertEquals(size, tasks.size());
+        }
+        Benchmarks.report("gtask parse", "tasks=%d reader=%s response=%dKB p50=%.1fms "
+                + "max=%.1fms peak heap=%dKB", size, streaming ? "stream" : "tree",
+                response.length / 1024, Benchmarks.millis(Benchmarks.percentile(samples, RUNS,
+                        50)), Benchmarks.millis(Benchmarks.percentile(samples, RUNS, 100)),
+                peak / 1024);
+    }
+
+    // the response read as before the streaming decoder
+    private static ArrayList<Task> readTasksByTree(byte[] response) throws IOException,
+            JSONException {
+        BufferedReader br = new BufferedReader(reader(response));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            sb.append(line);
+        }
+        JSONArray jsTasks = new JSONObject(sb.toString())
+                .getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < jsTasks.length(); i++) {
+            Task task = new Task();
+            task.setContentByRemoteJSON(jsTasks.getJSONObject(i));
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private static Reader reader(byte[] bytes) throws IOException {
+        return new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8");
+    }
+
+    private static byte[] buildTasksResponse(int count) throws Exception {
+        JSONArray tasks = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject task = new JSONObject();
+            task.put(GTaskStringUtils.GTASK_JSON_ID, "task-" + i);
+            task.put(GTaskStringUtils.GTASK_JSON_NAME, "note " + i + " with a line of text");
+            if (i % 2 == 0) {
+                task.put(GTaskStringUtils.GTASK_JSON_NOTES, "{\"note\":{\"id\":" + i
+                        + ",\"snippet\":\"note " + i + "\"},\"data\":[]}");
+            }
+            task.put(GTaskStringUtils.GTASK_JSON_DELETED, false);
+            task.put(GTaskStringUtils.GTASK_JSON_COMPLETED, i % 10 == 0);
+            task.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 1500000000000L + i);
+            task.put(GTaskStringUtils.GTASK_JSON_LIST_ID, "list-" + i % 30);
+            task.put(GTaskStringUtils.GTASK_JSON_TYPE, GTaskStringUtils.GTASK_JSON_TYPE_TASK);
+            tasks.put(task);
+        }
+        JSONObject response = new JSONObject();
+        response.put(GTaskStringUtils.GTASK_JSON_RESULTS, new JSONArray());
+        response.put(GTaskStringUtils.GTASK_JSON_TASKS, tasks);
+        return response.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] buildSetupPage(int count) throws Exception {
+        JSONArray lists = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject list = new JSONObject();
+            list.put(GTaskStringUtils.GTASK_JSON_ID, "list-" + i);
+            list.put(GTaskStringUtils.GTASK_JSON_NAME, GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + "folder " + i);
+            list.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 1500000000000L + i);
+            lists.put(list);
+        }
+        JSONObject tasks = new JSONObject();
+        tasks.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+        JSONObject setup = new JSONObject();
+        setup.put("v", 7);
+        setup.put("t", tasks);
+        return ("<html><head><script>var a = 1;</script></head><body><script>_setup("
+                + setup + ")</script></body></html>").getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesTestDatabase;
+import net.micode.notes.testing.Benchmarks;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAccountManager;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Whole syncs against {@link FakeGTaskServer}: the first sync uploading every note, a sync
+ * with nothing changed, and syncs after local and remote edits. Each reports the wall time,
+ * the requests and bytes exchanged and the peak heap
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class GTaskSyncBenchmarkTest {
+    private static final String ACCOUNT = "benchmark@gmail.com";
+
+    private static final String DEFAULT_LIST = GTaskStringUtils.MIUI_FOLDER_PREFFIX
+            + GTaskStringUtils.FOLDER_DEFAULT;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private Activity mActivity;
+
+    private FakeGTaskServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = NotesTestDatabase.setUp();
+        mContext = RuntimeEnvironment.application;
+        mActivity = Robolectric.setupActivity(Activity.class);
+
+        Account account = new Account(ACCOUNT, "com.google");
+        ShadowAccountManager accounts = shadowOf(AccountManager.get(mContext));
+        accounts.addAccount(account);
+        accounts.addAuthToken(account, "goanna_mobile", "token");
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT)
+                .commit();
+
+        mServer = new FakeGTaskServer();
+        mServer.start();
+        GTaskClient.getInstance().setServiceUrl(mContext, mServer.getServiceUrl());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void firstSyncUploadsEveryNote() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", 20);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        String listGid = mServer.findList(DEFAULT_LIST);
+        assertNotNull(listGid);
+        assertEquals(20, mServer.getTasks(listGid).size());
+        assertEquals(20, countSyncedNotes());
+
+        // nothing changed, nothing is created again
+        mServer.resetCounters();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mServer.getCreateCount());
+        assertEquals(20, mServer.getTasks(listGid).size());
+    }
+
+    @Test
+    public void remoteEditReachesNote() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", 5);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        String gid = mServer.getTasks(mServer.findList(DEFAULT_LIST)).get(0);
+        mServer.renameTask(gid, "edited remotely");
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        long noteId;
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID
+        }, NoteColumns.GTASK_ID + "=?", new String[] {
+                gid
+        }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            noteId = c.getLong(0);
+        } finally {
+            c.close();
+        }
+        c = mResolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.CONTENT
+        }, DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?", new String[] {
+                String.valueOf(noteId), Notes.DataConstants.NOTE
+        }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("edited remotely", c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void syncBySize() throws Exception {
+        for (int size : Benchmarks.sizes(100, 1000)) {
+            // each size starts with an empty account
+            NotesTestDatabase.tearDown();
+            mResolver = NotesTestDatabase.setUp();
+            NotesPreferenceActivity.setLastSyncTime(mContext, 0);
+            mServer.stop();
+            mServer = new FakeGTaskServer();
+            mServer.start();
+            GTaskClient.getInstance().setServiceUrl(mContext, mServer.getServiceUrl());
+            NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", size);
+
+            measure(size, "first");
+            measure(size, "unchanged");
+
+            editLocally(Math.max(size / 100, 1));
+            measure(size, "1% local edits");
+
+            ArrayList<String> gids = mServer.getTasks(mServer.findList(DEFAULT_LIST));
+            for (int i = 0; i < Math.max(size / 100, 1); i++) {
+                mServer.renameTask(gids.get(i), "remote edit " + i);
+            }
+            measure(size, "1% remote edits");
+        }
+    }
+
+    private void measure(int size, String pass) {
+        mServer.resetCounters();
+        Benchmarks.HeapSampler heap = new Benchmarks.HeapSampler().start();
+        long start = System.nanoTime();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        long wall = System.nanoTime() - start;
+        long peak = heap.stop();
+        Benchmarks.report("gtask sync", "notes=%d pass=%s wall=%.0fms requests=%d actions=%d "
+                + "sent=%dKB received=%dKB heap=%dKB", size, pass, Benchmarks.millis(wall),
+                mServer.getRequestCount(), mServer.getActionCount(),
+                mServer.getBytesReceived() / 1024, mServer.getBytesSent() / 1024,
+                peak / 1024);
+    }
+
+    private int sync() {
+        GTaskManager manager = GTaskManager.getInstance();
+        manager.setActivityContext(mActivity);
+        int state = manager.sync(mContext, new GTaskASyncTask(mContext, null));
+        if (state == GTaskManager.STATE_SUCCESS) {
+            // done by the task when it finishes
+            NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis());
+        }
+        return state;
+    }
+
+    private void editLocally(int count) {
+        Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.ID, DataColumns.NOTE_ID
+        }, DataColumns.MIME_TYPE + "=?", new String[] {
+                Notes.DataConstants.NOTE
+        }, DataColumns.ID + " LIMIT " + count);
+        try {
+            while (c.moveToNext()) {
+                String content = "local edit " + c.getLong(1);
+                ContentValues values = new ContentValues();
+                values.put(DataColumns.CONTENT, content);
+                mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI,
+                        c.getLong(0)), values, null, null);
+                values = new ContentValues();
+                values.put(NoteColumns.SNIPPET, content);
+                values.put(NoteColumns.LOCAL_MODIFIED, 1);
+                mResolver.update(NotesTestDatabase.noteUri(c.getLong(1)), values, null, null);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private int countSyncedNotes() {
+        Cursor c = mResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID
+        }, NoteColumns.TYPE + "=? AND " + NoteColumns.GTASK_ID + "<>''", new String[] {
+                String.valueOf(Notes.TYPE_NOTE)
+        }, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SyncJournalColumns;
+import net.micode.notes.data.NotesTestDatabase;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAccountManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Syncs interrupted by {@link FakeGTaskServer} going down at the points the sync journal is
+ * about: after creates reached the server but before their answers were bound, and after the
+ * content sync was committed. The next sync must create nothing twice, and must not sync the
+ * content again once it has been committed
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class GTaskSyncJournalTest {
+    private static final String ACCOUNT = "journal@gmail.com";
+
+    private static final String DEFAULT_LIST = GTaskStringUtils.MIUI_FOLDER_PREFFIX
+            + GTaskStringUtils.FOLDER_DEFAULT;
+
+    private static final int NOTES = 10;
+
+    private static final int BATCH_SIZE = 4;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    private Activity mActivity;
+
+    private FakeGTaskServer mServer;
+
+    private GTaskClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = NotesTestDatabase.setUp();
+        mContext = RuntimeEnvironment.application;
+        mActivity = Robolectric.setupActivity(Activity.class);
+
+        Account account = new Account(ACCOUNT, "com.google");
+        ShadowAccountManager accounts = shadowOf(AccountManager.get(mContext));
+        accounts.addAccount(account);
+        accounts.addAuthToken(account, "goanna_mobile", "token");
+        mContext.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT)
+                .commit();
+        NotesPreferenceActivity.setLastSyncTime(mContext, 0);
+
+        mServer = new FakeGTaskServer();
+        mServer.start();
+        mClient = GTaskClient.getInstance();
+        mClient.setServiceUrl(mContext, mServer.getServiceUrl());
+        // the failures of one interrupted sync stay below those opening the circuit
+        mClient.setRetryPolicy(2, 20, 100);
+        mClient.setBatchLimits(BATCH_SIZE, 128 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.setRetryPolicy(GTaskRetryPolicy.DEFAULT_MAX_ATTEMPTS,
+                GTaskRetryPolicy.DEFAULT_BASE_DELAY, GTaskRetryPolicy.DEFAULT_MAX_DELAY);
+        mClient.setBatchLimits(GTaskClient.DEFAULT_BATCH_SIZE, GTaskClient.DEFAULT_BATCH_LENGTH);
+        mServer.stop();
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void unboundCreatesAreRecovered() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        mServer.goDownAfterTaskCreate();
+        assertEquals(GTaskManager.STATE_NETWORK_ERROR, sync());
+
+        // the first batch of tasks is created, the client has got none of their gids
+        String listGid = mServer.findList(DEFAULT_LIST);
+        assertEquals(BATCH_SIZE, mServer.getTasks(listGid).size());
+        assertEquals(0, countSyncedNotes());
+        // their creates were journaled before the batch was posted
+        assertTrue(countJournal(SyncJournalColumns.KIND_CREATE) >= BATCH_SIZE);
+        assertEquals(0, countCreatedGids());
+
+        mServer.comeBack();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        assertEquals(NOTES, mServer.getTasks(listGid).size());
+        for (int i = 0; i < NOTES; i++) {
+            assertEquals(1, mServer.countTasks("note " + i));
+        }
+        assertEquals(NOTES, countSyncedNotes());
+        assertEquals(0, countJournal(SyncJournalColumns.KIND_CREATE));
+
+        mServer.resetCounters();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mServer.getCreateCount());
+    }
+
+    @Test
+    public void boundCreatesKeepTheirGids() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        // the answers come, the sync fails on the reads of the refresh
+        mServer.failReadsAfterCreate();
+        assertEquals(GTaskManager.STATE_NETWORK_ERROR, sync());
+
+        assertEquals(NOTES, countSyncedNotes());
+        assertEquals(NOTES, countCreatedGids());
+    }
+
+    @Test
+    public void committedContentIsNotSyncedAgain() throws Exception {
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "note ", NOTES);
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+
+        NotesTestDatabase.insertNotes(mResolver, Notes.ID_ROOT_FOLDER, "later ", NOTES);
+        mServer.failReadsAfterCreate();
+        assertEquals(GTaskManager.STATE_NETWORK_ERROR, sync());
+        assertEquals(1, countJournal(SyncJournalColumns.KIND_PHASE,
+                GTaskSyncJournal.PHASE_CONTENT_SYNCED));
+        assertEquals(2 * NOTES, countSyncedNotes());
+
+        // a note added since then is left to the next sync by the resumed one
+        NotesTestDatabase.insertNote(mResolver, Notes.ID_ROOT_FOLDER, "after");
+        mServer.comeBack();
+        mServer.resetCounters();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mServer.getCreateCount());
+        assertEquals(0, mServer.getUpdateCount());
+        assertEquals(0, mServer.countTasks("after"));
+        assertEquals(0, countJournal(SyncJournalColumns.KIND_PHASE));
+
+        mServer.resetCounters();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(1, mServer.countTasks("after"));
+        for (int i = 0; i < NOTES; i++) {
+            assertEquals(1, mServer.countTasks("note " + i));
+            assertEquals(1, mServer.countTasks("later " + i));
+        }
+        assertEquals(2 * NOTES + 1, countSyncedNotes());
+
+        // the sync ids refreshed by the resumed sync leave nothing to sync
+        mServer.resetCounters();
+        assertEquals(GTaskManager.STATE_SUCCESS, sync());
+        assertEquals(0, mServer.getCreateCount());
+        assertEquals(0, mServer.getUpdateCount());
+    }
+
+    private int sync() {
+        GTaskManager manager = GTaskManager.getInstance();
+        manager.setActivityContext(mActivity);
+        int state = manager.sync(mContext, new GTaskASyncTask(mContext, null));
+        if (state == GTaskManager.STATE_SUCCESS) {
+            // done by the task when it finishes
+            NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis());
+        }
+        return state;
+    }
+
+    private int countJournal(int kind) {
+        return count(Notes.CONTENT_SYNC_JOURNAL_URI, SyncJournalColumns.KIND + "=?",
+                String.valueOf(kind));
+    }
+
+    private int countJournal(int kind, int phase) {
+        return count(Notes.CONTENT_SYNC_JOURNAL_URI, SyncJournalColumns.KIND + "=? AND "
+                + SyncJournalColumns.PHASE + "=?", String.valueOf(kind), String.valueOf(phase));
+    }
+
+    private int countCreatedGids() {
+        return count(Notes.CONTENT_SYNC_JOURNAL_URI, SyncJournalColumns.KIND + "=? AND "
+                + SyncJournalColumns.GID + "<>''",
+                String.valueOf(SyncJournalColumns.KIND_CREATE));
+    }
+
+    private int countSyncedNotes() {
+        return count(Notes.CONTENT_NOTE_URI, NoteColumns.TYPE + "=? AND " + NoteColumns.GTASK_ID
+                + "<>''", String.valueOf(Notes.TYPE_NOTE));
+    }
+
+    private int count(Uri uri, String selection, String... selectionArgs) {
+        Cursor c = mResolver.query(uri, null, selection, selectionArgs, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
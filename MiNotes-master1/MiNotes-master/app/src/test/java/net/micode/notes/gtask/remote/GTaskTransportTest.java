@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.micode.notes.testing.Benchmarks;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The transport against a local endpoint that answers after an injected latency and may
+ * refuse compressed request bodies
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class GTaskTransportTest {
+    private static final int REQUESTS = 50;
+
+    private HttpServer mServer;
+
+    private String mUrl;
+
+    private volatile int mLatencyMillis;
+
+    private volatile boolean mRejectGzip;
+
+    private final AtomicInteger mGzipRejected = new AtomicInteger();
+
+    private GTaskTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // drain the body
+                }
+                boolean gzip = "gzip".equals(exchange.getRequestHeaders()
+                        .getFirst("Content-Encoding"));
+                if (gzip && mRejectGzip) {
+                    mGzipRejected.incrementAndGet();
+                    exchange.sendResponseHeaders(415, -1);
+                    exchange.close();
+                    return;
+                }
+                try {
+                    Thread.sleep(mLatencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "{\"results\":[]}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/tasks/r/ig";
+        mTransport = new GTaskTransport();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void gzipIsOffByDefault() throws IOException {
+        HttpEntity entity = entity(4096);
+        assertSame(entity, mTransport.prepareEntity(entity));
+    }
+
+    @Test
+    public void rejectedGzipFallsBackToPlain() throws IOException {
+        mRejectGzip = true;
+        mTransport.setGzipRequests(true);
+        HttpEntity entity = entity(4096);
+        HttpEntity sent = mTransport.prepareEntity(entity);
+        assertNotSame(entity, sent);
+
+        HttpResponse response = post(sent);
+        int status = response.getStatusLine().getStatusCode();
+        assertEquals(415, status);
+        assertTrue(mTransport.isGzipRejected(sent, status));
+
+        assertEquals(200, post(entity).getStatusLine().getStatusCode());
+        // later requests are not compressed any more
+        assertSame(entity, mTransport.prepareEntity(entity));
+        assertEquals(1, mGzipRejected.get());
+    }
+
+    @Test
+    public void otherErrorsKeepGzip() throws IOException {
+        mTransport.setGzipRequests(true);
+        HttpEntity entity = entity(4096);
+        HttpEntity sent = mTransport.prepareEntity(entity);
+        assertFalse(mTransport.isGzipRejected(sent, 500));
+        assertFalse(mTransport.isGzipRejected(entity, 415));
+        assertNotSame(entity, mTransport.prepareEntity(entity));
+    }
+
+    @Test
+    public void requestLatency() throws IOException {
+        for (int latency : new int[] {
+                0, 20, 100
+        }) {
+            mLatencyMillis = latency;
+            measure(latency, false);
+            measure(latency, true);
+        }
+    }
+
+    private void measure(int latency, boolean gzip) throws IOException {
+        mTransport.setGzipRequests(gzip);
+        mTransport.resetStats();
+        long[] samples = new long[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            long start = System.nanoTime();
+            HttpResponse response = post(mTransport.prepareEntity(entity(16 * 1024)));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            samples[i] = System.nanoTime() - start;
+        }
+        Benchmarks.report("transport post", "latency=%dms gzip=%b p50=%.2fms p90=%.2fms "
+                + "max=%.2fms %s", latency, gzip,
+                Benchmarks.millis(Benchmarks.percentile(samples, REQUESTS, 50)),
+                Benchmarks.millis(Benchmarks.percentile(samples, REQUESTS, 90)),
+                Benchmarks.millis(Benchmarks.percentile(samples, REQUESTS, 100)),
+                mTransport.getStats());
+    }
+
+    private HttpResponse post(HttpEntity entity) throws IOException {
+        HttpPost post = new HttpPost(mUrl);
+        post.setEntity(entity);
+        HttpResponse response = mTransport.execute(post);
+        if (response.getEntity() != null) {
+            // release the connection to the pool
+            response.getEntity().consumeContent();
+        }
+        return response;
+    }
+
+    private static HttpEntity entity(int length) throws IOException {
+        StringBuilder sb = new StringBuilder(length + 64);
+        sb.append("r=");
+        while (sb.length() < length) {
+            sb.append("{\"action_type\":\"update\",\"id\":\"task\"},");
+        }
+        sb.setLength(length);
+        StringEntity entity = new StringEntity(sb.toString(), "UTF-8");
+        entity.setContentType("application/x-www-form-urlencoded;charset=utf-8");
+        return entity;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.model;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesTestDatabase;
+import net.micode.notes.testing.Benchmarks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency of saving a note from the editor: the whole note goes in one provider batch, the
+ * numbers are compared with writing the note row and the data row in separate calls as the
+ * save did before
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class NoteSaveBenchmarkTest {
+    private static final int SAVES = 50;
+
+    private Context mContext;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = NotesTestDatabase.setUp();
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void savedContentReloads() {
+        WorkingNote note = newNote();
+        note.setWorkingText("first");
+        assertTrue(note.saveNote());
+        note.setWorkingText("second");
+        assertTrue(note.saveNote());
+        assertEquals("second", WorkingNote.load(mContext, note.getNoteId()).getContent());
+    }
+
+    @Test
+    public void reopenWaitsForQueuedSave() throws Exception {
+        final WorkingNote note = newNote();
+        note.setWorkingText("first");
+        assertTrue(note.saveNote());
+        // cached by the first open
+        assertEquals("first", WorkingNote.load(mContext, note.getNoteId()).getContent());
+
+        // hold the database so the queued save can't be written yet
+        final SQLiteDatabase db = NotesTestDatabase.getDatabase();
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            public void run() {
+                db.beginTransaction();
+                try {
+                    locked.countDown();
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+
+        NoteAutoSaver saver = new NoteAutoSaver(note, new NoteAutoSaver.OnCollectEditsListener() {
+            public void onCollectEdits() {
+                note.setWorkingText("second");
+            }
+        });
+        assertTrue(saver.flush());
+        // reopened before the save is written, e.g. from a widget
+        assertEquals("second", WorkingNote.load(mContext, note.getNoteId()).getContent());
+        holder.join();
+    }
+
+    @Test
+    public void unchangedNoteIsNotSaved() {
+        WorkingNote note = newNote();
+        note.setWorkingText("text");
+        assertTrue(note.saveNote());
+        assertTrue(!note.hasUnsavedChanges());
+        assertTrue(!note.saveNote());
+    }
+
+    @Test
+    public void saveLatency() {
+        for (int size : Benchmarks.sizes(100, 10000, 200000)) {
+            measureEditorSave(size);
+            measureSeparateWrites(size);
+        }
+    }
+
+    /**
+     * The path of {@link net.micode.notes.ui.NoteEditActivity}: the edits are collected
+     * into the working note and the saver writes them on its thread
+     */
+    private void measureEditorSave(int size) {
+        final WorkingNote note = newNote();
+        final String[] text = new String[1];
+        NoteAutoSaver saver = new NoteAutoSaver(note, new NoteAutoSaver.OnCollectEditsListener() {
+            public void onCollectEdits() {
+                note.setWorkingText(text[0]);
+            }
+        });
+
+        text[0] = content(size, -1);
+        long start = System.nanoTime();
+        assertTrue(saver.flushAndWait());
+        long create = System.nanoTime() - start;
+
+        long[] samples = new long[SAVES];
+        for (int i = 0; i < SAVES; i++) {
+            text[0] = content(size, i);
+            start = System.nanoTime();
+            assertTrue(saver.flushAndWait());
+            samples[i] = System.nanoTime() - start;
+        }
+        assertEquals(text[0], WorkingNote.load(mContext, note.getNoteId()).getContent());
+        report("editor save", size, create, samples);
+    }
+
+    /**
+     * The note row and the data row written by two calls, each in its own transaction
+     */
+    private void measureSeparateWrites(int size) {
+        WorkingNote note = newNote();
+        note.setWorkingText(content(size, -1));
+        long start = System.nanoTime();
+        assertTrue(note.saveNote());
+        long create = System.nanoTime() - start;
+
+        long dataId = queryTextDataId(note.getNoteId());
+        long[] samples = new long[SAVES];
+        ContentValues noteValues = new ContentValues();
+        ContentValues dataValues = new ContentValues();
+        for (int i = 0; i < SAVES; i++) {
+            start = System.nanoTime();
+            noteValues.put(NoteColumns.LOCAL_MODIFIED, 1);
+            noteValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+            mResolver.update(NotesTestDatabase.noteUri(note.getNoteId()), noteValues, null,
+                    null);
+            dataValues.put(DataColumns.CONTENT, content(size, i));
+            mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId),
+                    dataValues, null, null);
+            samples[i] = System.nanoTime() - start;
+        }
+        report("separate writes", size, create, samples);
+    }
+
+    private long queryTextDataId(long noteId) {
+        Cursor c = mResolver.query(Notes.CONTENT_DATA_URI, new String[] {
+                DataColumns.ID
+        }, DataColumns.NOTE_ID + "=?", new String[] {
+                String.valueOf(noteId)
+        }, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private WorkingNote newNote() {
+        return WorkingNote.createEmptyNote(mContext, Notes.ID_ROOT_FOLDER, 0,
+                Notes.TYPE_WIDGET_INVALIDE, 0);
+    }
+
+    private static String content(int size, int edit) {
+        StringBuilder sb = new StringBuilder(size + 16);
+        sb.append("edit ").append(edit).append('\n');
+        while (sb.length() < size) {
+            sb.append("the quick brown fox jumps over the lazy dog\n");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    private static void report(String name, int size, long create, long[] samples) {
+        Benchmarks.report(name, "chars=%d create=%.2fms p50=%.2fms p90=%.2fms max=%.2fms",
+                size, Benchmarks.millis(create),
+                Benchmarks.millis(Benchmarks.percentile(samples, samples.length, 50)),
+                Benchmarks.millis(Benchmarks.percentile(samples, samples.length, 90)),
+                Benchmarks.millis(Benchmarks.percentile(samples, samples.length, 100)));
+    }
+}
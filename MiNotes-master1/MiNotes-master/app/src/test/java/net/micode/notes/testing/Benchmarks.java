@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.testing;
+
+import java.util.Arrays;
+
+/**
+ * Helpers of the benchmarks run with the unit tests. They run at small sizes by default so the
+ * test task stays fast, pass -Pbenchmark.sizes=100,1000,10000,50000 to gradle for real numbers
+ */
+public final class Benchmarks {
+    public static final String SIZES_PROPERTY = "benchmark.sizes";
+
+    private Benchmarks() {
+    }
+
+    /**
+     * The dataset sizes to run with, from the benchmark.sizes property or the defaults
+     */
+    public static int[] sizes(int... defaults) {
+        String property = System.getProperty(SIZES_PROPERTY);
+        if (property == null || property.trim().length() == 0) {
+            return defaults;
+        }
+        String[] parts = property.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+
+    public static void report(String name, String format, Object... args) {
+        System.out.println("[benchmark] " + name + ": " + String.format(format, args));
+    }
+
+    /**
+     * @param p the percentile between 0 and 100
+     */
+    public static long percentile(long[] samples, int count, double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    public static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    /**
+     * Samples the used heap on a background thread, the peak is an upper bound of what the
+     * measured code needs since garbage left by earlier code is counted as well
+     */
+    public static class HeapSampler {
+        private final Thread mThread;
+
+        private volatile boolean mRunning;
+
+        private volatile long mPeak;
+
+        private long mBaseline;
+
+        public HeapSampler() {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (mRunning) {
+                        sample();
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "heap-sampler");
+            mThread.setDaemon(true);
+        }
+
+        public HeapSampler start() {
+            System.gc();
+            mBaseline = used();
+            mPeak = mBaseline;
+            mRunning = true;
+            mThread.start();
+            return this;
+        }
+
+        /**
+         * @return the peak heap above the heap used when the sampler was started, in bytes
+         */
+        public long stop() {
+            mRunning = false;
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample();
+            return Math.max(mPeak - mBaseline, 0);
+        }
+
+        private void sample() {
+            long used = used();
+            if (used > mPeak) {
+                mPeak = used;
+            }
+        }
+
+        private static long used() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
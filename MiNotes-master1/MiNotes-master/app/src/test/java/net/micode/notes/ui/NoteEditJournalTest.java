@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Intent;
+import android.view.View;
+import android.widget.EditText;
+
+import net.micode.notes.R;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.data.NotesTestDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.fakes.RoboMenuItem;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The undo history on its own, and behind the note editor where the edits are grouped by
+ * pauses and the list mode rebuilds the views
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class NoteEditJournalTest {
+
+    @Before
+    public void setUp() {
+        NotesTestDatabase.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        NotesTestDatabase.tearDown();
+    }
+
+    @Test
+    public void undoAndRedoRoundTrip() {
+        NoteEditJournal journal = new NoteEditJournal();
+        journal.reset(0, "");
+        assertTrue(journal.record(0, "one"));
+        assertTrue(journal.record(0, "one two"));
+        assertTrue(journal.record(0, "one 2"));
+        assertFalse(journal.record(0, "one 2"));
+
+        assertTrue(journal.undo());
+        assertEquals("one two", journal.getText());
+        assertTrue(journal.undo());
+        assertEquals("one", journal.getText());
+        assertTrue(journal.undo());
+        assertEquals("", journal.getText());
+        assertFalse(journal.canUndo());
+
+        assertTrue(journal.redo());
+        assertTrue(journal.redo());
+        assertTrue(journal.redo());
+        assertEquals("one 2", journal.getText());
+        assertFalse(journal.canRedo());
+
+        // a new edit drops what could be redone
+        journal.undo();
+        journal.record(0, "one three");
+        assertFalse(journal.canRedo());
+        journal.undo();
+        assertEquals("one two", journal.getText());
+    }
+
+    @Test
+    public void modeIsUndoneWithText() {
+        NoteEditJournal journal = new NoteEditJournal();
+        journal.reset(0, "one");
+        String list = NoteEditActivity.TAG_UNCHECKED + " one\n";
+        journal.record(TextNote.MODE_CHECK_LIST, list);
+        journal.record(0, "one\n");
+
+        journal.undo();
+        assertEquals(TextNote.MODE_CHECK_LIST, journal.getMode());
+        assertEquals(list, journal.getText());
+        journal.undo();
+        assertEquals(0, journal.getMode());
+        assertEquals("one", journal.getText());
+    }
+
+    @Test
+    public void oldestEditsAreDroppedPastMaxEdits() {
+        NoteEditJournal journal = new NoteEditJournal();
+        journal.reset(0, "");
+        StringBuilder text = new StringBuilder();
+        int extra = 10;
+        for (int i = 0; i < NoteEditJournal.MAX_EDITS + extra; i++) {
+            journal.record(0, text.append('x').toString());
+        }
+
+        assertEquals(NoteEditJournal.MAX_EDITS, undoAll(journal));
+        assertEquals(extra, journal.getText().length());
+    }
+
+    @Test
+    public void oldestEditsAreDroppedPastMaxChars() {
+        NoteEditJournal journal = new NoteEditJournal();
+        journal.reset(0, "");
+        String chunk = repeat('x', NoteEditJournal.MAX_CHARS / 4);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            journal.record(0, text.append(chunk).toString());
+        }
+
+        assertEquals(4, undoAll(journal));
+        assertEquals(2 * chunk.length(), journal.getText().length());
+    }
+
+    @Test
+    public void oversizedEditIsKept() {
+        NoteEditJournal journal = new NoteEditJournal();
+        journal.reset(0, "");
+        journal.record(0, "one");
+        String paste = repeat('x', NoteEditJournal.MAX_CHARS + 1);
+        journal.record(0, "one" + paste);
+
+        // only the older entries make room for it
+        assertEquals(1, undoAll(journal));
+        assertEquals("one", journal.getText());
+        assertTrue(journal.redo());
+        assertEquals("one" + paste, journal.getText());
+    }
+
+    @Test
+    public void editsWithinDelayAreUndoneTogether() {
+        NoteEditActivity activity = startEditor();
+        EditText editor = (EditText) activity.findViewById(R.id.note_edit_view);
+
+        editor.append("one");
+        advance(NoteEditActivity.UNDO_GROUP_DELAY / 2);
+        editor.append(" two");
+        advance(NoteEditActivity.UNDO_GROUP_DELAY + 100);
+        editor.append(" three");
+
+        activity.onUndoRequest();
+        assertEquals("one two", editor.getText().toString());
+        activity.onUndoRequest();
+        assertEquals("", editor.getText().toString());
+        activity.onRedoRequest();
+        assertEquals("one two", editor.getText().toString());
+        activity.onRedoRequest();
+        assertEquals("one two three", editor.getText().toString());
+    }
+
+    @Test
+    public void undoSurvivesListModeRoundTrip() {
+        NoteEditActivity activity = startEditor();
+        EditText editor = (EditText) activity.findViewById(R.id.note_edit_view);
+        View list = activity.findViewById(R.id.note_edit_list);
+
+        editor.append("one\ntwo");
+        advance(NoteEditActivity.UNDO_GROUP_DELAY + 100);
+        activity.onOptionsItemSelected(new RoboMenuItem(R.id.menu_list_mode));
+        assertEquals(View.VISIBLE, list.getVisibility());
+        activity.onOptionsItemSelected(new RoboMenuItem(R.id.menu_list_mode));
+        assertEquals(View.VISIBLE, editor.getVisibility());
+
+        // back to the list, then to the text typed before it
+        activity.onUndoRequest();
+        assertEquals(View.VISIBLE, list.getVisibility());
+        assertEquals(View.GONE, editor.getVisibility());
+        activity.onUndoRequest();
+        assertEquals(View.VISIBLE, editor.getVisibility());
+        assertEquals("one\ntwo", editor.getText().toString());
+        activity.onUndoRequest();
+        assertEquals("", editor.getText().toString());
+
+        activity.onRedoRequest();
+        assertEquals("one\ntwo", editor.getText().toString());
+        activity.onRedoRequest();
+        assertEquals(View.VISIBLE, list.getVisibility());
+    }
+
+    private static NoteEditActivity startEditor() {
+        Intent intent = new Intent(RuntimeEnvironment.application, NoteEditActivity.class);
+        intent.setAction(Intent.ACTION_INSERT_OR_EDIT);
+        intent.putExtra(Notes.INTENT_EXTRA_FOLDER_ID, (long) Notes.ID_ROOT_FOLDER);
+        return Robolectric.buildActivity(NoteEditActivity.class, intent).create().start()
+                .resume().visible().get();
+    }
+
+    // runs the delayed checkpoints of the editor that are due by then
+    private static void advance(long millis) {
+        Robolectric.getForegroundThreadScheduler().advanceBy(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private static int undoAll(NoteEditJournal journal) {
+        int count = 0;
+        while (journal.undo()) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}